@@ -0,0 +1,88 @@
+package de.othr.database_connector.loadtest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import com.hivemq.embedded.EmbeddedHiveMQ;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * MQTT v5 message broker (HiveMQ Community Edition) running within the load generator process.
+ * It only listens on the loopback interface and keeps all state in memory.
+ * @author Thomas Pilz
+ */
+public class EmbeddedBroker implements AutoCloseable {
+
+    private static final String CONFIG = """
+            <?xml version="1.0"?>
+            <hivemq>
+                <listeners>
+                    <tcp-listener>
+                        <port>%d</port>
+                        <bind-address>127.0.0.1</bind-address>
+                    </tcp-listener>
+                </listeners>
+                <persistence>
+                    <mode>in-memory</mode>
+                </persistence>
+                <anonymous-usage-statistics>
+                    <enabled>false</enabled>
+                </anonymous-usage-statistics>
+            </hivemq>
+            """;
+    private final EmbeddedHiveMQ hiveMQ;
+    private final int port;
+
+    /**
+     * Create a broker. It is not started yet.
+     * @param port port the broker listens on
+     * @param dir directory for configuration and data of the broker
+     * @throws IOException if the configuration cannot be written
+     */
+    public EmbeddedBroker(int port, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Files.writeString(dir.resolve("config.xml"), CONFIG.formatted(port));
+        this.hiveMQ = EmbeddedHiveMQ.builder()
+                .withConfigurationFolder(dir)
+                .withDataFolder(Files.createDirectories(dir.resolve("data")))
+                .withExtensionsFolder(Files.createDirectories(dir.resolve("extensions")))
+                .build();
+        this.port = port;
+    }
+
+    /**
+     * Start the broker and wait until it accepts connections.
+     */
+    public void start() {
+        hiveMQ.start().join();
+    }
+
+    /**
+     * Get the URL clients connect to.
+     * @return broker URL
+     */
+    public String getUrl() {
+        return "tcp://127.0.0.1:%d".formatted(port);
+    }
+
+    @Override
+    public void close() throws Exception {
+        hiveMQ.stop().join();
+        hiveMQ.close();
+    }
+}
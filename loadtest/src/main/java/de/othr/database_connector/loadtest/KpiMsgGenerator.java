@@ -0,0 +1,92 @@
+package de.othr.database_connector.loadtest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Generates synthetic KPI messages which conform to the message schema (kpi_msg_schema.json) of the connector.
+ * Every equipment reports the same set of KPIs with random units and values.
+ * Instances are not thread-safe.
+ * @author Thomas Pilz
+ */
+public class KpiMsgGenerator {
+
+    /**
+     * ISO-8601 format with millisecond precision, as the schema requires timestamps of exactly 24 characters
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private final String[] equipment;
+    private final String[] topics;
+    private final String[] names;
+    private final Random random;
+    private final StringBuilder json = new StringBuilder(256);
+
+    /**
+     * Create a new generator.
+     * @param equipmentCount number of distinct equipment numbers
+     * @param kpisPerMessage number of KPIs in every message
+     * @param seed seed of random units and values
+     */
+    public KpiMsgGenerator(int equipmentCount, int kpisPerMessage, long seed) {
+        equipment = new String[equipmentCount];
+        topics = new String[equipmentCount];
+        for(var i = 0; i < equipmentCount; i++){
+            // equipment numbers (client IDs) must be exactly 10 characters long
+            equipment[i] = "EQ%08d".formatted(i);
+            topics[i] = "kpis/" + equipment[i];
+        }
+        names = new String[kpisPerMessage];
+        for(var i = 0; i < kpisPerMessage; i++) names[i] = "kpi_%d".formatted(i);
+        random = new Random(seed);
+    }
+
+    /**
+     * Get the topic messages of an equipment are published to.
+     * @param equipment index of equipment
+     * @return topic
+     */
+    public String topic(int equipment) {
+        return topics[equipment];
+    }
+
+    /**
+     * Create a message of an equipment.
+     * @param equipment index of equipment
+     * @param unixTimestamp time of the measurement in milliseconds since the Unix epoch
+     * @return UTF-8 encoded JSON message
+     */
+    public byte[] message(int equipment, long unixTimestamp) {
+        json.setLength(0);
+        json.append("{\"clientId\":\"").append(this.equipment[equipment])
+                .append("\",\"unixTimestamp\":").append(unixTimestamp)
+                .append(",\"timestamp\":\"").append(TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(unixTimestamp)))
+                .append("\",\"kpis\":[");
+        for(var i = 0; i < names.length; i++){
+            if(i > 0) json.append(',');
+            var cents = random.nextInt(10_000_000);
+            json.append("{\"name\":\"").append(names[i])
+                    .append("\",\"unitId\":").append(1 + random.nextInt(6))
+                    .append(",\"value\":").append(cents / 100).append('.').append(cents % 100 / 10).append(cents % 10)
+                    .append('}');
+        }
+        return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
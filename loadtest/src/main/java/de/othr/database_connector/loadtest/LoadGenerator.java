@@ -0,0 +1,331 @@
+package de.othr.database_connector.loadtest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator which pushes the Database Connector to its limits on a single machine.
+ * It starts an embedded MQTT v5 message broker, a local PostgreSQL server and the connector from its jar in a separate process.
+ * Publishers then send synthetic KPI messages at a fixed rate while the throughput and end-to-end latency of the connector
+ * are read from its metrics endpoint. After a warmup the sustained rates and latency percentiles are reported.
+ * @author Thomas Pilz
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    private static final String RECEIVED = "mqtt_messages_received_total";
+    private static final String INVALID = "mqtt_messages_invalid_total";
+    private static final String COMMITTED = "db_committed_kpis_total";
+    private static final String QUEUE_DEPTH = "ingest_queue_depth_kpis";
+    private static final String LAG = "kpi_end_to_end_lag_seconds";
+    private static final String FLUSH_DURATION = "db_flush_duration_seconds";
+    private static final long STARTUP_TIMEOUT_MS = 120_000;
+    /**
+     * Time the committed KPIs must not change for the connector to be considered drained after the publishers stopped
+     */
+    private static final long DRAIN_IDLE_MS = 3_000;
+    private static final long DRAIN_TIMEOUT_MS = 120_000;
+
+    private final LoadSettings settings;
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final List<Publisher> publishers = new ArrayList<>();
+    private URI metricsUri;
+    /**
+     * Messages published when the measurement started and ended and metrics of the connector when it ended
+     */
+    private long publishedAtStart = 0;
+    private long publishedAtEnd = 0;
+    private MetricsSnapshot measurementEnd;
+    /**
+     * Median end-to-end lag in seconds of the first and the last report interval of the measurement
+     */
+    private double firstIntervalLag = Double.NaN;
+    private double lastIntervalLag = Double.NaN;
+
+    public LoadGenerator(LoadSettings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) {
+        var settings = LoadSettings.fromEnv();
+        if(!Files.isRegularFile(Path.of(settings.connectorJar))){
+            logger.error("Connector jar {} does not exist! Build it with \"mvn package\" in the project directory or set LOAD_CONNECTOR_JAR.", settings.connectorJar);
+            System.exit(1);
+        }
+        try {
+            new LoadGenerator(settings).run();
+        } catch (Exception e) {
+            logger.error("Load test failed!", e);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Start broker, database and connector, run the load test and shut everything down again.
+     * @throws Exception if the test environment cannot be started
+     */
+    public void run() throws Exception {
+        var workDir = Files.createDirectories(Path.of(settings.workDir).toAbsolutePath());
+        var normalized = "NORMALIZED".equalsIgnoreCase(System.getenv("POSTGRES_SCHEMA_MODE"));
+        var partitioned = System.getenv("POSTGRES_PARTITIONING") != null && !"NONE".equalsIgnoreCase(System.getenv("POSTGRES_PARTITIONING"));
+        try (var postgres = EmbeddedPostgres.builder().setDataDirectory(workDir.resolve("postgres")).setCleanDataDirectory(true).start();
+             var broker = new EmbeddedBroker(settings.mqttPort, workDir.resolve("broker"))) {
+            if(!normalized && !partitioned) createKpisTable(postgres);
+            broker.start();
+            var connector = startConnector(workDir, broker, postgres);
+            try {
+                awaitConnector(connector, broker);
+                var before = runLoad(broker);
+                var after = drain();
+                report(before, after, countRows(postgres, normalized ? "kpi_values" : "kpis"));
+            } finally {
+                publishers.forEach(Publisher::stop);
+                connector.destroy();
+                if(!connector.waitFor(30, TimeUnit.SECONDS)) connector.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Create the kpis table of the denormalized schema. The tables of the normalized schema and partitioned tables are created by the connector.
+     */
+    private static void createKpisTable(EmbeddedPostgres postgres) throws SQLException {
+        try (var con = postgres.getPostgresDatabase().getConnection(); var stmnt = con.createStatement()) {
+            stmnt.execute("CREATE TABLE IF NOT EXISTS kpis (k_equipment text NOT NULL, k_timestamp timestamptz NOT NULL, "
+                    + "k_name text NOT NULL, k_unit integer NOT NULL, k_value numeric NOT NULL)");
+        }
+    }
+
+    /**
+     * Start the connector from its jar. Broker, database and metrics settings point to the local test environment,
+     * all other environment variables are inherited. Its output is written to connector.log in the work directory.
+     */
+    private Process startConnector(Path workDir, EmbeddedBroker broker, EmbeddedPostgres postgres) throws IOException {
+        int metricsPort;
+        try (var socket = new ServerSocket(0)) {
+            metricsPort = socket.getLocalPort();
+        }
+        metricsUri = URI.create("http://127.0.0.1:%d/metrics".formatted(metricsPort));
+        var command = new ArrayList<String>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if(!settings.connectorJavaOpts.isBlank()) command.addAll(Arrays.asList(settings.connectorJavaOpts.trim().split("\\s+")));
+        command.add("-jar");
+        command.add(Path.of(settings.connectorJar).toAbsolutePath().toString());
+        var builder = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("connector.log").toFile());
+        var env = builder.environment();
+        env.put("MQTT_MSG_BROKER_URL", broker.getUrl());
+        env.putIfAbsent("MQTT_CLIENT_ID", "loadtest-connector");
+        env.putIfAbsent("MQTT_TOPIC_FILTERS", "kpis/#");
+        env.put("POSTGRES_DB_DOMAIN", "127.0.0.1:%d".formatted(postgres.getPort()));
+        env.put("POSTGRES_DB", "postgres");
+        env.put("POSTGRES_USER", "postgres");
+        env.put("POSTGRES_PW", "postgres");
+        env.put("METRICS_PORT", Integer.toString(metricsPort));
+        logger.info("Starting connector, see {} for its output", workDir.resolve("connector.log"));
+        return builder.start();
+    }
+
+    /**
+     * Wait until the connector serves metrics and receives messages, i.e. it has subscribed to the topic filters.
+     */
+    private void awaitConnector(Process connector, EmbeddedBroker broker) throws Exception {
+        var generator = new KpiMsgGenerator(1, settings.kpisPerMessage, 0);
+        var deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        var probe = new MqttClient(broker.getUrl(), "loadtest-probe", new MemoryPersistence());
+        probe.connect(new MqttConnectionOptionsBuilder().cleanStart(true).build());
+        try {
+            while(true){
+                if(!connector.isAlive()) throw new IllegalStateException("Connector exited with code %d".formatted(connector.exitValue()));
+                if(System.currentTimeMillis() > deadline) throw new IllegalStateException("Connector did not start within %d ms".formatted(STARTUP_TIMEOUT_MS));
+                try {
+                    if(MetricsSnapshot.scrape(http, metricsUri).sum(RECEIVED) > 0) break;
+                    probe.publish(generator.topic(0), generator.message(0, System.currentTimeMillis()), 0, false);
+                } catch (IOException ignored) {
+                    // metrics endpoint is not up yet
+                }
+                Thread.sleep(200);
+            }
+        } finally {
+            probe.disconnect();
+            probe.close();
+        }
+        logger.info("Connector is up and receiving messages");
+    }
+
+    /**
+     * Publish messages for the warmup and the configured duration, reporting progress in between.
+     * @return snapshot taken when the warmup was over
+     */
+    private MetricsSnapshot runLoad(EmbeddedBroker broker) throws MqttException, IOException, InterruptedException {
+        var count = settings.publishers;
+        for(var p = 0; p < count; p++){
+            var equipment = new int[(settings.equipment - p + count - 1) / count];
+            for(var i = 0; i < equipment.length; i++) equipment[i] = p + i * count;
+            var generator = new KpiMsgGenerator(settings.equipment, settings.kpisPerMessage, p);
+            publishers.add(new Publisher(broker.getUrl(), "loadtest-publisher-%d".formatted(p), generator, equipment, (double) settings.rate / count, settings.qos));
+        }
+        logger.info("Publishing {} messages/s with {} KPIs each for {} equipment using {} publisher(s)",
+                settings.rate, settings.kpisPerMessage, settings.equipment, count);
+        for(var p = 0; p < count; p++) new Thread(publishers.get(p), "publisher-%d".formatted(p)).start();
+
+        var start = System.nanoTime();
+        var warmupEnd = start + TimeUnit.SECONDS.toNanos(settings.warmupSeconds);
+        var end = warmupEnd + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        var interval = TimeUnit.SECONDS.toNanos(settings.reportIntervalSeconds);
+        var last = MetricsSnapshot.scrape(http, metricsUri);
+        var lastPublished = 0L;
+        MetricsSnapshot measurementStart = settings.warmupSeconds == 0 ? last : null;
+        for(var next = start + interval; ; next += interval){
+            var now = System.nanoTime();
+            // do not miss the end of the warmup or of the test when reporting
+            if(measurementStart == null) next = Math.min(next, warmupEnd);
+            next = Math.min(next, end);
+            TimeUnit.NANOSECONDS.sleep(next - now);
+            var snapshot = MetricsSnapshot.scrape(http, metricsUri);
+            var published = published();
+            logInterval((next - start) / 1_000_000_000, snapshot, last, published - lastPublished);
+            if(measurementStart != null){
+                var lag = snapshot.quantile(last, LAG, 0.5);
+                if(Double.isNaN(firstIntervalLag)) firstIntervalLag = lag;
+                lastIntervalLag = lag;
+            }
+            last = snapshot;
+            lastPublished = published;
+            if(measurementStart == null && next >= warmupEnd){
+                measurementStart = snapshot;
+                publishedAtStart = published;
+                logger.info("Warmup finished, measuring for {} s", settings.durationSeconds);
+            }
+            if(next >= end) break;
+        }
+        publishers.forEach(Publisher::stop);
+        publishedAtEnd = published();
+        measurementEnd = MetricsSnapshot.scrape(http, metricsUri);
+        return measurementStart;
+    }
+
+    private long published() {
+        return publishers.stream().mapToLong(Publisher::getPublished).sum();
+    }
+
+    private void logInterval(long elapsedSeconds, MetricsSnapshot now, MetricsSnapshot before, long published) {
+        var seconds = now.secondsSince(before);
+        logger.info("[{} s] published {} msg/s | received {} msg/s | committed {} KPIs/s | queued {} KPIs | lag p50 {} p99 {}",
+                elapsedSeconds,
+                Math.round(published / seconds),
+                Math.round((now.sum(RECEIVED) - before.sum(RECEIVED)) / seconds),
+                Math.round((now.sum(COMMITTED) - before.sum(COMMITTED)) / seconds),
+                Math.round(now.sum(QUEUE_DEPTH)),
+                millis(now.quantile(before, LAG, 0.5)),
+                millis(now.quantile(before, LAG, 0.99)));
+    }
+
+    /**
+     * Wait until the connector has committed all KPIs it received after the publishers stopped.
+     * @return snapshot once the connector is drained or the timeout expired
+     */
+    private MetricsSnapshot drain() throws IOException, InterruptedException {
+        var deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        var snapshot = MetricsSnapshot.scrape(http, metricsUri);
+        var idleSince = System.currentTimeMillis();
+        while(System.currentTimeMillis() < deadline && System.currentTimeMillis() - idleSince < DRAIN_IDLE_MS){
+            Thread.sleep(500);
+            var next = MetricsSnapshot.scrape(http, metricsUri);
+            if(next.sum(COMMITTED) != snapshot.sum(COMMITTED)) idleSince = System.currentTimeMillis();
+            snapshot = next;
+        }
+        return snapshot;
+    }
+
+    private static long countRows(EmbeddedPostgres postgres, String table) throws SQLException {
+        try (var con = postgres.getPostgresDatabase().getConnection(); var stmnt = con.createStatement(); var rs = stmnt.executeQuery("SELECT count(*) FROM " + table)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Log the sustained rates and latency percentiles of the measurement and the totals of the whole run.
+     */
+    private void report(MetricsSnapshot start, MetricsSnapshot drained, long rowsInDb) {
+        var end = measurementEnd;
+        var seconds = end.secondsSince(start);
+        var published = publishedAtEnd - publishedAtStart;
+        var received = end.sum(RECEIVED) - start.sum(RECEIVED);
+        var committed = end.sum(COMMITTED) - start.sum(COMMITTED);
+        var failed = publishers.stream().mapToLong(Publisher::getFailed).sum();
+        logger.info("""
+                Results of {} s measurement after {} s warmup:
+                \tpublished:     {} msg/s
+                \treceived:      {} msg/s
+                \tcommitted:     {} KPIs/s ({} msg/s)
+                \tend-to-end lag p50 {} | p90 {} | p99 {} | p99.9 {}
+                \tflush duration p50 {} | p99 {}
+                \tqueued KPIs at start {} and end {} of measurement
+                Totals of whole run:
+                \tpublished {} messages ({} failed), received {}, invalid {}
+                \tcommitted {} KPIs, {} rows in database""",
+                Math.round(seconds), settings.warmupSeconds,
+                Math.round(published / seconds),
+                Math.round(received / seconds),
+                Math.round(committed / seconds), Math.round(committed / settings.kpisPerMessage / seconds),
+                millis(end.quantile(start, LAG, 0.5)), millis(end.quantile(start, LAG, 0.9)),
+                millis(end.quantile(start, LAG, 0.99)), millis(end.quantile(start, LAG, 0.999)),
+                millis(end.quantile(start, FLUSH_DURATION, 0.5)), millis(end.quantile(start, FLUSH_DURATION, 0.99)),
+                Math.round(start.sum(QUEUE_DEPTH)), Math.round(end.sum(QUEUE_DEPTH)),
+                publishedAtEnd, failed, Math.round(drained.sum(RECEIVED)), Math.round(drained.sum(INVALID)),
+                Math.round(drained.sum(COMMITTED)), rowsInDb);
+        // messages still in flight when the measurement ended are received while draining, so only the totals show lost messages
+        var lost = publishedAtEnd - Math.round(drained.sum(RECEIVED));
+        if(lost > 0){
+            logger.warn("{} published messages never reached the connector. The broker dropped them as the connector did not keep up.", lost);
+        }
+        // at a sustainable rate the lag stays level, otherwise messages pile up in front of the connector and the lag keeps growing
+        if(lastIntervalLag > 2 * firstIntervalLag && lastIntervalLag - firstIntervalLag > 1){
+            logger.warn("The connector did not keep up with {} msg/s. The median lag grew from {} to {} during the measurement.",
+                    settings.rate, millis(firstIntervalLag), millis(lastIntervalLag));
+        }
+    }
+
+    private static String millis(double seconds) {
+        if(Double.isNaN(seconds)) return "n/a";
+        if(Double.isInfinite(seconds)) return "> max bucket";
+        return "%.1f ms".formatted(seconds * 1000);
+    }
+}
@@ -0,0 +1,108 @@
+package de.othr.database_connector.loadtest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Settings of the load generator, read from environment variables.
+ * All other environment variables are passed on to the connector, so its settings can be varied between runs as usual.
+ * @author Thomas Pilz
+ */
+public class LoadSettings {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadSettings.class);
+
+    public int rate = 1000;
+    public int equipment = 100;
+    public int kpisPerMessage = 10;
+    public int publishers = 4;
+    public int qos = 0;
+    public int warmupSeconds = 10;
+    public int durationSeconds = 60;
+    public int reportIntervalSeconds = 10;
+    public int mqttPort = 18830;
+    public String connectorJar = "../target/DatabaseConnector-1.0-SNAPSHOT-jar-with-dependencies.jar";
+    public String connectorJavaOpts = "";
+    public String workDir = "target/loadtest";
+
+    /**
+     * Read settings from environment variables and leave program if one of them is invalid.
+     * @return settings
+     */
+    public static LoadSettings fromEnv(){
+        var settings = new LoadSettings();
+        settings.rate = readPositiveIntEnv("LOAD_RATE", settings.rate);
+        settings.equipment = readIntEnv("LOAD_EQUIPMENT", settings.equipment, 1, 100_000_000);
+        settings.kpisPerMessage = readPositiveIntEnv("LOAD_KPIS_PER_MESSAGE", settings.kpisPerMessage);
+        settings.publishers = readPositiveIntEnv("LOAD_PUBLISHERS", settings.publishers);
+        settings.qos = readIntEnv("LOAD_QOS", settings.qos, 0, 2);
+        settings.warmupSeconds = readIntEnv("LOAD_WARMUP_SECONDS", settings.warmupSeconds, 0, Integer.MAX_VALUE);
+        settings.durationSeconds = readPositiveIntEnv("LOAD_DURATION_SECONDS", settings.durationSeconds);
+        settings.reportIntervalSeconds = readPositiveIntEnv("LOAD_REPORT_INTERVAL_SECONDS", settings.reportIntervalSeconds);
+        settings.mqttPort = readIntEnv("LOAD_MQTT_PORT", settings.mqttPort, 1, 65535);
+        settings.connectorJar = readEnv("LOAD_CONNECTOR_JAR", settings.connectorJar);
+        settings.connectorJavaOpts = readEnv("LOAD_CONNECTOR_JAVA_OPTS", settings.connectorJavaOpts);
+        settings.workDir = readEnv("LOAD_WORK_DIR", settings.workDir);
+        // every publisher needs at least one equipment to publish for
+        if(settings.publishers > settings.equipment) settings.publishers = settings.equipment;
+        logger.info("Read load generator configuration from environment variables: \n{}", settings);
+        return settings;
+    }
+
+    private static String readEnv(String name, String defaultValue){
+        var value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    private static int readPositiveIntEnv(String name, int defaultValue){
+        return readIntEnv(name, defaultValue, 1, Integer.MAX_VALUE);
+    }
+
+    private static int readIntEnv(String name, int defaultValue, int min, int max){
+        var value = readEnv(name, null);
+        if(value == null) return defaultValue;
+        try {
+            var parsed = Integer.parseInt(value);
+            if(parsed >= min && parsed <= max) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        logger.error("Environment variable {} must be an integer between {} and {} but is '{}'!", name, min, max, value);
+        System.exit(1);
+        return defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return
+        """
+        \tLOAD_RATE=%d
+        \tLOAD_EQUIPMENT=%d
+        \tLOAD_KPIS_PER_MESSAGE=%d
+        \tLOAD_PUBLISHERS=%d
+        \tLOAD_QOS=%d
+        \tLOAD_WARMUP_SECONDS=%d
+        \tLOAD_DURATION_SECONDS=%d
+        \tLOAD_REPORT_INTERVAL_SECONDS=%d
+        \tLOAD_MQTT_PORT=%d
+        \tLOAD_CONNECTOR_JAR=%s
+        \tLOAD_CONNECTOR_JAVA_OPTS=%s
+        \tLOAD_WORK_DIR=%s
+        """.formatted(rate, equipment, kpisPerMessage, publishers, qos, warmupSeconds, durationSeconds, reportIntervalSeconds,
+                mqttPort, connectorJar, connectorJavaOpts, workDir);
+    }
+}
@@ -0,0 +1,146 @@
+package de.othr.database_connector.loadtest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Samples scraped from the Prometheus endpoint of the connector at one point in time.
+ * The difference of two snapshots gives rates and latency percentiles within the time between them.
+ * @author Thomas Pilz
+ */
+public class MetricsSnapshot {
+
+    private final Map<String, Double> samples;
+    private final long nanoTime;
+
+    private MetricsSnapshot(Map<String, Double> samples, long nanoTime) {
+        this.samples = samples;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * Scrape the metrics endpoint.
+     * @param client HTTP client
+     * @param uri URI of the metrics endpoint
+     * @return snapshot
+     * @throws IOException if the endpoint is unreachable or does not respond with 200
+     * @throws InterruptedException if interrupted while waiting for the response
+     */
+    public static MetricsSnapshot scrape(HttpClient client, URI uri) throws IOException, InterruptedException {
+        var nanoTime = System.nanoTime();
+        var response = client.send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+        if(response.statusCode() != 200) throw new IOException("Metrics endpoint responded with status %d".formatted(response.statusCode()));
+        return parse(response.body(), nanoTime);
+    }
+
+    /**
+     * Parse metrics in the Prometheus text format.
+     * @param text exposition text
+     * @param nanoTime time of the scrape as given by {@link System#nanoTime()}
+     * @return snapshot
+     */
+    static MetricsSnapshot parse(String text, long nanoTime) {
+        var samples = new HashMap<String, Double>();
+        for(var line : text.split("\n")){
+            if(line.isBlank() || line.startsWith("#")) continue;
+            var separator = line.lastIndexOf(' ');
+            samples.put(line.substring(0, separator), parseValue(line.substring(separator + 1)));
+        }
+        return new MetricsSnapshot(samples, nanoTime);
+    }
+
+    private static double parseValue(String value) {
+        return switch (value) {
+            case "+Inf" -> Double.POSITIVE_INFINITY;
+            case "-Inf" -> Double.NEGATIVE_INFINITY;
+            default -> Double.parseDouble(value);
+        };
+    }
+
+    /**
+     * Get the sum of all samples of a metric over all label values.
+     * @param name name of metric
+     * @return sum or 0 if the metric does not exist
+     */
+    public double sum(String name) {
+        var sum = 0d;
+        var prefix = name + "{";
+        for(var sample : samples.entrySet()){
+            if(sample.getKey().equals(name) || sample.getKey().startsWith(prefix)) sum += sample.getValue();
+        }
+        return sum;
+    }
+
+    /**
+     * Get the seconds passed between an earlier snapshot and this one.
+     * @param earlier earlier snapshot
+     * @return seconds
+     */
+    public double secondsSince(MetricsSnapshot earlier) {
+        return (nanoTime - earlier.nanoTime) / 1e9;
+    }
+
+    /**
+     * Get the cumulative bucket counts of a histogram by upper bound.
+     */
+    private TreeMap<Double, Double> buckets(String histogram) {
+        var buckets = new TreeMap<Double, Double>();
+        var prefix = histogram + "_bucket{le=\"";
+        for(var sample : samples.entrySet()){
+            var key = sample.getKey();
+            if(!key.startsWith(prefix)) continue;
+            buckets.put(parseValue(key.substring(prefix.length(), key.length() - 2)), sample.getValue());
+        }
+        return buckets;
+    }
+
+    /**
+     * Estimate a quantile of the observations of a histogram recorded between an earlier snapshot and this one.
+     * Like PromQL's histogram_quantile the value is interpolated linearly within the bucket the quantile lies in.
+     * @param earlier earlier snapshot
+     * @param histogram name of histogram
+     * @param q quantile between 0 and 1
+     * @return estimated quantile, NaN if there were no observations or positive infinity if it lies above the largest bucket
+     */
+    public double quantile(MetricsSnapshot earlier, String histogram, double q) {
+        var before = earlier.buckets(histogram);
+        var after = buckets(histogram);
+        var total = after.getOrDefault(Double.POSITIVE_INFINITY, 0d) - before.getOrDefault(Double.POSITIVE_INFINITY, 0d);
+        if(total <= 0) return Double.NaN;
+        var rank = q * total;
+        var lowerBound = 0d;
+        var lowerCount = 0d;
+        for(var bucket : after.entrySet()){
+            var count = bucket.getValue() - before.getOrDefault(bucket.getKey(), 0d);
+            if(count >= rank){
+                if(bucket.getKey().isInfinite()) return Double.POSITIVE_INFINITY;
+                var inBucket = count - lowerCount;
+                return inBucket == 0 ? bucket.getKey() : lowerBound + (bucket.getKey() - lowerBound) * (rank - lowerCount) / inBucket;
+            }
+            lowerBound = bucket.getKey();
+            lowerCount = count;
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
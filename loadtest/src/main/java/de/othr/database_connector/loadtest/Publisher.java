@@ -0,0 +1,111 @@
+package de.othr.database_connector.loadtest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes messages of a set of equipment at a fixed rate using its own MQTT connection.
+ * Every message is scheduled at a fixed point in time and carries that time as its timestamp, not the time it was actually sent.
+ * If the publisher falls behind, e.g. because the broker applies backpressure, the delay is therefore part of the measured
+ * end-to-end latency instead of being hidden (coordinated omission).
+ * @author Thomas Pilz
+ */
+public class Publisher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Publisher.class);
+    private final MqttClient client;
+    private final KpiMsgGenerator generator;
+    private final int[] equipment;
+    private final long intervalNanos;
+    private final int qos;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * Create a publisher and connect it to the message broker.
+     * @param brokerUrl URL of message broker
+     * @param clientId MQTT client ID
+     * @param generator generator of messages, exclusively used by this publisher
+     * @param equipment indexes of the equipment this publisher publishes messages for in turn
+     * @param rate messages per second
+     * @param qos quality of service messages are published with
+     * @throws MqttException if the publisher cannot connect to the broker
+     */
+    public Publisher(String brokerUrl, String clientId, KpiMsgGenerator generator, int[] equipment, double rate, int qos) throws MqttException {
+        this.client = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+        this.client.connect(new MqttConnectionOptionsBuilder().cleanStart(true).build());
+        this.generator = generator;
+        this.equipment = equipment;
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000d / rate));
+        this.qos = qos;
+    }
+
+    @Override
+    public void run() {
+        var startNanos = System.nanoTime();
+        var startMillis = System.currentTimeMillis();
+        for(long n = 0; running; n++){
+            var scheduled = startNanos + n * intervalNanos;
+            var wait = scheduled - System.nanoTime();
+            if(wait > 0) LockSupport.parkNanos(wait);
+            var eq = equipment[(int) (n % equipment.length)];
+            var timestamp = startMillis + (scheduled - startNanos) / 1_000_000;
+            try {
+                client.publish(generator.topic(eq), generator.message(eq, timestamp), qos, false);
+                published.increment();
+            } catch (MqttException e) {
+                if(failed.sum() == 0) logger.warn("Could not publish message!", e);
+                failed.increment();
+            }
+        }
+        try {
+            client.disconnect();
+            client.close();
+        } catch (MqttException e) {
+            logger.warn("Could not disconnect publisher {}!", client.getClientId(), e);
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Get the number of messages published so far.
+     * @return number of messages
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * Get the number of messages which could not be published.
+     * @return number of messages
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+}
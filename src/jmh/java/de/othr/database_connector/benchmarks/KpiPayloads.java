@@ -0,0 +1,103 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiMsgDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Generates valid KPI messages and batches for the benchmarks.
+ * Generation is deterministic so that all forks of a benchmark work on the same data.
+ * @author Thomas Pilz
+ */
+final class KpiPayloads {
+
+    /**
+     * Number of distinct equipment numbers messages are generated for
+     */
+    static final int EQUIPMENT_COUNT = 100;
+    /**
+     * Number of distinct KPI names
+     */
+    static final int NAME_COUNT = 200;
+    /**
+     * ISO-8601 format with millisecond precision, as the schema requires timestamps of exactly 24 characters
+     */
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+    private KpiPayloads() {
+    }
+
+    /**
+     * Create messages in the JSON format the connector receives.
+     * @param count number of messages
+     * @param kpisPerMessage number of KPIs in every message
+     * @return UTF-8 encoded messages
+     */
+    static byte[][] messages(int count, int kpisPerMessage) {
+        var random = new Random(42);
+        var start = Instant.now().toEpochMilli();
+        var messages = new byte[count][];
+        for (var i = 0; i < count; i++) {
+            var timestamp = Instant.ofEpochMilli(start + i);
+            var json = new StringBuilder(64 + kpisPerMessage * 64)
+                    .append("{\"clientId\":\"").append(equipment(random.nextInt(EQUIPMENT_COUNT)))
+                    .append("\",\"unixTimestamp\":").append(timestamp.toEpochMilli())
+                    .append(",\"timestamp\":\"").append(TIMESTAMP_FORMAT.format(timestamp))
+                    .append("\",\"kpis\":[");
+            for (var k = 0; k < kpisPerMessage; k++) {
+                if (k > 0) json.append(',');
+                json.append("{\"name\":\"").append(name(random.nextInt(NAME_COUNT)))
+                        .append("\",\"unitId\":").append(1 + random.nextInt(6))
+                        .append(",\"value\":").append(random.nextInt(1_000_000) / 100).append('.').append(10 + random.nextInt(90))
+                        .append('}');
+            }
+            messages[i] = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return messages;
+    }
+
+    /**
+     * Create a batch of KPI rows as it is handed to the database writer.
+     * @param batchSize number of rows
+     * @param kpisPerMessage number of KPIs per message the rows are decoded from. Rows of one message share equipment and timestamp.
+     * @return batch of exactly batchSize rows
+     */
+    static KpiBatch batch(int batchSize, int kpisPerMessage) {
+        var batch = new KpiBatch(batchSize);
+        var decoder = new KpiMsgDecoder();
+        for (var message : messages((batchSize + kpisPerMessage - 1) / kpisPerMessage, kpisPerMessage)) {
+            if (!decoder.decode(message, batch)) throw new IllegalStateException("Generated message is invalid: " + decoder.getViolation());
+        }
+        batch.truncate(batchSize);
+        return batch;
+    }
+
+    private static String equipment(int i) {
+        // equipment numbers must be exactly 10 characters long
+        return "EQ%08d".formatted(i);
+    }
+
+    private static String name(int i) {
+        return "kpi_%03d".formatted(i);
+    }
+}
@@ -0,0 +1,68 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.services.DatabaseService;
+import de.othr.database_connector.services.InsertMode;
+import de.othr.database_connector.services.KpiWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the batching logic of {@link KpiWriter#insertKpis} with {@link InsertMode#INSERT}, i.e. splitting a batch into
+ * the cached multi-row INSERT statements and binding every KPI, against a {@link StubDataSource} which does no I/O.
+ * COPY requires a pgJDBC connection and is measured by {@link PostgresKpiWriterBenchmark}.
+ * @author Thomas Pilz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class KpiWriterBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int kpisPerMessage;
+
+    @Param({"100", "1000", "5000"})
+    public int batchSize;
+
+    private KpiWriter writer;
+    private KpiBatch batch;
+
+    @Setup
+    public void setup() throws InterruptedException {
+        var db = DatabaseService.getInstance();
+        db.setDataSource(StubDataSource.create());
+        db.connect2db("stub", "benchmark", "benchmark");
+        while (!db.isAvailable()) Thread.sleep(10);
+        writer = new KpiWriter(db, InsertMode.INSERT);
+        batch = KpiPayloads.batch(batchSize, kpisPerMessage);
+    }
+
+    @TearDown
+    public void tearDown() {
+        writer.close();
+    }
+
+    @Benchmark
+    public boolean insertKpis() {
+        return writer.insertKpis(batch);
+    }
+}
@@ -0,0 +1,67 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ValidationMode;
+import de.othr.database_connector.services.MqttService;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link MqttService#messageArrived} from the raw MQTT message to the KPI rows handed to the ingest pipeline
+ * for every validation mode. No broker is involved, the callback is invoked directly.
+ * @author Thomas Pilz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageArrivedBenchmark {
+
+    private static final int MESSAGE_COUNT = 256;
+    private static final String TOPIC = "benchmark/kpis";
+
+    @Param({"1", "10", "100"})
+    public int kpisPerMessage;
+
+    @Param({"OFF", "STRICT", "FULL"})
+    public ValidationMode validationMode;
+
+    private MqttService mqttService;
+    private MqttMessage[] messages;
+    private int next = 0;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mqttService = new MqttService("tcp://localhost:1883", "benchmark", (rows, ack) -> blackhole.consume(rows.size()));
+        mqttService.setValidationMode(validationMode);
+        var payloads = KpiPayloads.messages(MESSAGE_COUNT, kpisPerMessage);
+        messages = new MqttMessage[MESSAGE_COUNT];
+        for (var i = 0; i < MESSAGE_COUNT; i++) messages[i] = new MqttMessage(payloads[i]);
+    }
+
+    @Benchmark
+    public void messageArrived() throws Exception {
+        var i = next;
+        next = (i + 1) % MESSAGE_COUNT;
+        mqttService.messageArrived(TOPIC, messages[i]);
+    }
+}
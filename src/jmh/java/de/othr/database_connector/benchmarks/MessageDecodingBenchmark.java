@@ -0,0 +1,113 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.othr.database_connector.kpi.Kpi;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiMsg;
+import de.othr.database_connector.kpi.KpiMsgDecoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares turning a message payload into KPI rows with the streaming {@link KpiMsgDecoder}
+ * against creating {@link KpiMsg} and {@link Kpi} objects with Jackson databind.
+ * @author Thomas Pilz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageDecodingBenchmark {
+
+    /**
+     * Number of different payloads the benchmarks cycle through
+     */
+    private static final int MESSAGE_COUNT = 256;
+
+    @Param({"1", "10", "100"})
+    public int kpisPerMessage;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final KpiMsgDecoder decoder = new KpiMsgDecoder();
+    private byte[][] messages;
+    private KpiMsg[] parsed;
+    private KpiBatch rows;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        messages = KpiPayloads.messages(MESSAGE_COUNT, kpisPerMessage);
+        parsed = new KpiMsg[MESSAGE_COUNT];
+        for (var i = 0; i < MESSAGE_COUNT; i++) parsed[i] = mapper.readValue(messages[i], KpiMsg.class);
+        rows = new KpiBatch(kpisPerMessage);
+    }
+
+    private int nextIndex() {
+        var i = next;
+        next = (i + 1) % MESSAGE_COUNT;
+        return i;
+    }
+
+    /**
+     * Decode a payload into reused columnar rows, which is what the connector does for every message.
+     */
+    @Benchmark
+    public KpiBatch decoder() {
+        rows.clear();
+        decoder.decode(messages[nextIndex()], rows);
+        return rows;
+    }
+
+    /**
+     * Deserialize a payload into a {@link KpiMsg} holding one {@link Kpi} per measurement.
+     */
+    @Benchmark
+    public KpiMsg databind() throws IOException {
+        return mapper.readValue(messages[nextIndex()], KpiMsg.class);
+    }
+
+    /**
+     * Deserialize a payload into a {@link KpiMsg} and copy its KPIs into columnar rows.
+     */
+    @Benchmark
+    public KpiBatch databindToRows() throws IOException {
+        rows.clear();
+        rows.add(mapper.readValue(messages[nextIndex()], KpiMsg.class));
+        return rows;
+    }
+
+    /**
+     * Create {@link KpiMsg} and {@link Kpi} objects from already parsed values, i.e. only the object creation part of databind.
+     */
+    @Benchmark
+    public void createObjects(Blackhole blackhole) {
+        var msg = parsed[nextIndex()];
+        var kpis = new ArrayList<Kpi>(kpisPerMessage);
+        for (var kpi : msg.getKpis()) {
+            kpis.add(new Kpi(kpi.getName(), kpi.getUnitId(), new BigDecimal(kpi.getValue().unscaledValue(), kpi.getValue().scale())));
+        }
+        blackhole.consume(new KpiMsg(msg.getClientId(), kpis));
+    }
+}
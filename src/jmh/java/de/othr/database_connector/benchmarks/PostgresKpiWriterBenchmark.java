@@ -0,0 +1,91 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.services.DatabaseService;
+import de.othr.database_connector.services.InsertMode;
+import de.othr.database_connector.services.KpiWriter;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link KpiWriter#insertKpis} for every insert mode against a local PostgreSQL server started by embedded-postgres.
+ * Results include the round trips to the database and the commit, so they depend on the machine the benchmark runs on.
+ * The kpis table is emptied before every iteration.
+ * @author Thomas Pilz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PostgresKpiWriterBenchmark {
+
+    private static final String KPIS_TABLE = "CREATE TABLE kpis (k_equipment text NOT NULL, k_timestamp timestamptz NOT NULL, "
+            + "k_name text NOT NULL, k_unit integer NOT NULL, k_value numeric NOT NULL)";
+
+    @Param({"1", "10", "100"})
+    public int kpisPerMessage;
+
+    @Param({"100", "1000", "5000"})
+    public int batchSize;
+
+    @Param({"INSERT", "COPY_TEXT", "COPY_BINARY"})
+    public InsertMode insertMode;
+
+    private EmbeddedPostgres postgres;
+    private KpiWriter writer;
+    private KpiBatch batch;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException, InterruptedException {
+        postgres = EmbeddedPostgres.start();
+        var dataSource = postgres.getPostgresDatabase();
+        try (var con = dataSource.getConnection(); var stmnt = con.createStatement()) {
+            stmnt.execute(KPIS_TABLE);
+        }
+        var db = DatabaseService.getInstance();
+        db.setDataSource(dataSource);
+        db.connect2db(postgres.getJdbcUrl("postgres", "postgres"), "postgres", "postgres");
+        while (!db.isAvailable()) Thread.sleep(10);
+        writer = new KpiWriter(db, insertMode);
+        batch = KpiPayloads.batch(batchSize, kpisPerMessage);
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws SQLException {
+        try (var con = postgres.getPostgresDatabase().getConnection(); var stmnt = con.createStatement()) {
+            stmnt.execute("TRUNCATE kpis");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.close();
+        postgres.close();
+    }
+
+    @Benchmark
+    public boolean insertKpis() {
+        return writer.insertKpis(batch);
+    }
+}
@@ -0,0 +1,68 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import javax.sql.DataSource;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+/**
+ * Data source whose connections and statements accept everything and do nothing.
+ * Used to measure the cost of binding KPIs to JDBC statements without a database round trip.
+ * Calls go through {@link Proxy}, so every JDBC call adds a small constant overhead to the measurement.
+ * @author Thomas Pilz
+ */
+final class StubDataSource {
+
+    private StubDataSource() {
+    }
+
+    /**
+     * Create a data source returning stub connections.
+     * @return stub data source
+     */
+    static DataSource create() {
+        return stub(DataSource.class);
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(StubDataSource.class.getClassLoader(), new Class<?>[]{type}, StubDataSource::invoke));
+    }
+
+    private static Object invoke(Object proxy, Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "getConnection" -> stub(Connection.class);
+            case "prepareStatement" -> stub(PreparedStatement.class);
+            case "executeBatch" -> new int[0];
+            case "isValid" -> true;
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "toString" -> "Stub" + proxy.getClass().getInterfaces()[0].getSimpleName();
+            default -> defaultValue(method.getReturnType());
+        };
+    }
+
+    /**
+     * Get the value a field of the given type is initialized with (0, false or null).
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+}
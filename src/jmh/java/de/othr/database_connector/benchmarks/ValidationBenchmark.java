@@ -0,0 +1,77 @@
+package de.othr.database_connector.benchmarks;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.othr.database_connector.helpers.Validator;
+import de.othr.database_connector.helpers.ValidityChecker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the evaluation of the JSON schema by {@link Validator#isMsgValid}.
+ * @author Thomas Pilz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ValidationBenchmark {
+
+    private static final int MESSAGE_COUNT = 256;
+
+    @Param({"1", "10", "100"})
+    public int kpisPerMessage;
+
+    private byte[][] messages;
+    private JsonNode[] trees;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        var mapper = new ObjectMapper();
+        messages = KpiPayloads.messages(MESSAGE_COUNT, kpisPerMessage);
+        trees = new JsonNode[MESSAGE_COUNT];
+        for (var i = 0; i < MESSAGE_COUNT; i++) trees[i] = mapper.readTree(messages[i]);
+    }
+
+    private int nextIndex() {
+        var i = next;
+        next = (i + 1) % MESSAGE_COUNT;
+        return i;
+    }
+
+    /**
+     * Parse a payload into a tree and evaluate the schema, which is what the connector does if a message requires schema evaluation.
+     */
+    @Benchmark
+    public ValidityChecker payload() {
+        return Validator.isMsgValid(messages[nextIndex()]);
+    }
+
+    /**
+     * Evaluate the schema against an already parsed tree.
+     */
+    @Benchmark
+    public ValidityChecker tree() {
+        return Validator.isMsgValid(trees[nextIndex()]);
+    }
+}
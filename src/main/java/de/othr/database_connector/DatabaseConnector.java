@@ -14,12 +14,41 @@ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
 See the License for the specific language governing permissions and
 limitations under the License.
  */
+import de.othr.database_connector.helpers.DeadLetterFile;
 import de.othr.database_connector.helpers.EnvironmentVariables;
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.helpers.ValidationMode;
+import de.othr.database_connector.ingest.*;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.metrics.Metrics;
+import de.othr.database_connector.metrics.MetricsServer;
 import de.othr.database_connector.services.DatabaseService;
+import de.othr.database_connector.services.DimensionTables;
+import de.othr.database_connector.services.InsertMode;
+import de.othr.database_connector.services.KpiFileWriter;
+import de.othr.database_connector.services.KpiSinkType;
+import de.othr.database_connector.services.KpiWriter;
 import de.othr.database_connector.services.MqttService;
+import de.othr.database_connector.services.PartitionManager;
+import de.othr.database_connector.services.RollupWriter;
+import de.othr.database_connector.services.Partitioning;
+import de.othr.database_connector.services.SchemaMode;
+import de.othr.database_connector.services.TopicRoute;
+import de.othr.database_connector.services.TopicRouter;
+import org.apache.logging.log4j.LogManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
 /**
  * Program which subscribes to all messages sent to a MQTT message broker and then puts relevant messages containing KPIs in a PostgreSQL database.
  * @author Thomas Pilz
@@ -31,24 +60,318 @@ public class DatabaseConnector {
      */
     private static final Logger logger = LoggerFactory.getLogger(DatabaseConnector.class);
     private static DatabaseService db = DatabaseService.getInstance();
+    /**
+     * Time writers get to finish their current batch once the drain timeout expired
+     */
+    private static final long STOP_TIMEOUT_SECONDS = 5;
 
     public static void main(String[] args) {
 
         var jdbcPostgresPrefix = "jdbc:postgresql://";
         var envs = readEnvs();
-        // Connect do PostgreSQL database
+        ErrorReporter.setLogRate(envs.errorLogRatePerMinute, envs.errorLogBurst);
+        MetricsServer metricsServer = null;
+        if(envs.metricsPort > 0){
+            try {
+                metricsServer = new MetricsServer(envs.metricsPort);
+                metricsServer.start();
+            } catch (IOException e) {
+                logger.error("Could not start metrics server on port {}!", envs.metricsPort, e);
+                System.exit(1);
+            }
+        }
+        // Connect do PostgreSQL database in the background
+        db.setMaxReconnectDelayMs(envs.postgresReconnectMaxDelaySeconds * 1000L);
+        db.setReWriteBatchedInserts(envs.postgresRewriteBatchedInserts);
         db.connect2db(String.format("%s%s/%s", jdbcPostgresPrefix, envs.postgresDbDomain, envs.postgresDb), envs.postgresUser, envs.postgresPw);
 
-        // Create MQTT service
-        var mqttService = new MqttService(envs.mqttMsgBrokerUrl, envs.mqttClientId);
-        // Set listener for when a valid message is received
-        mqttService.setOnValidMessageListener(msg -> {
-            if(db.isConnected()){
-                db.insertKpis(msg);
+        // Create partitions of the kpis table ahead of time in the background
+        PartitionManager partitions = null;
+        if(envs.postgresPartitioning != Partitioning.NONE){
+            partitions = new PartitionManager(envs.postgresPartitioning, envs.postgresPartitionsAhead, envs.postgresPartitionsBehind, envs.postgresSchemaMode == SchemaMode.NORMALIZED);
+            partitions.start(db);
+        }
+
+        // Create ingest pipelines which decouple the MQTT callback from the database inserts
+        var queues = new ArrayList<IngestQueue>();
+        var deduplicator = createDeduplicator(envs);
+        var rollups = createRollups(envs);
+        var compressor = createCompressor(envs);
+        // duplicates are neither aggregated nor written, rollups see all KPIs while compression only reduces the rows written
+        var filters = new ArrayList<KpiFilter>();
+        if(deduplicator != null) filters.add(deduplicator);
+        if(rollups != null) filters.add(rollups);
+        if(compressor != null) filters.add(compressor);
+        var pipeline = createIngestPipeline(envs, partitions, null, filters, queues);
+        var pipelines = new ArrayList<>(List.of(pipeline));
+        var router = envs.mqttTopicRoutes.isEmpty() ? null : createTopicRouter(envs, pipeline, deduplicator, queues, pipelines);
+        if(!queues.isEmpty()){
+            Metrics.registerGauge("ingest_queue_depth_kpis", "Number of KPIs waiting in the in-memory ingest queues",
+                    () -> queues.stream().mapToLong(IngestQueue::size).sum());
+            Metrics.registerGauge("ingest_dropped_kpis", "Number of KPIs dropped because an ingest queue was full",
+                    () -> queues.stream().mapToLong(IngestQueue::getDroppedKpis).sum());
+        }
+        pipelines.forEach(IngestPipeline::start);
+        if(rollups != null) rollups.start();
+
+        // Capture rejected messages of all MQTT connections in one file
+        DeadLetterFile deadLetters = null;
+        if(envs.mqttDeadLetterFile != null){
+            try {
+                deadLetters = new DeadLetterFile(Path.of(envs.mqttDeadLetterFile), envs.mqttDeadLetterMaxMb * 1024L * 1024L);
+            } catch (IOException e) {
+                logger.error("Could not open dead letter file {}!", envs.mqttDeadLetterFile, e);
+                System.exit(1);
+            }
+        }
+
+        // Create MQTT connections which all feed the same pipelines
+        var mqttServices = createMqttServices(envs);
+        var server = metricsServer;
+        var partitionManager = partitions;
+        var deadLetterFile = deadLetters;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(pipelines, rollups, mqttServices, deadLetterFile, partitionManager, server, envs.shutdownDrainTimeoutSeconds), "shutdown"));
+        for(var mqttService : mqttServices){
+            mqttService.setValidationMode(envs.mqttMsgValidation);
+            mqttService.setQos(envs.mqttQos);
+            mqttService.setReceiveMaximum(envs.mqttReceiveMaximum);
+            mqttService.setOnValidMessageListener(pipeline::offer);
+            mqttService.setRouter(router);
+            mqttService.setDeadLetters(deadLetters);
+            // connect to MQTT message broker and subscribe to configured topics
+            mqttService.connectAndSubscribe();
+        }
+
+        // all work is done by virtual threads which do not keep the JVM alive, so the main thread waits until the pipelines are stopped
+        try {
+            for(var p : pipelines) p.awaitTermination();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shut down in an orderly fashion when the JVM is asked to terminate (e.g. SIGTERM on a container stop):
+     * stop consuming messages, write all pending KPIs within the drain timeout, acknowledge their messages and close all connections.
+     * @param pipelines ingest pipelines
+     * @param rollups rollups or null if KPIs are not aggregated
+     * @param mqttServices connections to the message broker
+     * @param deadLetters file rejected messages are written to or null if it is disabled
+     * @param partitions partition manager or null if partitions are not managed
+     * @param metricsServer metrics endpoint or null if it is disabled
+     * @param drainTimeoutSeconds maximum time for consuming to stop and pending KPIs to be written
+     */
+    private static void shutdown(List<IngestPipeline> pipelines, Rollups rollups, List<MqttService> mqttServices, DeadLetterFile deadLetters, PartitionManager partitions, MetricsServer metricsServer, int drainTimeoutSeconds){
+        logger.info("Shutting down. Writing pending KPIs for at most {} s", drainTimeoutSeconds);
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+        mqttServices.forEach(MqttService::stopConsuming);
+        try {
+            var drained = true;
+            // writers of the other pipelines keep writing while one pipeline is drained
+            for(var pipeline : pipelines) drained &= pipeline.drain(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if(drained){
+                logger.info("Wrote all pending KPIs");
+            } else {
+                logger.warn("Could not write all pending KPIs within {} s! KPIs which are not spooled or sent again by the broker are lost.", drainTimeoutSeconds);
+                // writers stop after their current batch
+                for(var pipeline : pipelines) pipeline.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // open windows are written as well, KPIs of the same windows received after a restart are merged with them
+        if(rollups != null) rollups.close();
+        // acknowledgements of written messages are sent before disconnecting
+        mqttServices.forEach(MqttService::close);
+        if(deadLetters != null) deadLetters.close();
+        if(partitions != null) partitions.close();
+        db.close();
+        if(metricsServer != null) metricsServer.stop();
+        logger.info("Shutdown complete");
+        // the shutdown hook of Log4j is disabled so that messages logged while shutting down are not lost
+        LogManager.shutdown();
+    }
+
+    /**
+     * Create one MQTT service per configured connection. Every connection has its own network and callback (virtual) threads,
+     * so receiving and decoding messages is spread across multiple threads.
+     * With a shared subscription group every connection subscribes to all topic filters as a member of the group and the broker
+     * distributes messages among them. Otherwise the topic filters are split among the connections.
+     * @param envs environment variable values
+     * @return MQTT services, not connected yet
+     */
+    private static List<MqttService> createMqttServices(EnvironmentVariables envs){
+        var connections = envs.mqttConnections;
+        if(envs.mqttSharedGroup == null && connections > envs.mqttTopicFilters.size()){
+            logger.warn("Cannot split {} topic filter(s) among {} MQTT connections. Opening {} connection(s) instead. Set MQTT_SHARED_GROUP to let the broker distribute messages among all connections.",
+                    envs.mqttTopicFilters.size(), connections, envs.mqttTopicFilters.size());
+            connections = envs.mqttTopicFilters.size();
+        }
+        // Replicas sharing a subscription group need distinct client IDs or the broker disconnects all but one of them.
+        var clientId = envs.mqttSharedGroup == null ? envs.mqttClientId : uniqueClientId(envs.mqttClientId);
+        var services = new ArrayList<MqttService>(connections);
+        for(var i = 0; i < connections; i++){
+            var mqttService = new MqttService(envs.mqttMsgBrokerUrl, connections == 1 ? clientId : "%s-%d".formatted(clientId, i));
+            if(envs.mqttSharedGroup == null){
+                var filters = new ArrayList<String>();
+                for(var f = i; f < envs.mqttTopicFilters.size(); f += connections) filters.add(envs.mqttTopicFilters.get(f));
+                mqttService.setTopicFilters(filters);
+            } else {
+                mqttService.setTopicFilters(envs.mqttTopicFilters);
+                mqttService.setSharedGroup(envs.mqttSharedGroup);
+            }
+            services.add(mqttService);
+        }
+        return services;
+    }
+
+    /**
+     * Make a client ID unique per replica by appending the host name, which is the container ID when running in Docker
+     * and the pod name in Kubernetes. If the host name is unknown a random suffix is used.
+     * @param clientId configured client ID
+     * @return client ID unique for this replica
+     */
+    private static String uniqueClientId(String clientId){
+        var suffix = readEnv("HOSTNAME", UUID.randomUUID().toString().substring(0, 8));
+        return "%s-%s".formatted(clientId, suffix);
+    }
+
+    /**
+     * Compile the topic routes into a router. Every table topics are routed to gets an ingest pipeline of its own.
+     * @param envs environment variable values
+     * @param pipeline ingest pipeline writing to the kpis table
+     * @param deduplicator deduplicator shared by all pipelines or null
+     * @param queues in-memory queues of all pipelines, the queues of new pipelines are added
+     * @param pipelines all ingest pipelines, new pipelines are added
+     * @return listener per topic
+     */
+    private static TopicRouter<BiConsumer<KpiBatch, Acknowledgement>> createTopicRouter(EnvironmentVariables envs, IngestPipeline pipeline, Deduplicator deduplicator,
+                                                                                       List<IngestQueue> queues, List<IngestPipeline> pipelines){
+        var router = new TopicRouter<BiConsumer<KpiBatch, Acknowledgement>>();
+        var tablePipelines = new LinkedHashMap<String, IngestPipeline>();
+        for(var route : envs.mqttTopicRoutes){
+            switch (route.action()) {
+                case INGEST -> router.add(route.filter(), pipeline::offer);
+                case IGNORE -> router.add(route.filter(), null);
+                case TABLE -> {
+                    var tablePipeline = tablePipelines.computeIfAbsent(route.table(), table -> createIngestPipeline(envs, null, table, deduplicator == null ? List.of() : List.of(deduplicator), queues));
+                    router.add(route.filter(), tablePipeline::offer);
+                }
             }
-        });
-        // connect to MQTT message broker and subsribe to all messages
-        mqttService.connectAndSubscribeAll();
+        }
+        pipelines.addAll(tablePipelines.values());
+        return router;
+    }
+
+    /**
+     * Create a deduplicator if a deduplication window is configured.
+     * @param envs environment variable values
+     * @return deduplicator or null
+     */
+    private static Deduplicator createDeduplicator(EnvironmentVariables envs){
+        if(envs.dedupWindowSeconds == 0) return null;
+        var deduplicator = new Deduplicator(envs.dedupWindowSeconds * 1000L, envs.dedupMaxMb * 1024L * 1024L);
+        Metrics.registerGauge("ingest_dedup_memory_bytes", "Estimated heap memory used to remember received KPIs for deduplication", deduplicator::getBytes);
+        return deduplicator;
+    }
+
+    /**
+     * Create a compressor if compression rules are configured.
+     * @param envs environment variable values
+     * @return compressor or null
+     */
+    private static Compressor createCompressor(EnvironmentVariables envs){
+        if(envs.compressionRules.isEmpty()) return null;
+        var compressor = new Compressor(envs.compressionRules, envs.compressionHeartbeatSeconds * 1000L, envs.compressionMaxMb * 1024L * 1024L);
+        Metrics.registerGauge("ingest_compression_series", "Number of series whose last written KPI is remembered for compression", compressor::getSeries);
+        return compressor;
+    }
+
+    /**
+     * Create rollups if rollup intervals are configured.
+     * @param envs environment variable values
+     * @return rollups, not started yet, or null
+     */
+    private static Rollups createRollups(EnvironmentVariables envs){
+        if(envs.rollupIntervals.isEmpty()) return null;
+        var rollups = new Rollups(envs.rollupIntervals, envs.rollupLatenessSeconds * 1000L, envs.rollupMaxWindows, envs.rollupOnlyKpis, new RollupWriter(db));
+        Metrics.registerGauge("rollup_open_windows", "Number of rollup windows which are aggregated in memory and not written yet", rollups::getOpenWindows);
+        return rollups;
+    }
+
+    /**
+     * Create ingest pipeline with one partition per writer. Every writer writes batches of KPIs to its own sinks, e.g. inserts them into the database using its own connection.
+     * KPIs of alternate tables are only written to the database.
+     * Partitions buffer KPIs in a durable spool on disk if a spool directory is configured and in memory otherwise.
+     * @param envs environment variable values
+     * @param tablePartitions partitions of the table KPIs are written to, shared by all writers, or null if they are not managed
+     * @param table alternate table with the columns of the kpis table or null to write to the kpis (or kpi_values) table
+     * @param filters filters all KPIs pass before they are enqueued
+     * @param queues in-memory queues of all pipelines, the queues of this pipeline are added
+     * @return ingest pipeline
+     */
+    private static IngestPipeline createIngestPipeline(EnvironmentVariables envs, PartitionManager tablePartitions, String table,
+                                                       List<KpiFilter> filters, List<IngestQueue> queues){
+        var partitionCount = envs.ingestWriterThreads;
+        var partitions = new ArrayList<IngestPartition>(partitionCount);
+        // dimension tables and their caches are shared by all writers
+        var dimensions = table == null && envs.postgresSchemaMode == SchemaMode.NORMALIZED ? new DimensionTables(envs.postgresDimensionCacheSize, envs.postgresPartitioning) : null;
+        // spool files of alternate tables are named after the table
+        var prefix = table == null ? "" : table + "-";
+        for(var i = 0; i < partitionCount; i++){
+            var sink = table == null ? createSink(envs, dimensions, tablePartitions, i) : new KpiWriter(db, envs.postgresInsertMode, table);
+            if(envs.spoolDir != null){
+                try {
+                    var spool = new KpiSpool(Path.of(envs.spoolDir), "spool-%s%d".formatted(prefix, i), envs.spoolSegmentMb * 1024 * 1024, envs.spoolMaxSegments);
+                    partitions.add(new SpoolWriter(spool, envs.ingestBatchSize, envs.ingestLingerMs, sink));
+                } catch (IOException e) {
+                    logger.error("Could not open spool in directory {}!", envs.spoolDir, e);
+                    System.exit(1);
+                }
+                continue;
+            }
+            KpiSpool spill = null;
+            if(envs.ingestBackpressurePolicy == BackpressurePolicy.SPILL){
+                try {
+                    spill = new KpiSpool(Path.of(envs.ingestSpillDir), "ingest-spill-%s%d".formatted(prefix, i), envs.spoolSegmentMb * 1024 * 1024, envs.spoolMaxSegments);
+                } catch (IOException e) {
+                    logger.error("Could not open spill spool in directory {}!", envs.ingestSpillDir, e);
+                    System.exit(1);
+                }
+            }
+            // split capacity and offline buffer evenly among partitions
+            var queue = new IngestQueue(Math.max(1, envs.ingestQueueCapacity / partitionCount), envs.ingestBackpressurePolicy, spill);
+            var offlineBuffer = new OfflineBuffer(envs.ingestOfflineBufferMb * 1024L * 1024L / partitionCount);
+            partitions.add(new BatchingWriter(queue, envs.ingestBatchSize, envs.ingestLingerMs, sink, offlineBuffer));
+            queues.add(queue);
+        }
+        return new IngestPipeline(partitions, filters);
+    }
+
+    /**
+     * Create the sink a writer of the kpis table writes to. If several sinks are configured, every batch is written to all of them.
+     * @param envs environment variable values
+     * @param dimensions dimension tables of the normalized schema or null
+     * @param tablePartitions partitions of the kpis table or null if they are not managed
+     * @param partition index of the writer, used to name the files of the file sink
+     * @return sink
+     */
+    private static KpiSink createSink(EnvironmentVariables envs, DimensionTables dimensions, PartitionManager tablePartitions, int partition){
+        var sinks = new ArrayList<KpiSink>();
+        for(var type : envs.kpiSinks){
+            switch (type) {
+                case POSTGRES -> sinks.add(new KpiWriter(db, envs.postgresInsertMode, dimensions, tablePartitions));
+                case FILE -> {
+                    try {
+                        sinks.add(new KpiFileWriter(Path.of(envs.fileSinkDir), "kpis-" + partition, envs.fileSinkRotateMb * 1024L * 1024L, envs.fileSinkRotateMinutes * 60_000L));
+                    } catch (IOException e) {
+                        logger.error("Could not open file sink directory {}!", envs.fileSinkDir, e);
+                        System.exit(1);
+                    }
+                }
+            }
+        }
+        return sinks.size() == 1 ? sinks.get(0) : new FanOutSink(sinks);
     }
 
     /**
@@ -92,7 +415,213 @@ public class DatabaseConnector {
             System.exit(1);
         }
         var envs = new EnvironmentVariables(postgresDbDomain, postgresUser, postgresDb, postgresPw, mqttClientId, mqttMsgBrokerUrl);
+
+        // optional settings
+        envs.ingestQueueCapacity = readPositiveIntEnv("INGEST_QUEUE_CAPACITY", envs.ingestQueueCapacity);
+        envs.ingestBatchSize = readPositiveIntEnv("INGEST_BATCH_SIZE", envs.ingestBatchSize);
+        envs.ingestLingerMs = readPositiveIntEnv("INGEST_LINGER_MS", (int) envs.ingestLingerMs);
+        envs.ingestWriterThreads = readPositiveIntEnv("INGEST_WRITER_THREADS", envs.ingestWriterThreads);
+        envs.ingestBackpressurePolicy = readEnumEnv("INGEST_BACKPRESSURE_POLICY", BackpressurePolicy.class, envs.ingestBackpressurePolicy);
+        envs.ingestSpillDir = readEnv("INGEST_SPILL_DIR", envs.ingestSpillDir);
+        envs.ingestOfflineBufferMb = readPositiveIntEnv("INGEST_OFFLINE_BUFFER_MB", envs.ingestOfflineBufferMb);
+        envs.dedupWindowSeconds = readIntEnv("DEDUP_WINDOW_SECONDS", envs.dedupWindowSeconds, 0, Integer.MAX_VALUE);
+        envs.dedupMaxMb = readPositiveIntEnv("DEDUP_MAX_MB", envs.dedupMaxMb);
+        try {
+            envs.rollupIntervals = Arrays.stream(readEnv("ROLLUP_INTERVALS", "").split(","))
+                    .map(String::trim)
+                    .filter(interval -> !interval.isEmpty())
+                    .map(interval -> RollupInterval.valueOf(interval.toUpperCase()))
+                    .distinct()
+                    .toList();
+        } catch (IllegalArgumentException e) {
+            logger.error("Environment variable ROLLUP_INTERVALS must be a comma separated list of {} but is '{}'!", Arrays.toString(RollupInterval.values()), readEnv("ROLLUP_INTERVALS", ""));
+            System.exit(1);
+        }
+        envs.rollupLatenessSeconds = readIntEnv("ROLLUP_LATENESS_SECONDS", envs.rollupLatenessSeconds, 0, Integer.MAX_VALUE);
+        envs.rollupMaxWindows = readPositiveIntEnv("ROLLUP_MAX_WINDOWS", envs.rollupMaxWindows);
+        envs.rollupOnlyKpis = Arrays.stream(readEnv("ROLLUP_ONLY_KPIS", "").split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .toList();
+        if(!envs.rollupOnlyKpis.isEmpty() && envs.rollupIntervals.isEmpty()){
+            logger.error("Environment variable ROLLUP_ONLY_KPIS requires ROLLUP_INTERVALS to be set, otherwise KPIs would not be stored at all!");
+            System.exit(1);
+        }
+        try {
+            envs.compressionRules = Arrays.stream(readEnv("COMPRESSION_RULES", "").split(","))
+                    .map(String::trim)
+                    .filter(rule -> !rule.isEmpty())
+                    .map(CompressionRule::parse)
+                    .toList();
+        } catch (IllegalArgumentException e) {
+            logger.error("Environment variable COMPRESSION_RULES is invalid: {}", e.getMessage());
+            System.exit(1);
+        }
+        envs.compressionHeartbeatSeconds = readPositiveIntEnv("COMPRESSION_HEARTBEAT_SECONDS", envs.compressionHeartbeatSeconds);
+        envs.compressionMaxMb = readPositiveIntEnv("COMPRESSION_MAX_MB", envs.compressionMaxMb);
+        envs.spoolDir = readEnv("SPOOL_DIR", envs.spoolDir);
+        envs.spoolSegmentMb = readPositiveIntEnv("SPOOL_SEGMENT_MB", envs.spoolSegmentMb);
+        if(envs.spoolSegmentMb > 1024){
+            logger.error("Environment variable SPOOL_SEGMENT_MB must not be greater than 1024!");
+            System.exit(1);
+        }
+        envs.spoolMaxSegments = readPositiveIntEnv("SPOOL_MAX_SEGMENTS", envs.spoolMaxSegments);
+        try {
+            envs.kpiSinks = Arrays.stream(readEnv("KPI_SINKS", KpiSinkType.POSTGRES.name()).split(","))
+                    .map(String::trim)
+                    .filter(sink -> !sink.isEmpty())
+                    .map(sink -> KpiSinkType.valueOf(sink.toUpperCase()))
+                    .distinct()
+                    .toList();
+        } catch (IllegalArgumentException e) {
+            envs.kpiSinks = List.of();
+        }
+        if(envs.kpiSinks.isEmpty()){
+            logger.error("Environment variable KPI_SINKS must be a comma separated list of {} but is '{}'!", Arrays.toString(KpiSinkType.values()), readEnv("KPI_SINKS", ""));
+            System.exit(1);
+        }
+        envs.fileSinkDir = readEnv("FILE_SINK_DIR", envs.fileSinkDir);
+        envs.fileSinkRotateMb = readPositiveIntEnv("FILE_SINK_ROTATE_MB", envs.fileSinkRotateMb);
+        envs.fileSinkRotateMinutes = readPositiveIntEnv("FILE_SINK_ROTATE_MINUTES", envs.fileSinkRotateMinutes);
+        envs.mqttTopicFilters = Arrays.stream(readEnv("MQTT_TOPIC_FILTERS", String.join(",", envs.mqttTopicFilters)).split(","))
+                .map(String::trim)
+                .filter(filter -> !filter.isEmpty())
+                .toList();
+        if(envs.mqttTopicFilters.isEmpty()){
+            logger.error("Environment variable MQTT_TOPIC_FILTERS must contain at least one topic filter!");
+            System.exit(1);
+        }
+        try {
+            envs.mqttTopicRoutes = Arrays.stream(readEnv("MQTT_TOPIC_ROUTES", "").split(","))
+                    .map(String::trim)
+                    .filter(route -> !route.isEmpty())
+                    .map(TopicRoute::parse)
+                    .toList();
+        } catch (IllegalArgumentException e) {
+            logger.error("Environment variable MQTT_TOPIC_ROUTES is invalid: {}", e.getMessage());
+            System.exit(1);
+        }
+        envs.mqttSharedGroup = readEnv("MQTT_SHARED_GROUP", envs.mqttSharedGroup);
+        if(envs.mqttSharedGroup != null && envs.mqttSharedGroup.matches(".*[/+#].*")){
+            logger.error("Environment variable MQTT_SHARED_GROUP must not contain '/', '+' or '#' but is '{}'!", envs.mqttSharedGroup);
+            System.exit(1);
+        }
+        envs.mqttConnections = readPositiveIntEnv("MQTT_CONNECTIONS", envs.mqttConnections);
+        envs.mqttQos = readIntEnv("MQTT_QOS", envs.mqttQos, 0, 2);
+        envs.mqttReceiveMaximum = readIntEnv("MQTT_RECEIVE_MAXIMUM", envs.mqttReceiveMaximum, 1, 65535);
+        // acknowledgements are only sent after the commit if rows are written in the order they were received
+        if(envs.mqttQos > 0 && envs.spoolDir == null && envs.ingestBackpressurePolicy != BackpressurePolicy.BLOCK){
+            logger.warn("Using backpressure policy BLOCK instead of {} as messages are acknowledged manually with MQTT_QOS={}. The broker's receive maximum limits the number of queued messages.",
+                    envs.ingestBackpressurePolicy, envs.mqttQos);
+            envs.ingestBackpressurePolicy = BackpressurePolicy.BLOCK;
+        }
+        // rows of rollup-only KPIs are removed before they reach the queue or spool, so an acknowledged message would only exist in an open window
+        if(envs.mqttQos > 0 && !envs.rollupOnlyKpis.isEmpty()){
+            logger.error("Environment variable ROLLUP_ONLY_KPIS cannot be used with MQTT_QOS={} as messages would be acknowledged before their rollups are written!", envs.mqttQos);
+            System.exit(1);
+        }
+        envs.mqttMsgValidation = readEnumEnv("MQTT_MSG_VALIDATION", ValidationMode.class, envs.mqttMsgValidation);
+        envs.mqttDeadLetterFile = readEnv("MQTT_DEAD_LETTER_FILE", envs.mqttDeadLetterFile);
+        envs.mqttDeadLetterMaxMb = readPositiveIntEnv("MQTT_DEAD_LETTER_MAX_MB", envs.mqttDeadLetterMaxMb);
+        envs.errorLogRatePerMinute = readPositiveIntEnv("ERROR_LOG_RATE_PER_MINUTE", envs.errorLogRatePerMinute);
+        envs.errorLogBurst = readPositiveIntEnv("ERROR_LOG_BURST", envs.errorLogBurst);
+        envs.metricsPort = readIntEnv("METRICS_PORT", envs.metricsPort, 0, 65535);
+        envs.postgresInsertMode = readEnumEnv("POSTGRES_INSERT_MODE", InsertMode.class, envs.postgresInsertMode);
+        envs.postgresReconnectMaxDelaySeconds = readPositiveIntEnv("POSTGRES_RECONNECT_MAX_DELAY_SECONDS", envs.postgresReconnectMaxDelaySeconds);
+        envs.postgresSchemaMode = readEnumEnv("POSTGRES_SCHEMA_MODE", SchemaMode.class, envs.postgresSchemaMode);
+        envs.postgresDimensionCacheSize = readPositiveIntEnv("POSTGRES_DIMENSION_CACHE_SIZE", envs.postgresDimensionCacheSize);
+        envs.postgresPartitioning = readEnumEnv("POSTGRES_PARTITIONING", Partitioning.class, envs.postgresPartitioning);
+        envs.postgresPartitionsAhead = readIntEnv("POSTGRES_PARTITIONS_AHEAD", envs.postgresPartitionsAhead, 0, 1000);
+        envs.postgresPartitionsBehind = readIntEnv("POSTGRES_PARTITIONS_BEHIND", envs.postgresPartitionsBehind, 0, 1000);
+        envs.postgresRewriteBatchedInserts = readBooleanEnv("POSTGRES_REWRITE_BATCHED_INSERTS", envs.postgresRewriteBatchedInserts);
+        envs.shutdownDrainTimeoutSeconds = readPositiveIntEnv("SHUTDOWN_DRAIN_TIMEOUT_SECONDS", envs.shutdownDrainTimeoutSeconds);
         logger.info("Read configuration from environment variables: \n{}", envs);
         return envs;
     }
+
+    /**
+     * Read an optional environment variable.
+     * @param name name of environment variable
+     * @param defaultValue value used if the environment variable is not set
+     * @return value of environment variable or default value
+     */
+    private static String readEnv(String name, String defaultValue){
+        var value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Read an optional environment variable which must be a positive integer and leave program if it is not.
+     * @param name name of environment variable
+     * @param defaultValue value used if the environment variable is not set
+     * @return value of environment variable or default value
+     */
+    private static int readPositiveIntEnv(String name, int defaultValue){
+        var value = readEnv(name, null);
+        if(value == null) return defaultValue;
+        try {
+            var parsed = Integer.parseInt(value);
+            if(parsed > 0) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        logger.error("Environment variable {} must be a positive integer but is '{}'!", name, value);
+        System.exit(1);
+        return defaultValue;
+    }
+
+    /**
+     * Read an optional environment variable which must be an integer within the given range and leave program if it is not.
+     * @param name name of environment variable
+     * @param defaultValue value used if the environment variable is not set
+     * @param min minimum allowed value
+     * @param max maximum allowed value
+     * @return value of environment variable or default value
+     */
+    private static int readIntEnv(String name, int defaultValue, int min, int max){
+        var value = readEnv(name, null);
+        if(value == null) return defaultValue;
+        try {
+            var parsed = Integer.parseInt(value);
+            if(parsed >= min && parsed <= max) return parsed;
+        } catch (NumberFormatException ignored) {
+        }
+        logger.error("Environment variable {} must be an integer between {} and {} but is '{}'!", name, min, max, value);
+        System.exit(1);
+        return defaultValue;
+    }
+
+    /**
+     * Read an optional environment variable which must be either true or false and leave program if it is not.
+     * @param name name of environment variable
+     * @param defaultValue value used if the environment variable is not set
+     * @return value of environment variable or default value
+     */
+    private static boolean readBooleanEnv(String name, boolean defaultValue){
+        var value = readEnv(name, null);
+        if(value == null) return defaultValue;
+        if(value.equalsIgnoreCase("true")) return true;
+        if(value.equalsIgnoreCase("false")) return false;
+        logger.error("Environment variable {} must be either true or false but is '{}'!", name, value);
+        System.exit(1);
+        return defaultValue;
+    }
+
+    /**
+     * Read an optional environment variable which must be the name of an enum constant and leave program if it is not.
+     * @param name name of environment variable
+     * @param enumType type of enum
+     * @param defaultValue value used if the environment variable is not set
+     * @return value of environment variable or default value
+     */
+    private static <T extends Enum<T>> T readEnumEnv(String name, Class<T> enumType, T defaultValue){
+        var value = readEnv(name, null);
+        if(value == null) return defaultValue;
+        try {
+            return Enum.valueOf(enumType, value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.error("Environment variable {} must be one of {} but is '{}'!", name, Arrays.toString(enumType.getEnumConstants()), value);
+            System.exit(1);
+            return defaultValue;
+        }
+    }
 }
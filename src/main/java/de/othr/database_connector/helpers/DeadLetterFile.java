@@ -0,0 +1,211 @@
+package de.othr.database_connector.helpers;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded file rejected messages are written to for offline inspection.
+ * Every message is written as one line of JSON with the time it was rejected, its topic, the cause and description of the rejection
+ * and its payload encoded as Base64, as rejected payloads are not necessarily valid UTF-8:
+ * <pre>{"time":"2021-06-01T12:00:00Z","topic":"kpis/1","cause":"SCHEMA","detail":"...","payload":"eyJ..."}</pre>
+ * Once the file reaches half of the maximum size it is renamed to {@code <file>.1}, replacing the previous one, and a new file is started.
+ * If the file cannot be renamed, records are appended to it beyond its size and renaming is retried a minute later.
+ * If the file cannot be written, it is reopened on the next record.
+ * Records are buffered and flushed once per second, so a flood of rejected messages does not cause a write per message.
+ * @author Thomas Pilz
+ */
+public class DeadLetterFile implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterFile.class);
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final long ROTATE_RETRY_MS = 60_000;
+    private final Path file;
+    private final Path rotated;
+    private final long maxFileBytes;
+    private final StringBuilder record = new StringBuilder(1024);
+    private final ScheduledExecutorService flusher;
+    /**
+     * Stream of the file or null if it has to be reopened
+     */
+    private OutputStream out;
+    private long fileBytes;
+    /**
+     * Time in milliseconds since the Unix epoch before which the file is not renamed again after renaming failed
+     */
+    private long rotateRetryAt = 0;
+    private boolean dirty = false;
+    /**
+     * True if the last write failed, so a failure is only logged once until a write succeeds again
+     */
+    private boolean failed = false;
+    private boolean closed = false;
+
+    /**
+     * Open a dead letter file and append to it if it exists.
+     * @param file path of file
+     * @param maxBytes maximum size of the file and its rotated predecessor together
+     * @throws IOException if the file cannot be opened
+     */
+    public DeadLetterFile(Path file, long maxBytes) throws IOException {
+        this.file = file;
+        this.rotated = file.resolveSibling(file.getFileName() + ".1");
+        this.maxFileBytes = maxBytes / 2;
+        var dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        open();
+        flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("dead-letters").factory());
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(file);
+    }
+
+    /**
+     * Append a rejected message.
+     * @param topic topic of message
+     * @param cause cause of the rejection
+     * @param detail description of the rejection
+     * @param payload payload of message
+     * @return true if the message was written, false if it is larger than half of the maximum size or the file cannot be written
+     */
+    public synchronized boolean write(String topic, String cause, String detail, byte[] payload) {
+        if (closed) return false;
+        record.setLength(0);
+        record.append("{\"time\":\"").append(Instant.now()).append("\",\"topic\":");
+        appendString(topic);
+        record.append(",\"cause\":");
+        appendString(cause);
+        record.append(",\"detail\":");
+        appendString(detail);
+        record.append(",\"payload\":\"").append(Base64.getEncoder().encodeToString(payload)).append("\"}\n");
+        var bytes = record.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxFileBytes) return false;
+        try {
+            if (out == null) open();
+            if (fileBytes + bytes.length > maxFileBytes && System.currentTimeMillis() >= rotateRetryAt) rotate();
+            out.write(bytes);
+            fileBytes += bytes.length;
+            dirty = true;
+            failed = false;
+            Metrics.DEAD_LETTERS.increment();
+            return true;
+        } catch (IOException e) {
+            // logged once, the file is most likely not writable until an operator intervenes
+            if (!failed) logger.warn("Could not write rejected message to dead letter file {}! It is reopened with the next message.", file, e);
+            failed = true;
+            closeQuietly();
+            return false;
+        }
+    }
+
+    /**
+     * Append a JSON string literal.
+     */
+    private void appendString(String s) {
+        record.append('"');
+        for (var i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+                case '"' -> record.append("\\\"");
+                case '\\' -> record.append("\\\\");
+                case '\n' -> record.append("\\n");
+                case '\r' -> record.append("\\r");
+                case '\t' -> record.append("\\t");
+                default -> {
+                    if (c < 0x20) record.append("\\u%04x".formatted((int) c));
+                    else record.append(c);
+                }
+            }
+        }
+        record.append('"');
+    }
+
+    /**
+     * Rename the file to the rotated file and start a new one. If it cannot be renamed, the file is reopened and appended to.
+     * @throws IOException if the file cannot be reopened
+     */
+    private void rotate() throws IOException {
+        out.close();
+        out = null;
+        try {
+            Files.move(file, rotated, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Could not rotate dead letter file {}! Appending to it and retrying in {} s.", file, ROTATE_RETRY_MS / 1000, e);
+            rotateRetryAt = System.currentTimeMillis() + ROTATE_RETRY_MS;
+        }
+        open();
+    }
+
+    private void closeQuietly() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // the file is reopened anyway
+        }
+        out = null;
+    }
+
+    private synchronized void flush() {
+        if (!dirty || out == null) return;
+        try {
+            out.flush();
+            dirty = false;
+        } catch (IOException e) {
+            if (!failed) logger.warn("Could not flush dead letter file {}! It is reopened with the next message.", file, e);
+            failed = true;
+            dirty = false;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        synchronized (this) {
+            closed = true;
+            if (out == null) return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("Could not close dead letter file {}!", file, e);
+            }
+            out = null;
+        }
+    }
+}
@@ -15,6 +15,18 @@ See the License for the specific language governing permissions and
 limitations under the License.
  */
 
+import de.othr.database_connector.ingest.BackpressurePolicy;
+import de.othr.database_connector.ingest.CompressionRule;
+import de.othr.database_connector.ingest.RollupInterval;
+import de.othr.database_connector.services.InsertMode;
+import de.othr.database_connector.services.KpiSinkType;
+import de.othr.database_connector.services.SchemaMode;
+import de.othr.database_connector.services.Partitioning;
+import de.othr.database_connector.services.TopicRoute;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
 /**
  * All environment variables.
  * @author Thomas Pilz
@@ -26,6 +38,57 @@ public class EnvironmentVariables {
     public String postgresPw;
     public String mqttClientId;
     public String mqttMsgBrokerUrl;
+    // Optional settings of the ingest pipeline
+    public int ingestQueueCapacity = 100000;
+    public int ingestBatchSize = 5000;
+    public long ingestLingerMs = 100;
+    public int ingestWriterThreads = 1;
+    public BackpressurePolicy ingestBackpressurePolicy = BackpressurePolicy.SPILL;
+    public String ingestSpillDir = "spill";
+    public int ingestOfflineBufferMb = 64;
+    public int dedupWindowSeconds = 0;
+    public int dedupMaxMb = 64;
+    public List<RollupInterval> rollupIntervals = List.of();
+    public int rollupLatenessSeconds = 10;
+    public int rollupMaxWindows = 262144;
+    public List<String> rollupOnlyKpis = List.of();
+    public List<CompressionRule> compressionRules = List.of();
+    public int compressionHeartbeatSeconds = 300;
+    public int compressionMaxMb = 64;
+    public String spoolDir = null;
+    public int spoolSegmentMb = 64;
+    public int spoolMaxSegments = 16;
+    // Optional settings of the sinks
+    public List<KpiSinkType> kpiSinks = List.of(KpiSinkType.POSTGRES);
+    public String fileSinkDir = "archive";
+    public int fileSinkRotateMb = 64;
+    public int fileSinkRotateMinutes = 60;
+    // Optional settings of the MQTT client
+    public List<String> mqttTopicFilters = List.of("#");
+    public List<TopicRoute> mqttTopicRoutes = List.of();
+    public String mqttSharedGroup = null;
+    public int mqttConnections = 1;
+    public int mqttQos = 0;
+    public int mqttReceiveMaximum = 1000;
+    public ValidationMode mqttMsgValidation = ValidationMode.STRICT;
+    public String mqttDeadLetterFile = null;
+    public int mqttDeadLetterMaxMb = 64;
+    // Optional settings of the error log
+    public int errorLogRatePerMinute = 60;
+    public int errorLogBurst = 10;
+    // Optional settings of the metrics endpoint
+    public int metricsPort = 9404;
+    // Optional settings of the database writers
+    public InsertMode postgresInsertMode = InsertMode.INSERT;
+    public int postgresReconnectMaxDelaySeconds = 180;
+    public SchemaMode postgresSchemaMode = SchemaMode.DENORMALIZED;
+    public int postgresDimensionCacheSize = 65536;
+    public Partitioning postgresPartitioning = Partitioning.NONE;
+    public int postgresPartitionsAhead = 3;
+    public int postgresPartitionsBehind = 7;
+    public boolean postgresRewriteBatchedInserts = false;
+    // Optional settings of the shutdown
+    public int shutdownDrainTimeoutSeconds = 20;
 
     public EnvironmentVariables(String postgresDbDomain, String postgresUser, String postgresDb, String postgresPw, String mqttClientId, String mqttMsgBrokerUrl) {
         this.postgresDbDomain = postgresDbDomain;
@@ -46,6 +109,59 @@ public class EnvironmentVariables {
         \tPOSTGRES_PW=%s
         \tMQTT_CLIENT_ID=%s
         \tMQTT_MSG_BROKER_URL=%s
-        """.formatted(postgresDbDomain, postgresUser, postgresDb, "***", mqttClientId, mqttMsgBrokerUrl);
+        \tINGEST_QUEUE_CAPACITY=%d
+        \tINGEST_BATCH_SIZE=%d
+        \tINGEST_LINGER_MS=%d
+        \tINGEST_WRITER_THREADS=%d
+        \tINGEST_BACKPRESSURE_POLICY=%s
+        \tINGEST_SPILL_DIR=%s
+        \tINGEST_OFFLINE_BUFFER_MB=%d
+        \tDEDUP_WINDOW_SECONDS=%d
+        \tDEDUP_MAX_MB=%d
+        \tROLLUP_INTERVALS=%s
+        \tROLLUP_LATENESS_SECONDS=%d
+        \tROLLUP_MAX_WINDOWS=%d
+        \tROLLUP_ONLY_KPIS=%s
+        \tCOMPRESSION_RULES=%s
+        \tCOMPRESSION_HEARTBEAT_SECONDS=%d
+        \tCOMPRESSION_MAX_MB=%d
+        \tSPOOL_DIR=%s
+        \tSPOOL_SEGMENT_MB=%d
+        \tSPOOL_MAX_SEGMENTS=%d
+        \tKPI_SINKS=%s
+        \tFILE_SINK_DIR=%s
+        \tFILE_SINK_ROTATE_MB=%d
+        \tFILE_SINK_ROTATE_MINUTES=%d
+        \tMQTT_TOPIC_FILTERS=%s
+        \tMQTT_TOPIC_ROUTES=%s
+        \tMQTT_SHARED_GROUP=%s
+        \tMQTT_CONNECTIONS=%d
+        \tMQTT_QOS=%d
+        \tMQTT_RECEIVE_MAXIMUM=%d
+        \tMQTT_MSG_VALIDATION=%s
+        \tMQTT_DEAD_LETTER_FILE=%s
+        \tMQTT_DEAD_LETTER_MAX_MB=%d
+        \tERROR_LOG_RATE_PER_MINUTE=%d
+        \tERROR_LOG_BURST=%d
+        \tMETRICS_PORT=%d
+        \tPOSTGRES_INSERT_MODE=%s
+        \tPOSTGRES_RECONNECT_MAX_DELAY_SECONDS=%d
+        \tPOSTGRES_SCHEMA_MODE=%s
+        \tPOSTGRES_DIMENSION_CACHE_SIZE=%d
+        \tPOSTGRES_PARTITIONING=%s
+        \tPOSTGRES_PARTITIONS_AHEAD=%d
+        \tPOSTGRES_PARTITIONS_BEHIND=%d
+        \tPOSTGRES_REWRITE_BATCHED_INSERTS=%b
+        \tSHUTDOWN_DRAIN_TIMEOUT_SECONDS=%d
+        """.formatted(postgresDbDomain, postgresUser, postgresDb, "***", mqttClientId, mqttMsgBrokerUrl,
+                ingestQueueCapacity, ingestBatchSize, ingestLingerMs, ingestWriterThreads, ingestBackpressurePolicy, ingestSpillDir, ingestOfflineBufferMb,
+                dedupWindowSeconds, dedupMaxMb,
+                rollupIntervals.stream().map(RollupInterval::name).collect(Collectors.joining(",")), rollupLatenessSeconds, rollupMaxWindows, String.join(",", rollupOnlyKpis),
+                compressionRules.stream().map(CompressionRule::toString).collect(Collectors.joining(",")), compressionHeartbeatSeconds, compressionMaxMb, spoolDir, spoolSegmentMb, spoolMaxSegments,
+                kpiSinks.stream().map(KpiSinkType::name).collect(Collectors.joining(",")), fileSinkDir, fileSinkRotateMb, fileSinkRotateMinutes, String.join(",", mqttTopicFilters),
+                mqttTopicRoutes.stream().map(TopicRoute::toString).collect(Collectors.joining(",")), mqttSharedGroup, mqttConnections, mqttQos, mqttReceiveMaximum, mqttMsgValidation,
+                mqttDeadLetterFile, mqttDeadLetterMaxMb, errorLogRatePerMinute, errorLogBurst, metricsPort,
+                postgresInsertMode, postgresReconnectMaxDelaySeconds, postgresSchemaMode, postgresDimensionCacheSize, postgresPartitioning, postgresPartitionsAhead, postgresPartitionsBehind, postgresRewriteBatchedInserts,
+                shutdownDrainTimeoutSeconds);
     }
 }
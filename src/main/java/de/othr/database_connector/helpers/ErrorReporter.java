@@ -0,0 +1,160 @@
+package de.othr.database_connector.helpers;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.metrics.Metrics;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accounts for errors which can occur for every message or batch, e.g. malformed messages of a misbehaving device.
+ * Every error is counted per cause (and rejected messages per topic as well), but only few of them are logged:
+ * log messages of every cause are rate-limited by a token bucket, so a flood of errors cannot saturate the disk with log output.
+ * The number of suppressed messages is reported with the next message logged for the same cause.
+ * Stack traces are only logged for a sample of the logged errors.
+ * Rejected payloads can be captured to a {@link DeadLetterFile} for offline inspection, as they are never logged.
+ * @author Thomas Pilz
+ */
+public class ErrorReporter {
+
+    /**
+     * Every n-th logged error of a cause is logged with its stack trace, starting with the first one
+     */
+    private static final int STACK_TRACE_SAMPLE = 100;
+    private static volatile int logsPerMinute = 60;
+    private static volatile int burst = 10;
+    private final Logger logger;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private DeadLetterFile deadLetters;
+
+    /**
+     * Create a new error reporter.
+     * @param logger logger errors are logged with, usually the one of the class the errors occur in
+     */
+    public ErrorReporter(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Set the rate at which errors of the same cause are logged. Applies to causes which have not been logged yet.
+     * @param logsPerMinute number of log messages per minute and cause in the long run
+     * @param burst number of log messages per cause which may be logged at once
+     */
+    public static void setLogRate(int logsPerMinute, int burst) {
+        if (logsPerMinute <= 0 || burst <= 0) throw new IllegalArgumentException("Log rate and burst must be positive!");
+        ErrorReporter.logsPerMinute = logsPerMinute;
+        ErrorReporter.burst = burst;
+    }
+
+    public DeadLetterFile getDeadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * Set the file rejected payloads are written to.
+     * @param deadLetters dead letter file or null to discard rejected payloads
+     */
+    public void setDeadLetters(DeadLetterFile deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    /**
+     * Account for a rejected message.
+     * @param topic topic of the message
+     * @param cause reason the message was rejected for, must be one of a small set of values as it is used as metric label
+     * @param detail description of what is wrong with the message
+     * @param payload payload of the message
+     */
+    public void reject(String topic, String cause, String detail, byte[] payload) {
+        Metrics.MESSAGES_INVALID.increment(cause);
+        Metrics.MESSAGES_INVALID_TOPICS.increment(topic);
+        var captured = deadLetters != null && deadLetters.write(topic, cause, detail, payload);
+        var bucket = bucket(cause);
+        var suppressed = bucket.acquire();
+        if (suppressed < 0) return;
+        logger.warn("Rejected message of topic {} ({}): {}{}{}", topic, cause, detail,
+                captured ? " [payload written to dead letter file]" : "", suppressedNote(suppressed));
+    }
+
+    /**
+     * Account for an error.
+     * @param cause cause of the error, must be one of a small set of values as it is used as metric label
+     * @param message description of the error
+     * @param e exception or null
+     */
+    public void error(String cause, String message, Throwable e) {
+        Metrics.ERRORS.increment(cause);
+        var bucket = bucket(cause);
+        var suppressed = bucket.acquire();
+        if (suppressed < 0) return;
+        if (e == null) logger.warn("{}{}", message, suppressedNote(suppressed));
+        // the sample is racy if errors of a cause occur on several threads, which only affects which message gets the stack trace
+        else if ((bucket.getLogged() - 1) % STACK_TRACE_SAMPLE == 0) logger.warn("{}{}", message, suppressedNote(suppressed), e);
+        else logger.warn("{} {}{}", message, e, suppressedNote(suppressed));
+    }
+
+    private TokenBucket bucket(String cause) {
+        var bucket = buckets.get(cause);
+        return bucket != null ? bucket : buckets.computeIfAbsent(cause, c -> new TokenBucket(logsPerMinute, burst));
+    }
+
+    private static String suppressedNote(long suppressed) {
+        return suppressed == 0 ? "" : " (%d similar messages suppressed)".formatted(suppressed);
+    }
+
+    /**
+     * Token bucket limiting the log messages of one cause
+     */
+    private static final class TokenBucket {
+        private final double tokensPerNano;
+        private final int capacity;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long suppressed = 0;
+        private long logged = 0;
+
+        TokenBucket(int perMinute, int capacity) {
+            this.tokensPerNano = perMinute / 60e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Take a token if one is available.
+         * @return -1 if no token is available and the message must be suppressed,
+         * otherwise the number of messages suppressed since the last message was logged
+         */
+        synchronized long acquire() {
+            var now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+            if (tokens < 1) {
+                suppressed++;
+                return -1;
+            }
+            tokens--;
+            logged++;
+            var count = suppressed;
+            suppressed = 0;
+            return count;
+        }
+
+        synchronized long getLogged() {
+            return logged;
+        }
+    }
+}
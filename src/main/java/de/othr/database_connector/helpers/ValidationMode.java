@@ -0,0 +1,37 @@
+package de.othr.database_connector.helpers;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * How received messages are validated against the message JSON Schema.
+ * @author Thomas Pilz
+ */
+public enum ValidationMode {
+    /**
+     * Messages are only checked by the streaming decoder. The schema is never evaluated.
+     */
+    OFF,
+    /**
+     * Every message must conform to the schema. Evaluating the schema is skipped for messages the decoder accepts
+     * as long as the decoder was written for the deployed schema. Messages the decoder rejects are evaluated
+     * in order to log detailed errors.
+     */
+    STRICT,
+    /**
+     * Every message is evaluated against the schema in addition to the checks of the decoder.
+     */
+    FULL
+}
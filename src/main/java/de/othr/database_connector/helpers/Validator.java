@@ -16,10 +16,18 @@ limitations under the License.
  */
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.networknt.schema.JsonSchema;
 import com.networknt.schema.JsonSchemaFactory;
 import com.networknt.schema.SpecVersion;
 import com.networknt.schema.ValidationMessage;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Set;
 
 /**
@@ -29,13 +37,61 @@ import java.util.Set;
 public class Validator {
 
 
-    private static final JsonSchemaFactory jsFactory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V7);
+    private static final JsonSchemaFactory jsFactory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V201909);
+    private static final ObjectMapper jsonMapper = new ObjectMapper();
+    private static final JsonNode msgSchemaNode = loadSchemaNode("kpi_msg_schema.json");
+    /**
+     * Message schema compiled once. It is safe to share between threads as all its validators are initialized upfront.
+     */
+    private static final JsonSchema msgSchema = compileSchema(msgSchemaNode);
+
+    private static JsonNode loadSchemaNode(String resource){
+        try (var inputStream = Validator.class.getClassLoader().getResourceAsStream(resource)) {
+            if(inputStream == null) throw new IllegalStateException("Schema %s not found on classpath".formatted(resource));
+            return jsonMapper.readTree(inputStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static JsonSchema compileSchema(JsonNode schemaNode){
+        var schema = jsFactory.getSchema(schemaNode);
+        schema.initializeValidators();
+        return schema;
+    }
+
+    /**
+     * Get a fingerprint of the message schema which does not depend on formatting.
+     * @return SHA-256 of the compact JSON representation of the schema as hex string
+     */
+    public static String getMsgSchemaFingerprint(){
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(msgSchemaNode.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
     public static ValidityChecker isMsgValid(JsonNode msg){
-        var inputStream = Validator.class.getClassLoader().getResourceAsStream("kpi_msg_schema.json");
-        var schema = jsFactory.getSchema(inputStream);
-        Set<ValidationMessage> errors = schema.validate(msg);
+        Set<ValidationMessage> errors = msgSchema.validate(msg);
         if(errors.size() == 0) return ValidityChecker.valid();
         return ValidityChecker.invalid("Message must conform to JSON Schema! Errors found: %s".formatted(errors.toString()));
     }
+
+    /**
+     * Validate a raw message payload against the message schema.
+     * @param payload JSON payload
+     * @return validation result
+     */
+    public static ValidityChecker isMsgValid(byte[] payload){
+        JsonNode msg;
+        try {
+            msg = jsonMapper.readTree(payload);
+        } catch (IOException e) {
+            return ValidityChecker.invalid("Message could not be parsed as JSON!");
+        }
+        if(msg == null) return ValidityChecker.invalid("Message is empty!");
+        return isMsgValid(msg);
+    }
 }
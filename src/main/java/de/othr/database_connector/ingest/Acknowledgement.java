@@ -0,0 +1,30 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Acknowledgement of a received message which is sent once the KPIs of the message are stored,
+ * e.g. the MQTT PUBACK of a QoS 1 message. Passed along with the KPIs to the {@link IngestPipeline}.
+ * @author Thomas Pilz
+ */
+@FunctionalInterface
+public interface Acknowledgement {
+
+    /**
+     * Acknowledge the message. Called at most once, usually by a writer thread.
+     */
+    void acknowledge();
+}
@@ -0,0 +1,36 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Defines what happens when a message arrives while the ingest queue is full.
+ * @author Thomas Pilz
+ */
+public enum BackpressurePolicy {
+    /**
+     * Wait until the writer threads have made room in the queue.
+     * This stalls the MQTT callback thread and therefore the whole broker connection while the database is slow.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest queued KPIs to make room for the new message.
+     */
+    DROP_OLDEST,
+    /**
+     * Append the message to a spill spool on disk. Spilled messages are written to the database once the queue has drained.
+     */
+    SPILL
+}
@@ -0,0 +1,132 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.kpi.KpiBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writer which drains an {@link IngestQueue} and writes batches of KPI rows to a {@link KpiSink}
+ * (e.g. the database) whenever the batch size or the linger time is reached.
+ * While the sink is unavailable batches are kept in an {@link OfflineBuffer} so that the queue keeps draining.
+ * Once the sink is available again buffered batches are written back-to-back before any new batches.
+ * Acknowledgements of messages are sent once all of their rows have been written (or dropped), as rows are written in the order they were queued.
+ * This only holds for {@link BackpressurePolicy#BLOCK}, with the other policies messages may be acknowledged before their rows are written.
+ * @author Thomas Pilz
+ */
+public class BatchingWriter implements IngestPartition {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchingWriter.class);
+    /**
+     * Limits the log output of batches which fail over and over again. Shared by all writers.
+     */
+    private static final ErrorReporter errors = new ErrorReporter(logger);
+    private final IngestQueue queue;
+    private final int batchSize;
+    private final long lingerMs;
+    private final KpiSink sink;
+    private final OfflineBuffer offlineBuffer;
+    private final CommitTracker commits = new CommitTracker();
+    private volatile boolean running = true;
+    private volatile boolean finishing = false;
+
+    /**
+     * Create a new batching writer.
+     * @param queue queue to take KPIs from
+     * @param batchSize maximum number of KPIs per batch
+     * @param lingerMs maximum time in milliseconds to wait for a batch to fill up
+     * @param sink destination of batches
+     * @param offlineBuffer buffer for batches while the sink is unavailable
+     */
+    public BatchingWriter(IngestQueue queue, int batchSize, long lingerMs, KpiSink sink, OfflineBuffer offlineBuffer) {
+        this.queue = queue;
+        this.batchSize = batchSize;
+        this.lingerMs = lingerMs;
+        this.sink = sink;
+        this.offlineBuffer = offlineBuffer;
+    }
+
+    @Override
+    public void offer(KpiBatch rows, Acknowledgement ack) throws InterruptedException {
+        var lastRow = queue.offer(rows);
+        if(ack == null) return;
+        // rows which did not make it into the queue are acknowledged right away as they are either dropped or spilled to disk.
+        // Messages without rows (e.g. duplicates) are acknowledged once all rows queued before them are written.
+        if(lastRow <= 0) ack.acknowledge();
+        else commits.track(lastRow, ack);
+    }
+
+    @Override
+    public void run() {
+        var batch = new KpiBatch(batchSize);
+        // batch whose previous write failed, so that the sink knows when it is retried
+        KpiBatch failed = null;
+        while(running){
+            try {
+                var available = sink.isAvailable();
+                // write one buffered batch per iteration so that the queue keeps draining while the backlog is written
+                if(available && !offlineBuffer.isEmpty()){
+                    var buffered = offlineBuffer.peek();
+                    if(sink.write(buffered, buffered == failed)){
+                        offlineBuffer.remove();
+                        commits.completed(buffered.size());
+                        failed = null;
+                    } else {
+                        failed = buffered;
+                        available = false;
+                    }
+                }
+                // do not linger while there is a backlog to write
+                var linger = available && !offlineBuffer.isEmpty() ? 0 : lingerMs;
+                if(queue.drain(batch, batchSize, linger) == 0){
+                    if(available) sink.flush();
+                    if(finishing && offlineBuffer.isEmpty()) break;
+                    continue;
+                }
+                if(!available || !offlineBuffer.isEmpty() || !sink.write(batch, false)){
+                    if(available && offlineBuffer.isEmpty()) failed = batch;
+                    commits.completed(offlineBuffer.add(batch));
+                    batch = new KpiBatch(batchSize);
+                    continue;
+                }
+                commits.completed(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e){
+                errors.error("WRITE", "Could not write batch of %d KPIs!".formatted(batch.size()), e);
+                commits.completed(batch.size());
+            }
+            batch.clear();
+        }
+        sink.close();
+        var unwritten = queue.size() + offlineBuffer.size();
+        if(unwritten > 0) logger.warn("Writer {} stopped with {} unwritten KPIs", Thread.currentThread().getName(), unwritten);
+        else logger.info("Writer {} stopped", Thread.currentThread().getName());
+    }
+
+    @Override
+    public void stop(){
+        running = false;
+    }
+
+    @Override
+    public void finish(){
+        finishing = true;
+    }
+}
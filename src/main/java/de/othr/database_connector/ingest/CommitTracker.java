@@ -0,0 +1,67 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.PriorityQueue;
+
+/**
+ * Sends the acknowledgements of messages once all of their KPIs have been written.
+ * Rows are identified by their position in the sequence of all rows ever offered to a partition:
+ * a message whose last row has position n is acknowledged once n rows have been written (committed, rejected or dropped).
+ * This relies on the partition writing rows in the order they were offered. Thread-safe.
+ * @author Thomas Pilz
+ */
+public class CommitTracker {
+
+    private record Pending(long lastRow, Acknowledgement ack) {}
+
+    private final PriorityQueue<Pending> pending = new PriorityQueue<>((a, b) -> Long.compare(a.lastRow, b.lastRow));
+    private long completedRows = 0;
+
+    /**
+     * Track the acknowledgement of a message.
+     * Producers may call this in any order, rows that are already written are acknowledged right away.
+     * @param lastRow position of the last row of the message in the sequence of offered rows (starting at 1)
+     * @param ack acknowledgement of the message
+     */
+    public void track(long lastRow, Acknowledgement ack) {
+        synchronized (this) {
+            if (lastRow > completedRows) {
+                pending.add(new Pending(lastRow, ack));
+                return;
+            }
+        }
+        ack.acknowledge();
+    }
+
+    /**
+     * Report that the next rows have been written and acknowledge all messages which are written completely.
+     * Called by the writer thread of the partition.
+     * @param rows number of rows written
+     */
+    public synchronized void completed(int rows) {
+        completedRows += rows;
+        while (!pending.isEmpty() && pending.peek().lastRow <= completedRows) pending.poll().ack.acknowledge();
+    }
+
+    /**
+     * Get the number of messages whose acknowledgement is outstanding.
+     * @return number of unacknowledged messages
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -0,0 +1,36 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * How the {@link Compressor} decides whether a KPI changed significantly enough to be written.
+ * @author Thomas Pilz
+ */
+public enum CompressionMode {
+    /**
+     * Write every KPI
+     */
+    NONE,
+    /**
+     * Write a KPI if its value differs from the last written value by more than the deviation
+     */
+    DEADBAND,
+    /**
+     * Hold back a KPI as long as the straight line from the last written KPI to it passes all KPIs held back before within the deviation.
+     * Once a KPI does not fit, the KPI held back last is written, so interpolating between written KPIs reproduces every dropped KPI within the deviation.
+     */
+    SWINGING_DOOR
+}
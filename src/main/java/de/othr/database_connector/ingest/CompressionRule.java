@@ -0,0 +1,96 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+
+import java.math.BigDecimal;
+import java.util.regex.Pattern;
+
+/**
+ * Rule assigning a {@link CompressionMode} to the KPIs whose name matches a pattern. Patterns may contain the wildcards {@code *} (any characters)
+ * and {@code ?} (one character). Written as {@code <pattern>=<mode>:<deviation>} with an absolute deviation or a deviation in percent
+ * of the last written value, or as {@code <pattern>=NONE}, e.g. {@code temperature*=DEADBAND:0.5}, {@code pressure=SWINGING_DOOR:2%}.
+ * @param pattern pattern of KPI names
+ * @param mode compression mode
+ * @param deviation deviation within which a value does not count as change, null for {@link CompressionMode#NONE}
+ * @param percent true if the deviation is a percentage of the last written value
+ * @author Thomas Pilz
+ */
+public record CompressionRule(String pattern, CompressionMode mode, BigDecimal deviation, boolean percent) {
+
+    public CompressionRule {
+        if (pattern.isEmpty()) throw new IllegalArgumentException("Pattern of compression rule must not be empty!");
+        if ((mode == CompressionMode.NONE) != (deviation == null)) throw new IllegalArgumentException("Only modes DEADBAND and SWINGING_DOOR require a deviation!");
+        if (deviation != null && deviation.signum() < 0) throw new IllegalArgumentException("Deviation must not be negative!");
+        if (deviation != null && !percent) KpiBatch.toScaled(deviation);
+    }
+
+    /**
+     * Parse a rule written as {@code <pattern>=<mode>:<deviation>[%]} or {@code <pattern>=NONE}.
+     * @param rule rule
+     * @return parsed rule
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public static CompressionRule parse(String rule) {
+        var separator = rule.lastIndexOf('=');
+        if (separator < 0) throw new IllegalArgumentException("Compression rule '%s' must be of the form <pattern>=<mode>:<deviation>!".formatted(rule));
+        var pattern = rule.substring(0, separator).trim();
+        var target = rule.substring(separator + 1).trim();
+        var deviationSeparator = target.indexOf(':');
+        var modeName = (deviationSeparator < 0 ? target : target.substring(0, deviationSeparator)).trim();
+        CompressionMode mode;
+        try {
+            mode = CompressionMode.valueOf(modeName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown mode '%s' of compression rule '%s'! Must be NONE, DEADBAND:<deviation> or SWINGING_DOOR:<deviation>.".formatted(modeName, rule));
+        }
+        if (deviationSeparator < 0) return new CompressionRule(pattern, mode, null, false);
+        var deviation = target.substring(deviationSeparator + 1).trim();
+        var percent = deviation.endsWith("%");
+        if (percent) deviation = deviation.substring(0, deviation.length() - 1).trim();
+        try {
+            return new CompressionRule(pattern, mode, new BigDecimal(deviation), percent);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid deviation '%s' of compression rule '%s'!".formatted(deviation, rule));
+        }
+    }
+
+    /**
+     * Compile the pattern into a regular expression.
+     * @return regular expression matching the KPI names matched by the pattern
+     */
+    public Pattern compilePattern() {
+        var regex = new StringBuilder();
+        var literal = new StringBuilder();
+        for (var c : pattern.toCharArray()) {
+            if (c != '*' && c != '?') {
+                literal.append(c);
+                continue;
+            }
+            if (!literal.isEmpty()) regex.append(Pattern.quote(literal.toString()));
+            literal.setLength(0);
+            regex.append(c == '*' ? ".*" : ".");
+        }
+        if (!literal.isEmpty()) regex.append(Pattern.quote(literal.toString()));
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    @Override
+    public String toString() {
+        return deviation == null ? "%s=%s".formatted(pattern, mode) : "%s=%s:%s%s".formatted(pattern, mode, deviation.toPlainString(), percent ? "%" : "");
+    }
+}
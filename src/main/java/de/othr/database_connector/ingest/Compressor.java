@@ -0,0 +1,355 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import de.othr.database_connector.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Drops KPIs whose value did not change significantly since the last written KPI of the same equipment and name (series),
+ * e.g. a temperature published every second which stays the same for minutes. The {@link CompressionRule} of the first pattern matching
+ * the name of a KPI decides whether and how its series is compressed. A KPI is written in any case if it is the first one of its series,
+ * if its unit differs from the last written one or if it is older than the last written one. Once the last written KPI of a series
+ * is older than the heartbeat interval the next KPI is written, or for {@link CompressionMode#SWINGING_DOOR} the candidate held back
+ * before it, so that readers can tell a stable value from a missing one.
+ * <p>
+ * The state of every series (last written KPI and for {@link CompressionMode#SWINGING_DOOR} the KPI held back as candidate)
+ * is kept in primitive hash tables, striped by equipment. If the memory limit is reached, the state of series which have not received
+ * a KPI for longer than the heartbeat interval is removed, which drops the candidate held back for such series. KPIs of series without
+ * state which cannot be added are written uncompressed. Rows are compressed by their timestamps, not by the time they were received.
+ * Held back candidates are only held in memory, they are lost if the connector stops before the next KPI of their series arrives.
+ * @author Thomas Pilz
+ */
+public class Compressor implements KpiFilter {
+
+    private static final int STRIPES = 16;
+    /**
+     * Heap usage of the state of a series: one slot of every array, with the tables being kept at most half full
+     */
+    private static final long SERIES_BYTES = 2 * (5 * Long.BYTES + 2 * Double.BYTES + Integer.BYTES);
+    private static final int UNRESOLVED = 0;
+    private static final int UNCOMPRESSED = -1;
+    private final List<CompressionRule> rules;
+    private final Pattern[] patterns;
+    private final long[] absoluteDeviations;
+    private final double[] relativeDeviations;
+    private final long heartbeatMs;
+    private final SeriesTable[] stripes = new SeriesTable[STRIPES];
+    /**
+     * Index of the rule plus one per name ID, {@link #UNRESOLVED} or {@link #UNCOMPRESSED}. Racy updates are fine as resolving is deterministic.
+     */
+    private volatile int[] ruleOfName = new int[1024];
+
+    /**
+     * Create a new compressor.
+     * @param rules rules of which the first one matching the name of a KPI applies. KPIs without matching rule are not compressed.
+     * @param heartbeatMs maximum time in milliseconds between two written KPIs of a series
+     * @param maxBytes estimated heap usage of the state of all series
+     */
+    public Compressor(List<CompressionRule> rules, long heartbeatMs, long maxBytes) {
+        this.rules = List.copyOf(rules);
+        this.heartbeatMs = heartbeatMs;
+        patterns = new Pattern[rules.size()];
+        absoluteDeviations = new long[rules.size()];
+        relativeDeviations = new double[rules.size()];
+        for (var i = 0; i < rules.size(); i++) {
+            var rule = rules.get(i);
+            patterns[i] = rule.compilePattern();
+            if (rule.deviation() == null) continue;
+            if (rule.percent()) relativeDeviations[i] = rule.deviation().doubleValue() / 100;
+            else absoluteDeviations[i] = KpiBatch.toScaled(rule.deviation());
+        }
+        var maxSeries = (int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes / SERIES_BYTES / STRIPES));
+        for (var i = 0; i < STRIPES; i++) stripes[i] = new SeriesTable(maxSeries);
+    }
+
+    @Override
+    public int filter(KpiBatch rows) {
+        if (rows.isEmpty()) return 0;
+        var equipmentId = rows.getEquipmentId(0);
+        var table = stripes[Math.floorMod(equipmentId, STRIPES)];
+        var kept = 0;
+        synchronized (table) {
+            for (var i = 0; i < rows.size(); i++) {
+                var rule = ruleOf(rows.getNameId(i));
+                var result = rule == UNCOMPRESSED ? SeriesTable.KEEP : table.compress(rule, equipmentId, rows.getNameId(i), rows.getUnitId(i), rows.getTimestamp(i), rows.getScaledValue(i));
+                if (result == SeriesTable.DROP) continue;
+                if (result == SeriesTable.KEEP_CANDIDATE) {
+                    // the candidate held back is written instead of the current KPI, which becomes the new candidate
+                    rows.set(kept, equipmentId, table.emittedTimestamp, rows.getNameId(i), table.emittedUnit, table.emittedValue);
+                } else if (kept != i) {
+                    rows.moveRow(i, kept);
+                }
+                kept++;
+            }
+        }
+        var removed = rows.size() - kept;
+        rows.truncate(kept);
+        if (removed > 0) Metrics.KPIS_COMPRESSED.add(removed);
+        return removed;
+    }
+
+    /**
+     * Get the rule of a KPI name.
+     * @param nameId ID of name in {@link KpiDictionary#NAMES}
+     * @return index of rule or {@link #UNCOMPRESSED}
+     */
+    private int ruleOf(int nameId) {
+        var resolved = ruleOfName;
+        if (nameId < resolved.length && resolved[nameId] != UNRESOLVED) return resolved[nameId] > 0 ? resolved[nameId] - 1 : UNCOMPRESSED;
+        return resolve(nameId);
+    }
+
+    private synchronized int resolve(int nameId) {
+        var resolved = ruleOfName;
+        if (nameId >= resolved.length) resolved = Arrays.copyOf(resolved, Math.max(nameId + 1, resolved.length * 2));
+        var name = KpiDictionary.NAMES.get(nameId);
+        var rule = UNCOMPRESSED;
+        for (var i = 0; i < patterns.length; i++) {
+            if (!patterns[i].matcher(name).matches()) continue;
+            if (rules.get(i).mode() != CompressionMode.NONE) rule = i;
+            break;
+        }
+        resolved[nameId] = rule == UNCOMPRESSED ? UNCOMPRESSED : rule + 1;
+        ruleOfName = resolved;
+        return rule;
+    }
+
+    /**
+     * Get the deviation within which a value does not count as change.
+     * @param rule index of rule
+     * @param reference scaled value the deviation is relative to
+     * @return scaled deviation
+     */
+    private double deviationOf(int rule, long reference) {
+        return rules.get(rule).percent() ? relativeDeviations[rule] * Math.abs((double) reference) : absoluteDeviations[rule];
+    }
+
+    /**
+     * Get the number of series whose state is kept.
+     * @return number of series
+     */
+    public int getSeries() {
+        var count = 0;
+        for (var table : stripes) {
+            synchronized (table) {
+                count += table.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Open addressing hash table with linear probing of the state of every series, keyed by equipment and name.
+     * Must only be accessed while holding its monitor.
+     */
+    private final class SeriesTable {
+        static final int KEEP = 0;
+        static final int DROP = 1;
+        /**
+         * The candidate held back is written in place of the KPI. Its values are in the emitted fields.
+         */
+        static final int KEEP_CANDIDATE = 2;
+        private static final long EMPTY = -1;
+        private static final long NO_CANDIDATE = Long.MIN_VALUE;
+        private static final int INITIAL_CAPACITY = 64;
+        /**
+         * Minimum time between two attempts to remove idle series while the table is full
+         */
+        private static final long EVICTION_BACKOFF_MS = 1000;
+        private final int maxSize;
+        /**
+         * Equipment ID in the upper and name ID in the lower 32 bits or {@link #EMPTY}
+         */
+        private long[] series;
+        private int[] units;
+        private long[] writtenTimestamps;
+        private long[] writtenValues;
+        /**
+         * Timestamp of the KPI held back as candidate by {@link CompressionMode#SWINGING_DOOR} or {@link #NO_CANDIDATE}
+         */
+        private long[] candidateTimestamps;
+        private long[] candidateValues;
+        /**
+         * Maximum and minimum slope of lines from the last written KPI which pass all KPIs held back since within the deviation (the door)
+         */
+        private double[] upperSlopes;
+        private double[] lowerSlopes;
+        private int mask;
+        private int size = 0;
+        private long nextEviction = 0;
+        long emittedTimestamp;
+        long emittedValue;
+        int emittedUnit;
+
+        SeriesTable(int maxSize) {
+            this.maxSize = maxSize;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            series = new long[capacity];
+            Arrays.fill(series, EMPTY);
+            units = new int[capacity];
+            writtenTimestamps = new long[capacity];
+            writtenValues = new long[capacity];
+            candidateTimestamps = new long[capacity];
+            candidateValues = new long[capacity];
+            upperSlopes = new double[capacity];
+            lowerSlopes = new double[capacity];
+            mask = capacity - 1;
+        }
+
+        private int slotOf(long key) {
+            var h = key * 0x9E3779B97F4A7C15L;
+            var i = (int) (h ^ (h >>> 32)) & mask;
+            while (series[i] != EMPTY && series[i] != key) i = (i + 1) & mask;
+            return i;
+        }
+
+        /**
+         * Decide whether a KPI is written and update the state of its series.
+         * @return {@link #KEEP}, {@link #DROP} or {@link #KEEP_CANDIDATE}
+         */
+        int compress(int rule, int equipmentId, int nameId, int unitId, long timestamp, long value) {
+            var key = (long) equipmentId << 32 | nameId;
+            var i = slotOf(key);
+            if (series[i] == EMPTY) {
+                if (size >= maxSize && (timestamp < nextEviction || !evictIdle(timestamp))) return KEEP;
+                i = slotOf(key);
+                series[i] = key;
+                write(i, unitId, timestamp, value);
+                // keep load factor below 0.5
+                if (++size * 2 > series.length) rehash(series.length * 2);
+                return KEEP;
+            }
+            // KPIs older than the last written one are written without changing the state
+            if (timestamp <= writtenTimestamps[i]) return KEEP;
+            // a new unit starts the series anew, a candidate in the old unit is dropped
+            if (unitId != units[i]) {
+                write(i, unitId, timestamp, value);
+                return KEEP;
+            }
+            var heartbeat = timestamp - writtenTimestamps[i] >= heartbeatMs;
+            var deviation = deviationOf(rule, writtenValues[i]);
+            if (rules.get(rule).mode() == CompressionMode.DEADBAND) {
+                if (!heartbeat && Math.abs((double) value - writtenValues[i]) <= deviation) return DROP;
+                write(i, unitId, timestamp, value);
+                return KEEP;
+            }
+            if (candidateTimestamps[i] == NO_CANDIDATE) {
+                if (heartbeat) {
+                    write(i, unitId, timestamp, value);
+                    return KEEP;
+                }
+                hold(i, timestamp, value, deviation);
+                return DROP;
+            }
+            if (timestamp <= candidateTimestamps[i]) return KEEP;
+            var elapsed = (double) (timestamp - writtenTimestamps[i]);
+            var slope = (value - writtenValues[i]) / elapsed;
+            if (!heartbeat && slope >= lowerSlopes[i] && slope <= upperSlopes[i]) {
+                // the line to the KPI passes all KPIs held back within the deviation, so the KPI replaces the candidate and narrows the door
+                candidateTimestamps[i] = timestamp;
+                candidateValues[i] = value;
+                upperSlopes[i] = Math.min(upperSlopes[i], (value + deviation - writtenValues[i]) / elapsed);
+                lowerSlopes[i] = Math.max(lowerSlopes[i], (value - deviation - writtenValues[i]) / elapsed);
+                return DROP;
+            }
+            // the door closed (or the heartbeat is due): the candidate is written and the current KPI becomes the candidate of the next door starting at it
+            emittedTimestamp = candidateTimestamps[i];
+            emittedValue = candidateValues[i];
+            emittedUnit = units[i];
+            write(i, unitId, emittedTimestamp, emittedValue);
+            hold(i, timestamp, value, deviationOf(rule, emittedValue));
+            return KEEP_CANDIDATE;
+        }
+
+        /**
+         * Remember a KPI as written and forget the candidate
+         */
+        private void write(int i, int unitId, long timestamp, long value) {
+            units[i] = unitId;
+            writtenTimestamps[i] = timestamp;
+            writtenValues[i] = value;
+            candidateTimestamps[i] = NO_CANDIDATE;
+        }
+
+        /**
+         * Hold back the first KPI after the last written one as candidate and open the door to the lines passing it within the deviation
+         */
+        private void hold(int i, long timestamp, long value, double deviation) {
+            var elapsed = (double) (timestamp - writtenTimestamps[i]);
+            candidateTimestamps[i] = timestamp;
+            candidateValues[i] = value;
+            upperSlopes[i] = (value + deviation - writtenValues[i]) / elapsed;
+            lowerSlopes[i] = (value - deviation - writtenValues[i]) / elapsed;
+        }
+
+        /**
+         * Remove the state of all series whose latest KPI is older than the heartbeat interval.
+         * @param now timestamp of the KPI which needs a slot
+         * @return true if at least one series was removed
+         */
+        private boolean evictIdle(long now) {
+            nextEviction = now + EVICTION_BACKOFF_MS;
+            var removed = 0;
+            for (var i = 0; i < series.length; i++) {
+                if (series[i] == EMPTY) continue;
+                var latest = Math.max(writtenTimestamps[i], candidateTimestamps[i]);
+                if (now - latest < heartbeatMs) continue;
+                series[i] = EMPTY;
+                removed++;
+            }
+            if (removed == 0) return false;
+            size -= removed;
+            rehash(series.length);
+            return true;
+        }
+
+        /**
+         * Move all series into new arrays, which also closes the gaps left by removed series
+         */
+        private void rehash(int capacity) {
+            var oldSeries = series;
+            var oldUnits = units;
+            var oldWrittenTimestamps = writtenTimestamps;
+            var oldWrittenValues = writtenValues;
+            var oldCandidateTimestamps = candidateTimestamps;
+            var oldCandidateValues = candidateValues;
+            var oldUpperSlopes = upperSlopes;
+            var oldLowerSlopes = lowerSlopes;
+            allocate(capacity);
+            for (var j = 0; j < oldSeries.length; j++) {
+                if (oldSeries[j] == EMPTY) continue;
+                var i = slotOf(oldSeries[j]);
+                series[i] = oldSeries[j];
+                units[i] = oldUnits[j];
+                writtenTimestamps[i] = oldWrittenTimestamps[j];
+                writtenValues[i] = oldWrittenValues[j];
+                candidateTimestamps[i] = oldCandidateTimestamps[j];
+                candidateValues[i] = oldCandidateValues[j];
+                upperSlopes[i] = oldUpperSlopes[j];
+                lowerSlopes[i] = oldLowerSlopes[j];
+            }
+        }
+    }
+}
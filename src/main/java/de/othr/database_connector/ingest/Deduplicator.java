@@ -0,0 +1,237 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.metrics.Metrics;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops KPIs which have been received before, e.g. because a device or the broker sent a message again after a reconnect.
+ * A KPI is a duplicate if a KPI with the same equipment, timestamp and name was received within the deduplication window.
+ * Every equipment has its own window which remembers the KPIs of the last windowMs milliseconds (relative to the newest timestamp
+ * of the equipment) in a primitive hash set and a ring buffer of keys in the order they were received, which evicts them once they leave the window.
+ * KPIs older than the window cannot be checked and are kept. If the memory limit is reached windows evict their oldest keys instead of growing.
+ * Thread-safe, KPIs of different equipment are checked in parallel.
+ * @author Thomas Pilz
+ */
+public class Deduplicator implements KpiFilter {
+
+    /**
+     * Keys store timestamps relative to 2020-01-01T00:00:00Z, so 43 bits are enough for the timestamp and 21 bits remain for the name ID.
+     * KPIs with an earlier timestamp are not checked.
+     */
+    private static final long EPOCH_MS = 1_577_836_800_000L;
+    private static final int NAME_BITS = 21;
+    private static final long MAX_RELATIVE_TIMESTAMP = 1L << (Long.SIZE - 1 - NAME_BITS);
+    private static final long EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 16;
+    /**
+     * Heap usage of a remembered key: one slot in the ring buffer and two in the hash set, which is kept at most half full
+     */
+    private static final long KEY_BYTES = 3 * Long.BYTES;
+    private static final VarHandle WINDOWS = MethodHandles.arrayElementVarHandle(Window[].class);
+
+    private final long windowMs;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile Window[] windows = new Window[1024];
+
+    /**
+     * Create a new deduplicator.
+     * @param windowMs time in milliseconds KPIs are remembered, relative to the newest timestamp of their equipment
+     * @param maxBytes estimated heap usage up to which windows grow
+     */
+    public Deduplicator(long windowMs, long maxBytes) {
+        this.windowMs = windowMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Remove all duplicate rows from a batch. Rows are checked against each other as well.
+     * @param rows rows of a single equipment, usually all KPIs of one message
+     * @return number of removed rows
+     */
+    @Override
+    public int filter(KpiBatch rows) {
+        if (rows.isEmpty()) return 0;
+        var window = windowOf(rows.getEquipmentId(0));
+        var kept = 0;
+        var late = 0;
+        synchronized (window) {
+            for (var i = 0; i < rows.size(); i++) {
+                var result = window.add(rows.getTimestamp(i), rows.getNameId(i));
+                if (result == Window.DUPLICATE) continue;
+                if (result == Window.LATE) late++;
+                if (kept != i) rows.moveRow(i, kept);
+                kept++;
+            }
+        }
+        var removed = rows.size() - kept;
+        rows.truncate(kept);
+        if (removed > 0) Metrics.KPIS_DUPLICATE.add(removed);
+        if (late > 0) Metrics.KPIS_DEDUP_LATE.add(late);
+        return removed;
+    }
+
+    private Window windowOf(int equipmentId) {
+        var w = windows;
+        if (equipmentId < w.length) {
+            var window = (Window) WINDOWS.getAcquire(w, equipmentId);
+            if (window != null) return window;
+        }
+        return addWindow(equipmentId);
+    }
+
+    private synchronized Window addWindow(int equipmentId) {
+        var w = windows;
+        if (equipmentId >= w.length) w = Arrays.copyOf(w, Math.max(equipmentId + 1, w.length * 2));
+        var window = w[equipmentId];
+        if (window == null) {
+            window = new Window();
+            WINDOWS.setRelease(w, equipmentId, window);
+        }
+        windows = w;
+        return window;
+    }
+
+    /**
+     * Get the estimated heap usage of all windows.
+     * @return estimated bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Keys of the KPIs of one equipment within the deduplication window. Must only be accessed while holding its monitor.
+     */
+    private final class Window {
+        static final int ADDED = 0;
+        static final int DUPLICATE = 1;
+        static final int LATE = 2;
+        /**
+         * Open addressing hash set with linear probing
+         */
+        private long[] table;
+        /**
+         * Keys in the order they were added
+         */
+        private long[] ring;
+        private int head = 0;
+        private int size = 0;
+        private long newest = 0;
+
+        Window() {
+            allocate(INITIAL_CAPACITY);
+        }
+
+        /**
+         * Remember the key of a KPI.
+         * @return {@link #ADDED}, {@link #DUPLICATE} if the key is remembered already or {@link #LATE} if the KPI is too old to be checked
+         */
+        int add(long timestamp, int nameId) {
+            if (timestamp < EPOCH_MS || timestamp - EPOCH_MS >= MAX_RELATIVE_TIMESTAMP || timestamp < newest - windowMs) return LATE;
+            var key = (timestamp - EPOCH_MS) << NAME_BITS | nameId;
+            if (contains(key)) return DUPLICATE;
+            if (timestamp > newest) {
+                newest = timestamp;
+                while (size > 0 && timestampOf(ring[head]) < newest - windowMs) evictOldest();
+            }
+            if (size == ring.length) {
+                if (bytes.get() + ring.length * KEY_BYTES <= maxBytes) resize(ring.length * 2);
+                else evictOldest();
+            }
+            insert(key);
+            ring[(head + size) & (ring.length - 1)] = key;
+            size++;
+            return ADDED;
+        }
+
+        private boolean contains(long key) {
+            var mask = table.length - 1;
+            for (var i = slotOf(key, mask); table[i] != EMPTY; i = (i + 1) & mask) {
+                if (table[i] == key) return true;
+            }
+            return false;
+        }
+
+        private void insert(long key) {
+            var mask = table.length - 1;
+            var i = slotOf(key, mask);
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = key;
+        }
+
+        private void evictOldest() {
+            remove(ring[head]);
+            head = (head + 1) & (ring.length - 1);
+            size--;
+        }
+
+        /**
+         * Remove a key from the hash set and move following keys of the same probe sequence back into the freed slot.
+         */
+        private void remove(long key) {
+            var mask = table.length - 1;
+            var i = slotOf(key, mask);
+            while (table[i] != key) i = (i + 1) & mask;
+            for (var j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+                var home = slotOf(table[j], mask);
+                // move the key unless its home slot lies cyclically between the free slot and its current slot
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = EMPTY;
+        }
+
+        private void resize(int capacity) {
+            var keys = new long[size];
+            for (var i = 0; i < size; i++) keys[i] = ring[(head + i) & (ring.length - 1)];
+            bytes.addAndGet(-ring.length * KEY_BYTES);
+            allocate(capacity);
+            for (var key : keys) {
+                insert(key);
+                ring[size++] = key;
+            }
+        }
+
+        private void allocate(int capacity) {
+            table = new long[capacity * 2];
+            Arrays.fill(table, EMPTY);
+            ring = new long[capacity];
+            head = 0;
+            size = 0;
+            bytes.addAndGet(capacity * KEY_BYTES);
+        }
+
+        private static long timestampOf(long key) {
+            return (key >>> NAME_BITS) + EPOCH_MS;
+        }
+
+        private static int slotOf(long key, int mask) {
+            // spread the bits, as keys of one message only differ in their lowest bits
+            var h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sink which writes every batch to several sinks, e.g. to the database and to archive files.
+ * A batch only counts as written once all sinks took it, so a sink which is unavailable holds back the others.
+ * Sinks which already took a batch that has to be retried are skipped when the writer retries it, so they do not receive it twice.
+ * @author Thomas Pilz
+ */
+public class FanOutSink implements KpiSink {
+
+    private final List<KpiSink> sinks;
+    /**
+     * Which sinks took the batch which was not written to all sinks
+     */
+    private final boolean[] written;
+    /**
+     * Whether the previous batch was not written to all sinks
+     */
+    private boolean pending = false;
+
+    /**
+     * Create a new fan-out sink.
+     * @param sinks sinks every batch is written to
+     */
+    public FanOutSink(List<KpiSink> sinks) {
+        this.sinks = List.copyOf(sinks);
+        this.written = new boolean[sinks.size()];
+    }
+
+    @Override
+    public String name() {
+        return "fan-out";
+    }
+
+    /**
+     * Check whether all sinks which did not take the pending batch yet are available.
+     * @return false if one of them is known to be unreachable
+     */
+    @Override
+    public boolean isAvailable() {
+        for(var i = 0; i < sinks.size(); i++){
+            if(!(pending && written[i]) && !sinks.get(i).isAvailable()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(KpiBatch batch) {
+        return write(batch, false);
+    }
+
+    /**
+     * Write a batch to all sinks. If the batch is retried, sinks which took it before are skipped.
+     * @param batch KPI rows to write
+     * @param retry true if the previous call was given the same rows and did not succeed
+     * @return false if one of the sinks could not write the batch
+     */
+    @Override
+    public boolean write(KpiBatch batch, boolean retry) {
+        if(!retry || !pending) Arrays.fill(written, false);
+        // a sink throwing leaves the batch pending, so the sinks written before are skipped when it is retried
+        pending = true;
+        var complete = true;
+        for(var i = 0; i < sinks.size(); i++){
+            if(written[i]) continue;
+            if(sinks.get(i).write(batch, retry)) written[i] = true;
+            else complete = false;
+        }
+        pending = !complete;
+        return complete;
+    }
+
+    @Override
+    public void flush() {
+        for(var sink : sinks) sink.flush();
+    }
+
+    @Override
+    public void close() {
+        for(var sink : sinks) sink.close();
+    }
+}
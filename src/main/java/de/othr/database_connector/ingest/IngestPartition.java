@@ -0,0 +1,44 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+
+/**
+ * One partition of the {@link IngestPipeline}: takes KPIs from producers and writes them using its own writer thread.
+ * @author Thomas Pilz
+ */
+public interface IngestPartition extends Runnable {
+
+    /**
+     * Hand KPI rows to this partition. Called by producer threads.
+     * @param rows rows to write, usually all KPIs of one message. They are copied, so the batch can be reused by the caller.
+     * @param ack acknowledgement sent once the rows are stored or null if the message needs no acknowledgement
+     * @throws InterruptedException if interrupted while waiting for free space
+     */
+    void offer(KpiBatch rows, Acknowledgement ack) throws InterruptedException;
+
+    /**
+     * Stop the writer of this partition after its current batch.
+     */
+    void stop();
+
+    /**
+     * Stop the writer of this partition once it has written all KPIs handed to it so far.
+     * The writer keeps running if the sink is unavailable, unless the buffered KPIs survive a restart.
+     */
+    void finish();
+}
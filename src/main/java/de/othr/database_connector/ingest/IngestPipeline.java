@@ -0,0 +1,165 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory ingest pipeline which decouples receiving messages from writing them to the database.
+ * Producers (e.g. the MQTT callback) only enqueue the KPI rows of messages while writer threads drain the queues in batches.
+ * The pipeline is split into partitions, each with its own buffer (in-memory queue or on-disk spool) and writer.
+ * All messages of one client (equipment) go to the same partition so that they are written in the order they were received.
+ * Writers run on virtual threads owned by the pipeline, so a writer blocked on the database does not occupy a platform thread
+ * and the pipeline does not return from {@link #close()} before all its writers have finished.
+ * @author Thomas Pilz
+ */
+public class IngestPipeline implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestPipeline.class);
+    private final List<IngestPartition> partitions;
+    private final List<KpiFilter> filters;
+    private final ExecutorService writers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("kpi-writer-", 0).factory());
+
+    /**
+     * Create a new ingest pipeline.
+     * @param partitions partitions of the pipeline, each is run by its own writer
+     */
+    public IngestPipeline(List<? extends IngestPartition> partitions) {
+        this(partitions, List.of());
+    }
+
+    /**
+     * Create a new ingest pipeline which passes the KPIs of every message through filters before they are enqueued,
+     * e.g. to drop duplicates ({@link Deduplicator}), aggregate them ({@link Rollups}) or drop insignificant changes ({@link Compressor}).
+     * @param partitions partitions of the pipeline, each is run by its own writer
+     * @param filters filters applied in the given order
+     */
+    public IngestPipeline(List<? extends IngestPartition> partitions, List<? extends KpiFilter> filters) {
+        this.partitions = List.copyOf(partitions);
+        this.filters = List.copyOf(filters);
+    }
+
+    /**
+     * Start all writers.
+     */
+    public void start(){
+        partitions.forEach(writers::execute);
+        logger.info("Started ingest pipeline with {} writer(s)", partitions.size());
+    }
+
+    /**
+     * Enqueue the KPIs of a message. Must not be called before {@link #start()}.
+     * @param rows rows of a single equipment. They are copied, so the batch can be reused by the caller.
+     * Rows removed by the filters are removed from the batch.
+     */
+    public void offer(KpiBatch rows){
+        offer(rows, null);
+    }
+
+    /**
+     * Enqueue the KPIs of a message which is acknowledged once its KPIs are stored. Must not be called before {@link #start()}.
+     * @param rows rows of a single equipment. They are copied, so the batch can be reused by the caller.
+     * Rows removed by the filters are removed from the batch.
+     * @param ack acknowledgement of the message or null if it needs no acknowledgement
+     */
+    public void offer(KpiBatch rows, Acknowledgement ack){
+        if(rows.isEmpty()){
+            if(ack != null) ack.acknowledge();
+            return;
+        }
+        var partition = partitions.get(partitionOf(rows.getEquipmentId(0)));
+        // a message whose KPIs were all removed is still handed to its partition, so it is not acknowledged before earlier KPIs (e.g. the ones it duplicates) are written
+        for(var i = 0; i < filters.size() && !rows.isEmpty(); i++) filters.get(i).filter(rows);
+        try {
+            partition.offer(rows, ack);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for free space in the ingest queue. Message is dropped.");
+        }
+    }
+
+    /**
+     * Get the partition all KPIs of the given equipment are written by.
+     * @param equipmentId ID of equipment in {@link de.othr.database_connector.kpi.KpiDictionary#EQUIPMENT}
+     * @return index of partition
+     */
+    public int partitionOf(int equipmentId){
+        // IDs are dense, so this distributes equipment evenly across partitions
+        return Math.floorMod(equipmentId, partitions.size());
+    }
+
+    /**
+     * Stop all writers after their current batch. Returns immediately.
+     */
+    public void stop(){
+        partitions.forEach(IngestPartition::stop);
+        writers.shutdown();
+    }
+
+    /**
+     * Let all writers write the KPIs handed to the pipeline so far and stop them once they are done.
+     * Writers which are not done when the timeout expires are stopped after their current batch.
+     * Producers should have stopped offering KPIs before, as KPIs offered while the writers finish may not be written.
+     * @param timeout maximum time to wait for the writers to finish
+     * @param unit unit of timeout
+     * @return true if all writers finished in time, false if some of them were stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        partitions.forEach(IngestPartition::finish);
+        writers.shutdown();
+        if(writers.awaitTermination(timeout, unit)) return true;
+        stop();
+        return false;
+    }
+
+    /**
+     * Wait until all writers have finished after {@link #stop()} or {@link #drain(long, TimeUnit)}.
+     * @param timeout maximum time to wait
+     * @param unit unit of timeout
+     * @return true if all writers have finished, false if the timeout expired before
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return writers.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Wait until all writers have finished, no matter how long it takes.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitTermination() throws InterruptedException {
+        while(!writers.awaitTermination(1, TimeUnit.DAYS)) {
+            // keep waiting, the pipeline runs until it is stopped
+        }
+    }
+
+    /**
+     * Stop all writers and wait until they have finished.
+     */
+    @Override
+    public void close(){
+        stop();
+        writers.close();
+    }
+}
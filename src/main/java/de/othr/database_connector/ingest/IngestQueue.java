@@ -0,0 +1,215 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of KPI rows between the MQTT callback and the database writer threads.
+ * Rows are stored in preallocated columnar ring buffers, so enqueuing and draining does not allocate.
+ * What happens when the queue is full is defined by a {@link BackpressurePolicy}.
+ * @author Thomas Pilz
+ */
+public class IngestQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestQueue.class);
+    private final int capacity;
+    private final long[] timestamps;
+    private final int[] equipmentIds;
+    private final int[] nameIds;
+    private final int[] unitIds;
+    private final long[] values;
+    private int head = 0;
+    private int size = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final BackpressurePolicy policy;
+    private final KpiSpool spill;
+    private long droppedKpis = 0;
+    /**
+     * Number of rows ever added to the in-memory queue
+     */
+    private long enqueuedKpis = 0;
+
+    /**
+     * Create a new ingest queue.
+     * @param capacity maximum number of KPI rows held in memory
+     * @param policy what to do when the queue is full
+     * @param spill spool overflowing rows are written to. Only required for {@link BackpressurePolicy#SPILL}.
+     */
+    public IngestQueue(int capacity, BackpressurePolicy policy, KpiSpool spill) {
+        if(policy == BackpressurePolicy.SPILL && spill == null) throw new IllegalArgumentException("Backpressure policy SPILL requires a spill spool!");
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.equipmentIds = new int[capacity];
+        this.nameIds = new int[capacity];
+        this.unitIds = new int[capacity];
+        this.values = new long[capacity];
+        this.policy = policy;
+        this.spill = spill;
+    }
+
+    /**
+     * Copy rows into the queue applying the backpressure policy if they do not fit.
+     * @param rows rows to add, usually all KPIs of one message. The batch can be reused by the caller afterwards.
+     * @return position of the last added row in the sequence of all rows ever added to the queue (starting at 1)
+     * or -1 if the rows were not added to the in-memory queue because they were dropped or spilled.
+     * If there are no rows, the position of the last row added so far.
+     * @throws InterruptedException if interrupted while waiting for free space (only {@link BackpressurePolicy#BLOCK})
+     */
+    public long offer(KpiBatch rows) throws InterruptedException {
+        var count = rows.size();
+        lock.lockInterruptibly();
+        try {
+            if(count == 0) return enqueuedKpis;
+            if(count > capacity - size){
+                switch (policy) {
+                    case BLOCK -> {
+                        if(count > capacity){
+                            drop(count);
+                            return -1;
+                        }
+                        while(count > capacity - size) notFull.await();
+                    }
+                    case DROP_OLDEST -> {
+                        if(count > capacity){
+                            drop(count);
+                            return -1;
+                        }
+                        var oldest = count - (capacity - size);
+                        head = (head + oldest) % capacity;
+                        size -= oldest;
+                        drop(oldest);
+                    }
+                    case SPILL -> {
+                        if(!spill.append(rows)) droppedKpis += count;
+                        return -1;
+                    }
+                }
+            }
+            var tail = (head + size) % capacity;
+            for(var i = 0; i < count; i++){
+                timestamps[tail] = rows.getTimestamp(i);
+                equipmentIds[tail] = rows.getEquipmentId(i);
+                nameIds[tail] = rows.getNameId(i);
+                unitIds[tail] = rows.getUnitId(i);
+                values[tail] = rows.getScaledValue(i);
+                if(++tail == capacity) tail = 0;
+            }
+            size += count;
+            enqueuedKpis += count;
+            notEmpty.signal();
+            return enqueuedKpis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drop(int count){
+        var before = droppedKpis;
+        droppedKpis += count;
+        // log once every 1000 dropped rows
+        if(before / 1000 != droppedKpis / 1000 || before == 0){
+            logger.warn("Ingest queue is full! Dropped {} KPIs so far.", droppedKpis);
+        }
+    }
+
+    /**
+     * Take up to maxKpis rows from the queue.
+     * Waits at most lingerMs milliseconds for the first row and then collects rows until either maxKpis
+     * rows have been collected or lingerMs milliseconds have passed since the first row was taken.
+     * Spilled rows are only read once the in-memory queue is empty.
+     * @param batch batch the rows are added to
+     * @param maxKpis maximum number of rows to take
+     * @param lingerMs maximum time to wait for a batch to fill up
+     * @return number of rows taken
+     * @throws InterruptedException if interrupted while waiting for rows
+     */
+    public int drain(KpiBatch batch, int maxKpis, long lingerMs) throws InterruptedException {
+        if(spill != null && size() == 0){
+            // spilled rows are handed over to the writer which buffers them in memory if they cannot be written
+            var count = spill.read(batch, maxKpis, 0);
+            if(count > 0){
+                spill.commit();
+                return count;
+            }
+        }
+        var remaining = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        lock.lockInterruptibly();
+        try {
+            while(size == 0){
+                if(remaining <= 0) return 0;
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            var count = take(batch, maxKpis);
+            remaining = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+            while(count < maxKpis && remaining > 0){
+                remaining = notEmpty.awaitNanos(remaining);
+                count += take(batch, maxKpis - count);
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move up to max rows from the head of the queue to the batch. Must be called while holding the lock.
+     */
+    private int take(KpiBatch batch, int max){
+        var count = Math.min(size, max);
+        for(var i = 0; i < count; i++){
+            batch.add(equipmentIds[head], timestamps[head], nameIds[head], unitIds[head], values[head]);
+            if(++head == capacity) head = 0;
+        }
+        size -= count;
+        if(count > 0 && policy == BackpressurePolicy.BLOCK) notFull.signalAll();
+        return count;
+    }
+
+    /**
+     * Get the number of KPI rows currently queued in memory.
+     * @return queue depth
+     */
+    public int size(){
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of KPI rows dropped because the queue was full.
+     * @return number of dropped KPIs
+     */
+    public long getDroppedKpis() {
+        lock.lock();
+        try {
+            return droppedKpis;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+
+/**
+ * Stage of the {@link IngestPipeline} which looks at the KPIs of every message before they are enqueued and may remove some of them.
+ * Implementations must be thread-safe, as messages are offered by several threads.
+ * @author Thomas Pilz
+ */
+public interface KpiFilter {
+
+    /**
+     * Remove the rows which are not to be written from a batch, keeping the order of the remaining rows.
+     * @param rows rows of a single equipment, usually all KPIs of one message
+     * @return number of removed rows
+     */
+    int filter(KpiBatch rows);
+}
@@ -0,0 +1,70 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+
+/**
+ * Destination writers ({@link BatchingWriter}, {@link SpoolWriter}) write batches of KPIs to, e.g. the database or files.
+ * Every sink is driven by a single writer thread. Several sinks can be combined by a {@link FanOutSink}.
+ * @author Thomas Pilz
+ */
+public interface KpiSink {
+
+    /**
+     * Get the name of the sink, used as label of the per-sink metrics.
+     * @return name of sink
+     */
+    String name();
+
+    /**
+     * Check whether the sink is currently able to take batches.
+     * @return false if the sink is known to be unreachable
+     */
+    boolean isAvailable();
+
+    /**
+     * Write a batch of KPIs.
+     * @param batch KPI rows to write
+     * @return false if the batch could not be written because the sink is unreachable and should be retried later.
+     * True if the batch was written or rejected for good (e.g. because of invalid data).
+     */
+    boolean write(KpiBatch batch);
+
+    /**
+     * Write a batch of KPIs, stating whether the same batch is written again because the previous call returned false for it or threw.
+     * Sinks which keep state per batch (e.g. {@link FanOutSink}) use this to avoid writing rows twice.
+     * @param batch KPI rows to write
+     * @param retry true if the previous call to this method was given the same rows and did not succeed
+     * @return false if the batch could not be written and should be retried later, see {@link #write(KpiBatch)}
+     */
+    default boolean write(KpiBatch batch, boolean retry) {
+        return write(batch);
+    }
+
+    /**
+     * Make written batches durable if the sink does not already do so on every write, e.g. by syncing files to disk.
+     * Called by the writer whenever it is idle.
+     */
+    default void flush() {
+    }
+
+    /**
+     * Release resources of the sink (e.g. its database connection) once the writer has stopped.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,512 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable append-only write-ahead spool for pending KPIs made of fixed-size memory-mapped segment files.
+ * <p>
+ * Producers append KPI rows which are encoded straight into the mapped segment. A single reader (the database writer)
+ * reads them back in order and advances a checkpoint once the read rows are committed.
+ * After a restart reading resumes at the checkpoint, so rows that were spooled but not committed are replayed.
+ * Segments behind the checkpoint are deleted.
+ * <p>
+ * Record format (big endian): int payload length, int CRC32C of payload, payload.
+ * Payload: int number of rows and per row: long unix timestamp, text equipment, text KPI name, int unit ID,
+ * long value scaled by {@link KpiBatch#VALUE_FACTOR}. Texts are stored as short byte length followed by UTF-8 bytes.
+ * Equipment and names are stored as text because dictionary IDs are only valid within one process.
+ * A payload length of -1 marks the end of a segment, 0 means no record has been written there yet.
+ * <p>
+ * Segment data lives in the page cache as soon as it is written, so a crash of the process loses nothing.
+ * Segments are only forced to the storage device when they are full or the spool is closed.
+ * @author Thomas Pilz
+ */
+public class KpiSpool implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(KpiSpool.class);
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final int CHECKPOINT_BYTES = 12;
+    private final Path directory;
+    private final String prefix;
+    private final Pattern segmentPattern;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final MappedByteBuffer checkpoint;
+
+    /**
+     * Guards the writer state. A lock instead of a monitor, so that virtual threads blocked on I/O while holding it are not pinned to their carrier.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // writer state, guarded by writeLock
+    private long writeSegment;
+    private int writeOffset;
+    private MappedByteBuffer writeBuffer;
+    private ByteBuffer crcView;
+    private final CRC32C writeCrc = new CRC32C();
+    private long oldestSegment;
+    private long droppedKpis = 0;
+    /**
+     * Position up to which records are completely written: segment in the upper, offset in the lower 32 bits
+     */
+    private volatile long published;
+
+    // reader state, only accessed by the reader thread
+    private long readSegment;
+    private int readOffset;
+    private MappedByteBuffer readBuffer;
+    private long readBufferSegment = -1;
+    private final CRC32C readCrc = new CRC32C();
+    private long committedSegment;
+    private int committedOffset;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dataAvailable = lock.newCondition();
+    private volatile boolean readerWaiting = false;
+
+    /**
+     * Open (or create) a spool. Existing segments are recovered and reading resumes at the last checkpoint.
+     * @param directory directory the segment files are stored in
+     * @param name name of the spool which is used as prefix for its files
+     * @param segmentBytes size of a segment file in bytes
+     * @param maxSegments maximum number of segment files. Once reached new rows are dropped.
+     * @throws IOException if the spool cannot be opened
+     */
+    public KpiSpool(Path directory, String name, int segmentBytes, int maxSegments) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.prefix = name + "-";
+        this.segmentPattern = Pattern.compile(Pattern.quote(prefix) + "(\\d{20})\\.seg");
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = Math.max(2, maxSegments);
+        try (var channel = FileChannel.open(directory.resolve(name + ".checkpoint"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.checkpoint = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_BYTES);
+        }
+        recover();
+    }
+
+    /**
+     * Find existing segments, the checkpoint and the end of the written data.
+     */
+    private void recover() throws IOException {
+        var segments = new TreeSet<Long>();
+        try (var files = Files.list(directory)) {
+            files.forEach(file -> {
+                var matcher = segmentPattern.matcher(file.getFileName().toString());
+                if (matcher.matches()) segments.add(Long.parseLong(matcher.group(1)));
+            });
+        }
+        committedSegment = checkpoint.getLong(0);
+        committedOffset = checkpoint.getInt(8);
+        if (segments.isEmpty()) {
+            committedSegment = 0;
+            committedOffset = 0;
+            openWriteSegment(0);
+        } else {
+            if (committedSegment < segments.first() || committedSegment > segments.last()) {
+                committedSegment = segments.first();
+                committedOffset = 0;
+            }
+            // segments before the checkpoint have been committed already
+            for (var segment : segments.headSet(committedSegment)) {
+                Files.deleteIfExists(segmentPath(segment));
+            }
+            openWriteSegment(segments.last());
+            // find end of data in last segment
+            writeOffset = 0;
+            while (writeOffset + RECORD_HEADER_BYTES <= segmentBytes) {
+                var length = writeBuffer.getInt(writeOffset);
+                if (length == END_OF_SEGMENT) {
+                    openWriteSegment(writeSegment + 1);
+                    break;
+                }
+                if (length <= 0 || writeOffset + RECORD_HEADER_BYTES + length > segmentBytes
+                        || !isCrcValid(writeBuffer, writeOffset, length, writeCrc)) break;
+                writeOffset += RECORD_HEADER_BYTES + length;
+            }
+            // discard a partially written record
+            if (writeOffset + RECORD_HEADER_BYTES <= segmentBytes) writeBuffer.putInt(writeOffset, 0);
+            published = pack(writeSegment, writeOffset);
+            if (committedSegment == writeSegment && committedOffset > writeOffset) committedOffset = writeOffset;
+        }
+        oldestSegment = committedSegment;
+        readSegment = committedSegment;
+        readOffset = committedOffset;
+        writeCheckpoint();
+        if (readSegment != writeSegment || readOffset != writeOffset) {
+            logger.info("Recovered spool {} with uncommitted KPIs in segments {} to {}", prefix, readSegment, writeSegment);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return directory.resolve("%s%020d.seg".formatted(prefix, segment));
+    }
+
+    private MappedByteBuffer mapSegment(long segment, FileChannel.MapMode mode) throws IOException {
+        var options = mode == FileChannel.MapMode.READ_WRITE
+                ? new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ};
+        try (var channel = FileChannel.open(segmentPath(segment), options)) {
+            return channel.map(mode, 0, segmentBytes);
+        }
+    }
+
+    private void openWriteSegment(long segment) throws IOException {
+        writeBuffer = mapSegment(segment, FileChannel.MapMode.READ_WRITE);
+        crcView = writeBuffer.duplicate();
+        writeSegment = segment;
+        writeOffset = 0;
+        published = pack(writeSegment, writeOffset);
+    }
+
+    private static long pack(long segment, int offset) {
+        return segment << 32 | offset;
+    }
+
+    private static boolean isCrcValid(ByteBuffer buffer, int offset, int length, CRC32C crc) {
+        var view = buffer.duplicate().limit(offset + RECORD_HEADER_BYTES + length).position(offset + RECORD_HEADER_BYTES);
+        crc.reset();
+        crc.update(view);
+        return (int) crc.getValue() == buffer.getInt(offset + 4);
+    }
+
+    /**
+     * Append rows to the spool as a single record. Thread-safe.
+     * @param rows rows to append, usually all KPIs of one message
+     * @return false if the rows were dropped because the spool is full or they cannot be encoded
+     */
+    public boolean append(KpiBatch rows) {
+        var maxBytes = RECORD_HEADER_BYTES + maxPayloadBytes(rows);
+        writeLock.lock();
+        try {
+            // always keep room for the end of segment marker
+            if (maxBytes + 4 > segmentBytes) throw new IllegalArgumentException("Rows exceed segment size");
+            if (writeOffset + maxBytes + 4 > segmentBytes && !roll()) {
+                var before = droppedKpis;
+                droppedKpis += rows.size();
+                if (before / 1000 != droppedKpis / 1000 || before == 0) logger.warn("Spool {} is full! Dropped {} KPIs so far.", prefix, droppedKpis);
+                return false;
+            }
+            var start = writeOffset;
+            writeBuffer.position(start + RECORD_HEADER_BYTES);
+            encode(rows);
+            var end = writeBuffer.position();
+            crcView.limit(end).position(start + RECORD_HEADER_BYTES);
+            writeCrc.reset();
+            writeCrc.update(crcView);
+            writeBuffer.putInt(start + 4, (int) writeCrc.getValue());
+            // writing the length makes the record visible
+            writeBuffer.putInt(start, end - start - RECORD_HEADER_BYTES);
+            writeOffset = end;
+            published = pack(writeSegment, writeOffset);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not write KPIs to spool {}. KPIs are dropped.", prefix, e);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+        if (readerWaiting) signalReader();
+        return true;
+    }
+
+    /**
+     * Close the current segment and start a new one.
+     * @return false if the maximum number of segments is reached
+     */
+    private boolean roll() throws IOException {
+        if (writeSegment - oldestSegment + 1 >= maxSegments) return false;
+        writeBuffer.putInt(writeOffset, END_OF_SEGMENT);
+        writeBuffer.force();
+        openWriteSegment(writeSegment + 1);
+        return true;
+    }
+
+    private static int maxPayloadBytes(KpiBatch rows) {
+        var size = 4;
+        for (var i = 0; i < rows.size(); i++) {
+            size += 8 + maxTextBytes(rows.getEquipment(i)) + maxTextBytes(rows.getName(i)) + 4 + 8;
+        }
+        return size;
+    }
+
+    private static int maxTextBytes(String s) {
+        return 2 + s.length() * 3;
+    }
+
+    private void encode(KpiBatch rows) {
+        writeBuffer.putInt(rows.size());
+        for (var i = 0; i < rows.size(); i++) {
+            writeBuffer.putLong(rows.getTimestamp(i));
+            putText(rows.getEquipment(i));
+            putText(rows.getName(i));
+            writeBuffer.putInt(rows.getUnitId(i));
+            writeBuffer.putLong(rows.getScaledValue(i));
+        }
+    }
+
+    /**
+     * UTF-8 encode a string directly into the segment, prefixed by its byte length.
+     */
+    private void putText(String s) {
+        var lengthPosition = writeBuffer.position();
+        writeBuffer.position(lengthPosition + 2);
+        for (var i = 0; i < s.length(); i++) {
+            int c = s.charAt(i);
+            if (c < 0x80) {
+                writeBuffer.put((byte) c);
+            } else if (c < 0x800) {
+                writeBuffer.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                var codePoint = Character.toCodePoint((char) c, s.charAt(++i));
+                writeBuffer.put((byte) (0xF0 | (codePoint >> 18))).put((byte) (0x80 | ((codePoint >> 12) & 0x3F)))
+                        .put((byte) (0x80 | ((codePoint >> 6) & 0x3F))).put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                writeBuffer.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F))).put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        writeBuffer.putShort(lengthPosition, (short) (writeBuffer.position() - lengthPosition - 2));
+    }
+
+    private void signalReader() {
+        lock.lock();
+        try {
+            dataAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Read up to maxKpis rows following the last read row. Must only be called by a single reader thread.
+     * Records are read as a whole, so fewer rows are read if the next record does not fit. A single record
+     * exceeding maxKpis is read anyway if nothing else has been read.
+     * Waits at most lingerMs milliseconds for the first record and then collects records until either maxKpis
+     * rows have been read or lingerMs milliseconds have passed since the first record was read.
+     * @param target batch the rows are added to
+     * @param maxKpis maximum number of rows to read
+     * @param lingerMs maximum time to wait for rows
+     * @return number of rows read
+     * @throws InterruptedException if interrupted while waiting for rows
+     */
+    public int read(KpiBatch target, int maxKpis, long lingerMs) throws InterruptedException {
+        var count = 0;
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        while (count < maxKpis) {
+            var read = readNext(target, count == 0 ? Integer.MAX_VALUE : maxKpis - count);
+            if (read < 0) break;
+            if (read > 0) {
+                count += read;
+                continue;
+            }
+            var remaining = deadline - System.nanoTime();
+            if (remaining <= 0) break;
+            awaitData(remaining);
+        }
+        return count;
+    }
+
+    private void awaitData(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            readerWaiting = true;
+            if (isCaughtUp()) dataAvailable.awaitNanos(nanos);
+        } finally {
+            readerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check whether the reader has read all published records.
+     * @return true if there is nothing to read
+     */
+    private boolean isCaughtUp() {
+        return pack(readSegment, readOffset) >= published;
+    }
+
+    /**
+     * Read the next record if there is one.
+     * @return number of rows added to target, 0 if there is no record to read, -1 if the next record has more than maxKpis rows
+     */
+    private int readNext(KpiBatch target, int maxKpis) {
+        while (true) {
+            var publishedPosition = published;
+            var publishedSegment = publishedPosition >>> 32;
+            if (readSegment > publishedSegment || (readSegment == publishedSegment && readOffset >= (int) publishedPosition)) return 0;
+            try {
+                if (readBufferSegment != readSegment) {
+                    readBuffer = mapSegment(readSegment, FileChannel.MapMode.READ_ONLY);
+                    readBufferSegment = readSegment;
+                }
+            } catch (IOException e) {
+                logger.warn("Could not open segment {} of spool {}. Skipping segment.", readSegment, prefix, e);
+                nextReadSegment();
+                continue;
+            }
+            var length = readOffset + RECORD_HEADER_BYTES <= segmentBytes ? readBuffer.getInt(readOffset) : END_OF_SEGMENT;
+            if (length <= 0 || readOffset + RECORD_HEADER_BYTES + length > segmentBytes) {
+                // end of segment (or torn write before a crash): continue with the next segment
+                if (readSegment < publishedSegment) nextReadSegment();
+                else return 0;
+                continue;
+            }
+            if (!isCrcValid(readBuffer, readOffset, length, readCrc)) {
+                logger.warn("Corrupt record in segment {} of spool {}. Skipping rest of segment.", readSegment, prefix);
+                if (readSegment < publishedSegment) nextReadSegment();
+                else return 0;
+                continue;
+            }
+            var rows = readBuffer.getInt(readOffset + RECORD_HEADER_BYTES);
+            if (rows > maxKpis) return -1;
+            var added = decode(readBuffer, readOffset + RECORD_HEADER_BYTES, target);
+            readOffset += RECORD_HEADER_BYTES + length;
+            return added;
+        }
+    }
+
+    private void nextReadSegment() {
+        readSegment++;
+        readOffset = 0;
+    }
+
+    private static int decode(ByteBuffer buffer, int offset, KpiBatch target) {
+        var start = target.size();
+        var position = offset;
+        var rows = buffer.getInt(position);
+        position += 4;
+        for (var i = 0; i < rows; i++) {
+            var timestamp = buffer.getLong(position);
+            position += 8;
+            var equipmentLength = buffer.getShort(position);
+            var equipmentId = KpiDictionary.EQUIPMENT.idOfUtf8(buffer, position + 2, equipmentLength);
+            position += 2 + equipmentLength;
+            var nameLength = buffer.getShort(position);
+            var nameId = KpiDictionary.NAMES.idOfUtf8(buffer, position + 2, nameLength);
+            position += 2 + nameLength;
+            var unitId = buffer.getInt(position);
+            var value = buffer.getLong(position + 4);
+            position += 12;
+            // rows whose strings no longer fit into the dictionaries are skipped
+            if (equipmentId != KpiDictionary.FULL && nameId != KpiDictionary.FULL) {
+                target.add(equipmentId, timestamp, nameId, unitId, value);
+            }
+        }
+        return target.size() - start;
+    }
+
+    /**
+     * Mark all rows read so far as committed. They will not be replayed after a restart and fully committed segments are deleted.
+     * Must only be called by the reader thread.
+     */
+    public void commit() {
+        committedSegment = readSegment;
+        committedOffset = readOffset;
+        writeCheckpoint();
+        long deleteUpTo;
+        writeLock.lock();
+        try {
+            deleteUpTo = Math.min(committedSegment, writeSegment);
+            if (deleteUpTo <= oldestSegment) return;
+        } finally {
+            writeLock.unlock();
+        }
+        for (var segment = oldestSegment; segment < deleteUpTo; segment++) {
+            try {
+                Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                logger.warn("Could not delete committed segment {} of spool {}", segment, prefix, e);
+            }
+        }
+        writeLock.lock();
+        try {
+            oldestSegment = deleteUpTo;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Continue reading at the last checkpoint, e.g. because writing the rows read since then failed.
+     * Must only be called by the reader thread.
+     */
+    public void rewind() {
+        readSegment = committedSegment;
+        readOffset = committedOffset;
+    }
+
+    private void writeCheckpoint() {
+        checkpoint.putLong(0, committedSegment);
+        checkpoint.putInt(8, committedOffset);
+    }
+
+    /**
+     * Check whether all segments are in use, so that rows which do not fit into the current segment are dropped until committed segments are deleted.
+     * @return true if no further segment can be started
+     */
+    public boolean isFull() {
+        writeLock.lock();
+        try {
+            return writeSegment - oldestSegment + 1 >= maxSegments;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of KPI rows dropped because the spool was full.
+     * @return number of dropped KPIs
+     */
+    public long getDroppedKpis() {
+        writeLock.lock();
+        try {
+            return droppedKpis;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Force all written data and the checkpoint to the storage device.
+     */
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            writeBuffer.force();
+            checkpoint.force();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
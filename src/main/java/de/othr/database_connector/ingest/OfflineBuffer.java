@@ -0,0 +1,110 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+
+/**
+ * Memory-bounded buffer for batches which could not be written because the database is unreachable.
+ * If the memory limit is exceeded the oldest batches are discarded.
+ * @author Thomas Pilz
+ */
+public class OfflineBuffer {
+
+    private static final Logger logger = LoggerFactory.getLogger(OfflineBuffer.class);
+    /**
+     * Heap usage of a single row of a {@link KpiBatch} (timestamp, equipment ID, name ID, unit ID, value)
+     */
+    private static final long KPI_BYTES = 28;
+    /**
+     * Estimated heap usage of a batch without rows (object header and arrays)
+     */
+    private static final long BATCH_OVERHEAD_BYTES = 128;
+    private final ArrayDeque<KpiBatch> batches = new ArrayDeque<>();
+    private final ArrayDeque<Long> batchBytes = new ArrayDeque<>();
+    private final long maxBytes;
+    private long bytes = 0;
+    private long droppedKpis = 0;
+
+    /**
+     * Create a new offline buffer.
+     * @param maxBytes estimated heap usage up to which batches are buffered
+     */
+    public OfflineBuffer(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add a batch to the end of the buffer and discard the oldest batches if the memory limit is exceeded.
+     * @param batch batch to buffer. Must not be modified afterwards.
+     * @return number of discarded KPIs
+     */
+    public int add(KpiBatch batch){
+        var size = BATCH_OVERHEAD_BYTES + batch.capacity() * KPI_BYTES;
+        batches.addLast(batch);
+        batchBytes.addLast(size);
+        bytes += size;
+        var dropped = 0;
+        while(bytes > maxBytes && batches.size() > 1){
+            dropped += batches.pollFirst().size();
+            bytes -= batchBytes.pollFirst();
+        }
+        if(dropped > 0){
+            droppedKpis += dropped;
+            logger.warn("Offline buffer is full! Dropped {} KPIs so far.", droppedKpis);
+        }
+        return dropped;
+    }
+
+    /**
+     * Get the oldest buffered batch without removing it.
+     * @return oldest batch or null if the buffer is empty
+     */
+    public KpiBatch peek(){
+        return batches.peekFirst();
+    }
+
+    /**
+     * Remove the oldest buffered batch.
+     */
+    public void remove(){
+        if(batches.pollFirst() != null) bytes -= batchBytes.pollFirst();
+    }
+
+    public boolean isEmpty(){
+        return batches.isEmpty();
+    }
+
+    /**
+     * Get the number of buffered KPIs.
+     * @return number of KPIs in all buffered batches
+     */
+    public long size(){
+        return batches.stream().mapToLong(KpiBatch::size).sum();
+    }
+
+    /**
+     * Get the estimated heap usage of all buffered batches.
+     * @return estimated bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,247 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Reusable columnar batch of window aggregates of {@link Rollups}. Every row is the aggregate of the KPIs of one equipment, name and unit
+ * within one window, i.e. one row of a rollup table. Like in a {@link KpiBatch} values are scaled by {@link KpiBatch#VALUE_FACTOR}.
+ * Instances are not thread-safe.
+ * @author Thomas Pilz
+ */
+public class RollupBatch {
+
+    private int[] equipmentIds;
+    private int[] nameIds;
+    private int[] unitIds;
+    private long[] windows;
+    private long[] counts;
+    private long[] sums;
+    private long[] mins;
+    private long[] maxs;
+    private long[] lasts;
+    private long[] lastTimestamps;
+    private int size = 0;
+
+    /**
+     * Create a new empty batch.
+     * @param initialCapacity number of rows the batch can hold before it has to grow
+     */
+    public RollupBatch(int initialCapacity) {
+        var capacity = Math.max(initialCapacity, 1);
+        equipmentIds = new int[capacity];
+        nameIds = new int[capacity];
+        unitIds = new int[capacity];
+        windows = new long[capacity];
+        counts = new long[capacity];
+        sums = new long[capacity];
+        mins = new long[capacity];
+        maxs = new long[capacity];
+        lasts = new long[capacity];
+        lastTimestamps = new long[capacity];
+    }
+
+    /**
+     * Add a row.
+     * @param equipmentId ID of equipment in {@link KpiDictionary#EQUIPMENT}
+     * @param nameId ID of KPI name in {@link KpiDictionary#NAMES}
+     * @param unitId unit the KPIs are measured in
+     * @param window start of window in milliseconds since the Unix epoch
+     * @param count number of KPIs
+     * @param sum scaled sum of values
+     * @param min scaled minimum value
+     * @param max scaled maximum value
+     * @param last scaled value of the KPI with the latest timestamp
+     * @param lastTimestamp latest timestamp in milliseconds since the Unix epoch
+     */
+    public void add(int equipmentId, int nameId, int unitId, long window, long count, long sum, long min, long max, long last, long lastTimestamp) {
+        if (size == equipmentIds.length) grow();
+        equipmentIds[size] = equipmentId;
+        nameIds[size] = nameId;
+        unitIds[size] = unitId;
+        windows[size] = window;
+        counts[size] = count;
+        sums[size] = sum;
+        mins[size] = min;
+        maxs[size] = max;
+        lasts[size] = last;
+        lastTimestamps[size] = lastTimestamp;
+        size++;
+    }
+
+    private void grow() {
+        var capacity = equipmentIds.length * 2;
+        equipmentIds = Arrays.copyOf(equipmentIds, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        unitIds = Arrays.copyOf(unitIds, capacity);
+        windows = Arrays.copyOf(windows, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+    }
+
+    /**
+     * Add all rows of another batch.
+     * @param other batch whose rows are added
+     */
+    public void addAll(RollupBatch other) {
+        for (var i = 0; i < other.size; i++) {
+            add(other.equipmentIds[i], other.nameIds[i], other.unitIds[i], other.windows[i], other.counts[i], other.sums[i], other.mins[i], other.maxs[i],
+                    other.lasts[i], other.lastTimestamps[i]);
+        }
+    }
+
+    /**
+     * Merge rows of the same equipment, name, unit and window into the first of them, so every window appears only once.
+     * This happens if a window is reopened by KPIs arriving late while its earlier aggregate has not been written yet.
+     * Rows which cannot be merged because the sum would overflow are moved to another batch.
+     * @param overflow batch rows are moved to which could not be merged
+     * @return number of rows merged into another row
+     */
+    public int mergeWindows(RollupBatch overflow) {
+        if (size < 2) return 0;
+        var firstRows = new HashMap<WindowKey, Integer>();
+        var kept = 0;
+        var merged = 0;
+        for (var i = 0; i < size; i++) {
+            var j = firstRows.putIfAbsent(new WindowKey(equipmentIds[i], nameIds[i], unitIds[i], windows[i]), kept);
+            if (j == null) {
+                if (kept != i) moveRow(i, kept);
+                kept++;
+                continue;
+            }
+            var sum = sums[j] + sums[i];
+            // overflow if both operands have the opposite sign of the result
+            if (((sums[j] ^ sum) & (sums[i] ^ sum)) < 0) {
+                overflow.add(equipmentIds[i], nameIds[i], unitIds[i], windows[i], counts[i], sums[i], mins[i], maxs[i], lasts[i], lastTimestamps[i]);
+                continue;
+            }
+            counts[j] += counts[i];
+            sums[j] = sum;
+            mins[j] = Math.min(mins[j], mins[i]);
+            maxs[j] = Math.max(maxs[j], maxs[i]);
+            // later rows were aggregated later, so on equal timestamps they win like within a window
+            if (lastTimestamps[i] >= lastTimestamps[j]) {
+                lasts[j] = lasts[i];
+                lastTimestamps[j] = lastTimestamps[i];
+            }
+            merged++;
+        }
+        size = kept;
+        return merged;
+    }
+
+    private void moveRow(int from, int to) {
+        equipmentIds[to] = equipmentIds[from];
+        nameIds[to] = nameIds[from];
+        unitIds[to] = unitIds[from];
+        windows[to] = windows[from];
+        counts[to] = counts[from];
+        sums[to] = sums[from];
+        mins[to] = mins[from];
+        maxs[to] = maxs[from];
+        lasts[to] = lasts[from];
+        lastTimestamps[to] = lastTimestamps[from];
+    }
+
+    /**
+     * Remove all rows. The arrays are kept for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getEquipmentId(int row) {
+        return equipmentIds[row];
+    }
+
+    public int getNameId(int row) {
+        return nameIds[row];
+    }
+
+    public int getUnitId(int row) {
+        return unitIds[row];
+    }
+
+    /**
+     * Get the start of the window of a row.
+     * @param row index of row
+     * @return milliseconds since the Unix epoch
+     */
+    public long getWindow(int row) {
+        return windows[row];
+    }
+
+    public long getCount(int row) {
+        return counts[row];
+    }
+
+    public long getScaledSum(int row) {
+        return sums[row];
+    }
+
+    public long getScaledMin(int row) {
+        return mins[row];
+    }
+
+    public long getScaledMax(int row) {
+        return maxs[row];
+    }
+
+    public long getScaledLast(int row) {
+        return lasts[row];
+    }
+
+    public long getLastTimestamp(int row) {
+        return lastTimestamps[row];
+    }
+
+    public String getEquipment(int row) {
+        return KpiDictionary.EQUIPMENT.get(equipmentIds[row]);
+    }
+
+    public String getName(int row) {
+        return KpiDictionary.NAMES.get(nameIds[row]);
+    }
+
+    /**
+     * Convert a scaled value to a decimal. Allocates, so only meant for APIs that require a BigDecimal.
+     * @param scaledValue value multiplied by {@link KpiBatch#VALUE_FACTOR}
+     * @return value
+     */
+    public static BigDecimal toDecimal(long scaledValue) {
+        return BigDecimal.valueOf(scaledValue, KpiBatch.VALUE_SCALE);
+    }
+
+    private record WindowKey(int equipmentId, int nameId, int unitId, long window) {}
+}
@@ -0,0 +1,54 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Length of the tumbling windows KPIs are aggregated over by {@link Rollups}, each written to its own rollup table.
+ * @author Thomas Pilz
+ */
+public enum RollupInterval {
+    MINUTE(60_000L, "kpis_1m"),
+    HOUR(3_600_000L, "kpis_1h");
+
+    private final long lengthMs;
+    private final String table;
+
+    RollupInterval(long lengthMs, String table) {
+        this.lengthMs = lengthMs;
+        this.table = table;
+    }
+
+    public long getLengthMs() {
+        return lengthMs;
+    }
+
+    /**
+     * Get the table closed windows of this interval are written to.
+     * @return name of rollup table
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Get the start of the window a timestamp belongs to.
+     * @param unixTimestamp milliseconds since the Unix epoch
+     * @return start of window in milliseconds since the Unix epoch
+     */
+    public long windowOf(long unixTimestamp) {
+        return Math.floorDiv(unixTimestamp, lengthMs) * lengthMs;
+    }
+}
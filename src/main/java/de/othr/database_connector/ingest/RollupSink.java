@@ -0,0 +1,44 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Destination {@link Rollups} write the aggregates of closed windows to.
+ * @author Thomas Pilz
+ */
+public interface RollupSink {
+
+    /**
+     * Check whether the sink is currently able to take aggregates.
+     * @return false if the sink is known to be unreachable
+     */
+    boolean isAvailable();
+
+    /**
+     * Write aggregates. Aggregates of a window which was written before must be merged with it, as KPIs can arrive after their window was written.
+     * @param interval interval of the windows
+     * @param windows aggregates of windows
+     * @return false if the aggregates could not be written because the sink is unreachable and should be retried later.
+     * True if they were written or rejected for good.
+     */
+    boolean write(RollupInterval interval, RollupBatch windows);
+
+    /**
+     * Release resources of the sink once the rollups are closed.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,352 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import de.othr.database_connector.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates KPIs per equipment, name and unit over tumbling windows of one or more {@link RollupInterval}s while they are received
+ * and writes the aggregates (count, sum, min, max and last value) of closed windows to a {@link RollupSink}, e.g. the rollup tables.
+ * Open windows are kept in primitive hash tables, striped by equipment so that KPIs of different equipment are aggregated in parallel.
+ * Windows are assigned by the timestamp of a KPI and closed once the wall clock passed their end by the allowed lateness.
+ * KPIs arriving after their window was written are aggregated into a new window which the sink merges with the written one.
+ * Raw rows of selected KPI names can be dropped once they are aggregated, so they are only stored as rollups.
+ * Aggregates of open windows are only held in memory and lost if the connector crashes. They are written when the rollups are closed.
+ * @author Thomas Pilz
+ */
+public class Rollups implements KpiFilter, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Rollups.class);
+    private static final ErrorReporter errors = new ErrorReporter(logger);
+    private static final int STRIPES = 16;
+    private static final long FLUSH_INTERVAL_MS = 5000;
+    private final RollupInterval[] intervals;
+    private final long latenessMs;
+    private final int maxWindows;
+    private final BitSet rollupOnly = new BitSet();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    /**
+     * Aggregates of closed windows per interval which have not been written yet. Only accessed by the flushing thread.
+     */
+    private final RollupBatch[] pending;
+    /**
+     * Aggregates of windows which are pending twice and could not be merged. Written after the pending batch of their interval.
+     */
+    private final RollupBatch[] overflow;
+    private final RollupSink sink;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Create new rollups.
+     * @param intervals intervals KPIs are aggregated over
+     * @param latenessMs time in milliseconds a window is kept open after its end for KPIs which arrive late
+     * @param maxWindows maximum number of open windows per interval. KPIs which do not fit are not aggregated.
+     * @param rollupOnlyNames names of KPIs whose raw rows are dropped once they are aggregated. Must be empty if messages are acknowledged
+     * once their KPIs are written, as these rows are only kept in memory until their window is written.
+     * @param sink destination of closed windows
+     */
+    public Rollups(List<RollupInterval> intervals, long latenessMs, int maxWindows, Collection<String> rollupOnlyNames, RollupSink sink) {
+        if (intervals.isEmpty()) throw new IllegalArgumentException("At least one rollup interval is required!");
+        this.intervals = intervals.stream().distinct().toArray(RollupInterval[]::new);
+        this.latenessMs = latenessMs;
+        this.maxWindows = maxWindows;
+        this.sink = sink;
+        for (var name : rollupOnlyNames) {
+            var id = KpiDictionary.NAMES.idOf(name);
+            if (id != KpiDictionary.FULL) rollupOnly.set(id);
+        }
+        for (var i = 0; i < STRIPES; i++) stripes[i] = new Stripe(this.intervals.length, Math.max(1, maxWindows / STRIPES));
+        pending = new RollupBatch[this.intervals.length];
+        overflow = new RollupBatch[this.intervals.length];
+        for (var i = 0; i < pending.length; i++) {
+            pending[i] = new RollupBatch(1024);
+            overflow[i] = new RollupBatch(1);
+        }
+    }
+
+    /**
+     * Write closed windows in the background.
+     */
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("rollup-flusher").factory());
+        flusher.scheduleWithFixedDelay(() -> flush(false), FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Aggregate all rows of a batch and remove the rows of KPIs which are only stored as rollups.
+     * Rows which could not be aggregated into the windows of all intervals are kept, so they are at least stored raw.
+     * @param rows rows of a single equipment, usually all KPIs of one message
+     * @return number of removed rows
+     */
+    @Override
+    public int filter(KpiBatch rows) {
+        if (rows.isEmpty()) return 0;
+        var stripe = stripes[Math.floorMod(rows.getEquipmentId(0), STRIPES)];
+        var kept = 0;
+        var skipped = 0;
+        synchronized (stripe) {
+            for (var i = 0; i < rows.size(); i++) {
+                var aggregated = true;
+                for (var t = 0; t < intervals.length; t++) {
+                    aggregated &= stripe.tables[t].add(rows.getEquipmentId(i), rows.getNameId(i), rows.getUnitId(i),
+                            intervals[t].windowOf(rows.getTimestamp(i)), rows.getTimestamp(i), rows.getScaledValue(i));
+                }
+                if (!aggregated) skipped++;
+                if (aggregated && rollupOnly.get(rows.getNameId(i))) continue;
+                if (kept != i) rows.moveRow(i, kept);
+                kept++;
+            }
+        }
+        var removed = rows.size() - kept;
+        rows.truncate(kept);
+        if (skipped > 0) Metrics.ROLLUP_SKIPPED.add(skipped);
+        return removed;
+    }
+
+    /**
+     * Write the aggregates of closed windows. Aggregates which cannot be written are kept and written with the next flush.
+     * No more windows are taken from the tables while maxWindows aggregates are pending, so the memory used stays bounded
+     * while the sink is unavailable. Is only called by the flushing thread or once it has stopped (or was never started).
+     * @param all true to write all windows including the open ones
+     */
+    void flush(boolean all) {
+        var now = System.currentTimeMillis();
+        for (var t = 0; t < intervals.length; t++) {
+            var interval = intervals[t];
+            var batch = pending[t];
+            var lastClosed = all ? Long.MAX_VALUE : now - interval.getLengthMs() - latenessMs;
+            if (batch.size() < maxWindows) {
+                var retry = !batch.isEmpty();
+                for (var stripe : stripes) {
+                    synchronized (stripe) {
+                        stripe.tables[t].drain(lastClosed, batch);
+                    }
+                }
+                // late KPIs may have reopened a window which is still pending, but an upsert must not affect a row twice
+                if (retry) batch.mergeWindows(overflow[t]);
+            }
+            if (batch.isEmpty() || !sink.isAvailable()) continue;
+            try {
+                if (!sink.write(interval, batch)) continue;
+                Metrics.ROLLUP_WINDOWS_WRITTEN.add(batch.size());
+            } catch (RuntimeException e) {
+                errors.error("ROLLUP", "Could not write %d windows to %s! Windows are dropped.".formatted(batch.size(), interval.getTable()), e);
+            }
+            batch.clear();
+            batch.addAll(overflow[t]);
+            overflow[t].clear();
+        }
+    }
+
+    /**
+     * Get the number of open windows of all intervals.
+     * @return number of windows
+     */
+    public int getOpenWindows() {
+        var count = 0;
+        for (var stripe : stripes) {
+            synchronized (stripe) {
+                for (var table : stripe.tables) count += table.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stop writing in the background and write all windows including the open ones. KPIs must no longer be aggregated.
+     */
+    @Override
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS)) flusher.shutdownNow();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush(true);
+        var unwritten = 0;
+        for (var t = 0; t < pending.length; t++) unwritten += pending[t].size() + overflow[t].size();
+        if (unwritten > 0) logger.warn("Could not write {} rollup windows!", unwritten);
+        sink.close();
+    }
+
+    /**
+     * Open windows of all intervals of the equipment mapped to this stripe. Must only be accessed while holding its monitor.
+     */
+    private static final class Stripe {
+        final WindowTable[] tables;
+
+        Stripe(int intervals, int maxWindows) {
+            tables = new WindowTable[intervals];
+            for (var i = 0; i < intervals; i++) tables[i] = new WindowTable(maxWindows);
+        }
+    }
+
+    /**
+     * Open addressing hash table with linear probing of window aggregates, keyed by equipment, name, unit and window start
+     */
+    private static final class WindowTable {
+        private static final long EMPTY = -1;
+        private static final int INITIAL_CAPACITY = 64;
+        private final int maxSize;
+        /**
+         * Equipment ID in the upper and name ID in the lower 32 bits or {@link #EMPTY}
+         */
+        private long[] series;
+        private int[] units;
+        private long[] windows;
+        private long[] counts;
+        private long[] sums;
+        private long[] mins;
+        private long[] maxs;
+        private long[] lasts;
+        private long[] lastTimestamps;
+        private int mask;
+        private int size = 0;
+
+        WindowTable(int maxSize) {
+            this.maxSize = maxSize;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            series = new long[capacity];
+            Arrays.fill(series, EMPTY);
+            units = new int[capacity];
+            windows = new long[capacity];
+            counts = new long[capacity];
+            sums = new long[capacity];
+            mins = new long[capacity];
+            maxs = new long[capacity];
+            lasts = new long[capacity];
+            lastTimestamps = new long[capacity];
+            mask = capacity - 1;
+        }
+
+        private int slotOf(long key, int unit, long window) {
+            var h = key * 0x9E3779B97F4A7C15L + window * 0xC2B2AE3D27D4EB4FL + unit;
+            var i = (int) (h ^ (h >>> 32)) & mask;
+            while (series[i] != EMPTY && (series[i] != key || windows[i] != window || units[i] != unit)) i = (i + 1) & mask;
+            return i;
+        }
+
+        /**
+         * Add a KPI to its window.
+         * @return false if the KPI was not added because the table is full or the sum would overflow
+         */
+        boolean add(int equipmentId, int nameId, int unitId, long window, long timestamp, long value) {
+            var key = (long) equipmentId << 32 | nameId;
+            var i = slotOf(key, unitId, window);
+            if (series[i] == EMPTY) {
+                if (size >= maxSize) return false;
+                put(i, key, unitId, window, 1, value, value, value, value, timestamp);
+                return true;
+            }
+            var sum = sums[i] + value;
+            // overflow if both operands have the opposite sign of the result
+            if (((sums[i] ^ sum) & (value ^ sum)) < 0) return false;
+            sums[i] = sum;
+            counts[i]++;
+            if (value < mins[i]) mins[i] = value;
+            if (value > maxs[i]) maxs[i] = value;
+            // on equal timestamps the KPI received last wins
+            if (timestamp >= lastTimestamps[i]) {
+                lasts[i] = value;
+                lastTimestamps[i] = timestamp;
+            }
+            return true;
+        }
+
+        private void put(int i, long key, int unit, long window, long count, long sum, long min, long max, long last, long lastTimestamp) {
+            series[i] = key;
+            units[i] = unit;
+            windows[i] = window;
+            counts[i] = count;
+            sums[i] = sum;
+            mins[i] = min;
+            maxs[i] = max;
+            lasts[i] = last;
+            lastTimestamps[i] = lastTimestamp;
+            // keep load factor below 0.5
+            if (++size * 2 > series.length) rehash(series.length * 2);
+        }
+
+        /**
+         * Move all windows which started at or before the given time to the batch.
+         * @param lastClosed start of the latest closed window in milliseconds since the Unix epoch
+         * @param out batch the windows are added to
+         */
+        void drain(long lastClosed, RollupBatch out) {
+            var removed = 0;
+            for (var i = 0; i < series.length; i++) {
+                if (series[i] == EMPTY || windows[i] > lastClosed) continue;
+                out.add((int) (series[i] >>> 32), (int) series[i], units[i], windows[i], counts[i], sums[i], mins[i], maxs[i], lasts[i], lastTimestamps[i]);
+                series[i] = EMPTY;
+                removed++;
+            }
+            if (removed == 0) return;
+            size -= removed;
+            // shrink again once the windows of a peak have been written
+            var capacity = series.length;
+            while (capacity > INITIAL_CAPACITY && size * 8 < capacity) capacity /= 2;
+            rehash(capacity);
+        }
+
+        /**
+         * Move all windows into new arrays, which also closes the gaps left by removed windows
+         */
+        private void rehash(int capacity) {
+            var oldSeries = series;
+            var oldUnits = units;
+            var oldWindows = windows;
+            var oldCounts = counts;
+            var oldSums = sums;
+            var oldMins = mins;
+            var oldMaxs = maxs;
+            var oldLasts = lasts;
+            var oldLastTimestamps = lastTimestamps;
+            allocate(capacity);
+            for (var j = 0; j < oldSeries.length; j++) {
+                if (oldSeries[j] == EMPTY) continue;
+                var i = slotOf(oldSeries[j], oldUnits[j], oldWindows[j]);
+                series[i] = oldSeries[j];
+                units[i] = oldUnits[j];
+                windows[i] = oldWindows[j];
+                counts[i] = oldCounts[j];
+                sums[i] = oldSums[j];
+                mins[i] = oldMins[j];
+                maxs[i] = oldMaxs[j];
+                lasts[i] = oldLasts[j];
+                lastTimestamps[i] = oldLastTimestamps[j];
+            }
+        }
+    }
+}
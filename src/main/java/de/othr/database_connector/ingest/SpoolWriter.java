@@ -0,0 +1,157 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Partition which appends received KPIs to a durable {@link KpiSpool} and writes them from there to a {@link KpiSink}.
+ * A batch which could not be written is kept and retried, the spool checkpoint only advances once it was written.
+ * Batches which were not written before the connector stopped are read again after a restart.
+ * While the sink is unavailable KPIs pile up on disk instead of in memory.
+ * Messages are acknowledged as soon as their rows are appended to the spool, as the spool survives a restart of the connector.
+ * For the same reason a finishing writer stops right away while the sink is unavailable.
+ * Messages whose rows could not be appended are not acknowledged.
+ * A batch which fails with an exception is retried with exponential backoff and dropped after {@value #MAX_ATTEMPTS} attempts.
+ * @author Thomas Pilz
+ */
+public class SpoolWriter implements IngestPartition {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoolWriter.class);
+    /**
+     * Limits the log output of batches which fail over and over again. Shared by all writers.
+     */
+    private static final ErrorReporter errors = new ErrorReporter(logger);
+    /**
+     * Number of attempts after which a batch which keeps failing with an exception is dropped
+     */
+    private static final int MAX_ATTEMPTS = 5;
+    /**
+     * Delay before the second attempt to write a failing batch, doubled for every further attempt
+     */
+    private static final long INITIAL_BACKOFF_MS = 100;
+    /**
+     * Maximum delay between two attempts to write a failing batch
+     */
+    private static final long MAX_BACKOFF_MS = 10_000;
+    private final KpiSpool spool;
+    private final int batchSize;
+    private final long lingerMs;
+    private final KpiSink sink;
+    /**
+     * Number of consecutive attempts the current batch failed with an exception
+     */
+    private int failures = 0;
+    private volatile boolean running = true;
+    private volatile boolean finishing = false;
+
+    /**
+     * Create a new spool writer.
+     * @param spool spool KPIs are appended to
+     * @param batchSize maximum number of KPIs per batch
+     * @param lingerMs maximum time in milliseconds to wait for a batch to fill up
+     * @param sink destination of batches
+     */
+    public SpoolWriter(KpiSpool spool, int batchSize, long lingerMs, KpiSink sink) {
+        this.spool = spool;
+        this.batchSize = batchSize;
+        this.lingerMs = lingerMs;
+        this.sink = sink;
+    }
+
+    /**
+     * Append rows to the spool and acknowledge their message once they are appended.
+     * If the spool is full, messages to acknowledge wait until the writer committed a segment, so the broker's receive maximum throttles it.
+     * Messages whose rows cannot be appended are not acknowledged, so the broker redelivers them after a reconnect.
+     * @param rows rows of one message
+     * @param ack acknowledgement of the message or null
+     * @throws InterruptedException if interrupted while waiting for the spool to have room
+     */
+    @Override
+    public void offer(KpiBatch rows, Acknowledgement ack) throws InterruptedException {
+        if(rows.isEmpty() || spool.append(rows)){
+            if(ack != null) ack.acknowledge();
+            return;
+        }
+        if(ack != null){
+            while(spool.isFull() && running && !finishing) Thread.sleep(lingerMs);
+            if(!spool.isFull() && spool.append(rows)){
+                ack.acknowledge();
+                return;
+            }
+        }
+        Metrics.SPOOL_DROPPED.add(rows.size());
+    }
+
+    @Override
+    public void run() {
+        var batch = new KpiBatch(batchSize);
+        // true while the batch could not be written, it is then written again instead of reading new rows
+        var retry = false;
+        while(running){
+            try {
+                // back off exponentially while the current batch keeps failing
+                if(failures > 0) Thread.sleep(Math.min(INITIAL_BACKOFF_MS << (failures - 1), MAX_BACKOFF_MS));
+                if(!sink.isAvailable()){
+                    if(finishing) break;
+                    Thread.sleep(lingerMs);
+                    continue;
+                }
+                if(!retry && spool.read(batch, batchSize, lingerMs) == 0){
+                    sink.flush();
+                    if(finishing) break;
+                    continue;
+                }
+                retry = !sink.write(batch, retry);
+                failures = 0;
+                if(retry) continue;
+                spool.commit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e){
+                if(++failures < MAX_ATTEMPTS){
+                    errors.error("WRITE", "Could not write batch of %d KPIs! Batch is retried.".formatted(batch.size()), e);
+                    retry = true;
+                    continue;
+                }
+                // a batch which keeps failing would block the spool forever, so it is skipped like the BatchingWriter does right away
+                errors.error("WRITE", "Could not write batch of %d KPIs after %d attempts! Batch is dropped.".formatted(batch.size(), failures), e);
+                spool.commit();
+                failures = 0;
+                retry = false;
+            }
+            batch.clear();
+        }
+        sink.close();
+        spool.close();
+        logger.info("Writer {} stopped", Thread.currentThread().getName());
+    }
+
+    @Override
+    public void stop(){
+        running = false;
+    }
+
+    @Override
+    public void finish(){
+        finishing = true;
+    }
+}
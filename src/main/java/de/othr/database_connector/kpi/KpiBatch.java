@@ -0,0 +1,280 @@
+package de.othr.database_connector.kpi;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * Reusable columnar batch of KPI rows. Every row is one KPI measurement, i.e. one row of the kpis table.
+ * Columns are parallel primitive arrays so adding, copying and writing rows does not allocate any objects.
+ * Equipment numbers and KPI names are stored as IDs of {@link KpiDictionary#EQUIPMENT} and {@link KpiDictionary#NAMES}.
+ * Values are stored as long scaled by 10^{@value #VALUE_SCALE}, the precision required by the message schema.
+ * Instances are not thread-safe.
+ * @author Thomas Pilz
+ */
+public class KpiBatch {
+
+    /**
+     * Number of decimal places of values
+     */
+    public static final int VALUE_SCALE = 2;
+    /**
+     * Factor between a value and its scaled representation
+     */
+    public static final long VALUE_FACTOR = 100;
+
+    private long[] timestamps;
+    private int[] equipmentIds;
+    private int[] nameIds;
+    private int[] unitIds;
+    private long[] values;
+    private int size = 0;
+
+    /**
+     * Create a new empty batch.
+     * @param initialCapacity number of rows the batch can hold before it has to grow
+     */
+    public KpiBatch(int initialCapacity) {
+        var capacity = Math.max(initialCapacity, 1);
+        timestamps = new long[capacity];
+        equipmentIds = new int[capacity];
+        nameIds = new int[capacity];
+        unitIds = new int[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * Add a row.
+     * @param equipmentId ID of equipment in {@link KpiDictionary#EQUIPMENT}
+     * @param unixTimestamp milliseconds since the Unix epoch
+     * @param nameId ID of KPI name in {@link KpiDictionary#NAMES}
+     * @param unitId unit the KPI is measured in
+     * @param scaledValue value multiplied by {@link #VALUE_FACTOR}
+     */
+    public void add(int equipmentId, long unixTimestamp, int nameId, int unitId, long scaledValue) {
+        if (size == timestamps.length) grow(size + 1);
+        timestamps[size] = unixTimestamp;
+        equipmentIds[size] = equipmentId;
+        nameIds[size] = nameId;
+        unitIds[size] = unitId;
+        values[size] = scaledValue;
+        size++;
+    }
+
+    /**
+     * Add all KPIs of a message. Either all KPIs are added or none.
+     * Values with more than {@value #VALUE_SCALE} decimal places are rounded half up.
+     * @param msg message containing KPIs
+     * @return false if the message has no client ID, contains a KPI without name or value or a value out of range
+     */
+    public boolean add(KpiMsg msg) {
+        if (msg.getClientId() == null || msg.getKpis() == null) return false;
+        var equipmentId = KpiDictionary.EQUIPMENT.idOf(msg.getClientId());
+        if (equipmentId == KpiDictionary.FULL) return false;
+        var start = size;
+        for (var kpi : msg.getKpis()) {
+            if (kpi.getName() == null || kpi.getValue() == null) {
+                truncate(start);
+                return false;
+            }
+            var nameId = KpiDictionary.NAMES.idOf(kpi.getName());
+            if (nameId == KpiDictionary.FULL) {
+                truncate(start);
+                return false;
+            }
+            long scaledValue;
+            try {
+                scaledValue = toScaled(kpi.getValue());
+            } catch (ArithmeticException e) {
+                truncate(start);
+                return false;
+            }
+            add(equipmentId, msg.getUnixTimestamp(), nameId, kpi.getUnitId(), scaledValue);
+        }
+        return true;
+    }
+
+    /**
+     * Append rows of another batch.
+     * @param other batch to copy rows from
+     * @param from index of first row to copy
+     * @param to index after the last row to copy
+     */
+    public void addAll(KpiBatch other, int from, int to) {
+        var count = to - from;
+        if (size + count > timestamps.length) grow(size + count);
+        System.arraycopy(other.timestamps, from, timestamps, size, count);
+        System.arraycopy(other.equipmentIds, from, equipmentIds, size, count);
+        System.arraycopy(other.nameIds, from, nameIds, size, count);
+        System.arraycopy(other.unitIds, from, unitIds, size, count);
+        System.arraycopy(other.values, from, values, size, count);
+        size += count;
+    }
+
+    /**
+     * Append all rows of another batch.
+     * @param other batch to copy rows from
+     */
+    public void addAll(KpiBatch other) {
+        addAll(other, 0, other.size);
+    }
+
+    private void grow(int minCapacity) {
+        var capacity = Math.max(minCapacity, timestamps.length * 2);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        equipmentIds = Arrays.copyOf(equipmentIds, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        unitIds = Arrays.copyOf(unitIds, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    /**
+     * Convert a decimal value to its scaled representation.
+     * @param value decimal value
+     * @return value multiplied by {@link #VALUE_FACTOR}
+     * @throws ArithmeticException if the value does not fit into a long
+     */
+    public static long toScaled(BigDecimal value) {
+        return value.setScale(VALUE_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Set equipment and timestamp of all rows from the given index on.
+     * Used by decoders which only know them once all KPIs of a message have been read.
+     * @param from index of first row
+     * @param equipmentId ID of equipment in {@link KpiDictionary#EQUIPMENT}
+     * @param unixTimestamp milliseconds since the Unix epoch
+     */
+    public void setEquipmentAndTimestamp(int from, int equipmentId, long unixTimestamp) {
+        Arrays.fill(equipmentIds, from, size, equipmentId);
+        Arrays.fill(timestamps, from, size, unixTimestamp);
+    }
+
+    /**
+     * Overwrite a row.
+     * @param row index of row
+     * @param equipmentId ID of equipment in {@link KpiDictionary#EQUIPMENT}
+     * @param unixTimestamp milliseconds since the Unix epoch
+     * @param nameId ID of KPI name in {@link KpiDictionary#NAMES}
+     * @param unitId unit the KPI is measured in
+     * @param scaledValue value multiplied by {@link #VALUE_FACTOR}
+     */
+    public void set(int row, int equipmentId, long unixTimestamp, int nameId, int unitId, long scaledValue) {
+        timestamps[row] = unixTimestamp;
+        equipmentIds[row] = equipmentId;
+        nameIds[row] = nameId;
+        unitIds[row] = unitId;
+        values[row] = scaledValue;
+    }
+
+    /**
+     * Overwrite a row with another row of this batch, e.g. to remove rows by moving the following rows forward.
+     * @param from index of row to copy
+     * @param to index of row to overwrite
+     */
+    public void moveRow(int from, int to) {
+        timestamps[to] = timestamps[from];
+        equipmentIds[to] = equipmentIds[from];
+        nameIds[to] = nameIds[from];
+        unitIds[to] = unitIds[from];
+        values[to] = values[from];
+    }
+
+    /**
+     * Remove all rows from the given index on.
+     * @param newSize number of rows to keep
+     */
+    public void truncate(int newSize) {
+        if (newSize < size) size = newSize;
+    }
+
+    /**
+     * Remove all rows. The arrays are kept for reuse.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of rows the batch can hold without growing.
+     * @return capacity in rows
+     */
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getTimestamp(int row) {
+        return timestamps[row];
+    }
+
+    public int getEquipmentId(int row) {
+        return equipmentIds[row];
+    }
+
+    public int getNameId(int row) {
+        return nameIds[row];
+    }
+
+    public int getUnitId(int row) {
+        return unitIds[row];
+    }
+
+    /**
+     * Get the value of a row multiplied by {@link #VALUE_FACTOR}.
+     * @param row index of row
+     * @return scaled value
+     */
+    public long getScaledValue(int row) {
+        return values[row];
+    }
+
+    /**
+     * Get the equipment number of a row.
+     * @param row index of row
+     * @return interned equipment number
+     */
+    public String getEquipment(int row) {
+        return KpiDictionary.EQUIPMENT.get(equipmentIds[row]);
+    }
+
+    /**
+     * Get the KPI name of a row.
+     * @param row index of row
+     * @return interned KPI name
+     */
+    public String getName(int row) {
+        return KpiDictionary.NAMES.get(nameIds[row]);
+    }
+
+    /**
+     * Get the value of a row as decimal. Allocates, so only meant for APIs that require a BigDecimal.
+     * @param row index of row
+     * @return value
+     */
+    public BigDecimal getValue(int row) {
+        return BigDecimal.valueOf(values[row], VALUE_SCALE);
+    }
+}
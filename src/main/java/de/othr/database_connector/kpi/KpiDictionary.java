@@ -0,0 +1,207 @@
+package de.othr.database_connector.kpi;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Interns strings (equipment numbers, KPI names) and assigns every distinct string a dense int ID.
+ * Lookups of known strings are lock-free and allocation-free, also when the string is given as a char or byte range.
+ * Only adding a new string takes a lock.
+ * IDs are only valid within the running process.
+ * @author Thomas Pilz
+ */
+public class KpiDictionary {
+
+    /**
+     * Dictionary of equipment numbers (client IDs)
+     */
+    public static final KpiDictionary EQUIPMENT = new KpiDictionary(1 << 20);
+    /**
+     * Dictionary of KPI names
+     */
+    public static final KpiDictionary NAMES = new KpiDictionary(1 << 20);
+    /**
+     * Returned if a string cannot be added because the dictionary is full
+     */
+    public static final int FULL = -1;
+
+    private static final VarHandle STRINGS = MethodHandles.arrayElementVarHandle(String[].class);
+
+    /**
+     * Hash table of interned strings with their IDs (open addressing, linear probing)
+     */
+    private static final class Table {
+        final String[] keys;
+        final int[] ids;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new String[capacity];
+            ids = new int[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private final int maxEntries;
+    private volatile Table table = new Table(1024);
+    private volatile String[] byId = new String[1024];
+    private int size = 0;
+
+    /**
+     * Create a new dictionary.
+     * @param maxEntries maximum number of distinct strings
+     */
+    public KpiDictionary(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Get the ID of a string and add it if it is not known yet.
+     * @param s string
+     * @return ID of string or {@link #FULL} if it is unknown and the dictionary is full
+     */
+    public int idOf(String s) {
+        var t = table;
+        for (var i = s.hashCode() & t.mask; ; i = (i + 1) & t.mask) {
+            var key = (String) STRINGS.getAcquire(t.keys, i);
+            if (key == null) break;
+            if (key.equals(s)) return t.ids[i];
+        }
+        return add(s);
+    }
+
+    /**
+     * Get the ID of the string made of the given chars and add it if it is not known yet.
+     * No string is allocated if the string is known.
+     * @param chars char buffer
+     * @param offset index of first char
+     * @param length number of chars
+     * @return ID of string or {@link #FULL} if it is unknown and the dictionary is full
+     */
+    public int idOf(char[] chars, int offset, int length) {
+        var hash = 0;
+        for (var i = offset; i < offset + length; i++) hash = 31 * hash + chars[i];
+        var t = table;
+        probe:
+        for (var i = hash & t.mask; ; i = (i + 1) & t.mask) {
+            var key = (String) STRINGS.getAcquire(t.keys, i);
+            if (key == null) break;
+            if (key.length() != length) continue;
+            for (var j = 0; j < length; j++) {
+                if (key.charAt(j) != chars[offset + j]) continue probe;
+            }
+            return t.ids[i];
+        }
+        return add(new String(chars, offset, length));
+    }
+
+    /**
+     * Get the ID of the string given as UTF-8 bytes and add it if it is not known yet.
+     * No string is allocated if the string is known and consists of ASCII characters only.
+     * @param buffer buffer holding the bytes
+     * @param offset index of first byte
+     * @param length number of bytes
+     * @return ID of string or {@link #FULL} if it is unknown and the dictionary is full
+     */
+    public int idOfUtf8(ByteBuffer buffer, int offset, int length) {
+        var hash = 0;
+        for (var i = offset; i < offset + length; i++) {
+            var b = buffer.get(i);
+            if (b < 0) return idOf(decodeUtf8(buffer, offset, length));
+            hash = 31 * hash + b;
+        }
+        var t = table;
+        probe:
+        for (var i = hash & t.mask; ; i = (i + 1) & t.mask) {
+            var key = (String) STRINGS.getAcquire(t.keys, i);
+            if (key == null) break;
+            if (key.length() != length) continue;
+            for (var j = 0; j < length; j++) {
+                if (key.charAt(j) != buffer.get(offset + j)) continue probe;
+            }
+            return t.ids[i];
+        }
+        return idOf(decodeUtf8(buffer, offset, length));
+    }
+
+    private static String decodeUtf8(ByteBuffer buffer, int offset, int length) {
+        var bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private synchronized int add(String s) {
+        var t = table;
+        var i = s.hashCode() & t.mask;
+        for (; t.keys[i] != null; i = (i + 1) & t.mask) {
+            if (t.keys[i].equals(s)) return t.ids[i];
+        }
+        if (size >= maxEntries) return FULL;
+        var id = size++;
+        var names = byId;
+        if (id == names.length) {
+            var grown = new String[names.length * 2];
+            System.arraycopy(names, 0, grown, 0, names.length);
+            names = grown;
+        }
+        STRINGS.setRelease(names, id, s);
+        byId = names;
+        // keep load factor below 0.5
+        if (size * 2 > t.keys.length) {
+            table = rehash(t, s, id);
+        } else {
+            t.ids[i] = id;
+            STRINGS.setRelease(t.keys, i, s);
+        }
+        return id;
+    }
+
+    private static Table rehash(Table old, String s, int id) {
+        var t = new Table(old.keys.length * 2);
+        for (var i = 0; i < old.keys.length; i++) {
+            if (old.keys[i] != null) put(t, old.keys[i], old.ids[i]);
+        }
+        put(t, s, id);
+        return t;
+    }
+
+    private static void put(Table t, String s, int id) {
+        var i = s.hashCode() & t.mask;
+        while (t.keys[i] != null) i = (i + 1) & t.mask;
+        t.ids[i] = id;
+        t.keys[i] = s;
+    }
+
+    /**
+     * Get the string with the given ID.
+     * @param id ID returned by one of the idOf methods
+     * @return interned string
+     */
+    public String get(int id) {
+        return (String) STRINGS.getAcquire(byId, id);
+    }
+
+    /**
+     * Get the number of distinct strings.
+     * @return number of strings
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
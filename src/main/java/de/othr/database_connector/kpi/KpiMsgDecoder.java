@@ -0,0 +1,287 @@
+package de.othr.database_connector.kpi;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Streaming decoder which reads a KPI message (see kpi_msg_schema.json) from its raw JSON payload and appends one row
+ * per KPI to a {@link KpiBatch}. The payload is walked once using Jackson's token API without creating
+ * {@link KpiMsg}/{@link Kpi} objects, Strings or BigDecimals for known equipment and KPI names.
+ * <p>
+ * The rules of the schema are enforced: required fields clientId (10 chars), unixTimestamp (integral number),
+ * timestamp (24 chars) and kpis (array), no other top-level fields, KPI names with at most 40 chars, unit IDs 1 to 6
+ * and values which are a multiple of 0.01. In addition every KPI must be an object with name, unitId and value
+ * as a row cannot be inserted otherwise.
+ * If the schema changes, the decoder and {@link #SCHEMA_FINGERPRINT} have to be updated.
+ * <p>
+ * Instances are not thread-safe.
+ * @author Thomas Pilz
+ */
+public class KpiMsgDecoder {
+
+    /**
+     * Reason why a payload was rejected
+     */
+    public enum Violation {
+        NO_JSON("Payload is no valid JSON"),
+        NO_OBJECT("Message must be a JSON object"),
+        UNKNOWN_FIELD("Message contains a field which is not allowed"),
+        MISSING_FIELD("Message must contain clientId, unixTimestamp, timestamp and kpis"),
+        INVALID_CLIENT_ID("clientId must be a string of 10 characters"),
+        INVALID_UNIX_TIMESTAMP("unixTimestamp must be an integral number"),
+        INVALID_TIMESTAMP("timestamp must be a string of 24 characters"),
+        INVALID_KPIS("kpis must be an array of objects with name, unitId and value"),
+        INVALID_NAME("KPI name must be a string of at most 40 characters"),
+        INVALID_UNIT("KPI unitId must be one of 1, 2, 3, 4, 5, 6"),
+        INVALID_VALUE("KPI value must be a number which is a multiple of 0.01"),
+        DICTIONARY_FULL("Too many distinct equipment numbers or KPI names");
+
+        private final String description;
+
+        Violation(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * Fingerprint (see {@link de.othr.database_connector.helpers.Validator#getMsgSchemaFingerprint()}) of the
+     * schema whose rules this decoder enforces
+     */
+    public static final String SCHEMA_FINGERPRINT = "525926cda29bfe653f9cfe3ef629872672197584821cf41d606eec05f9f50189";
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final int CLIENT_ID_LENGTH = 10;
+    private static final int TIMESTAMP_LENGTH = 24;
+    private static final int MAX_NAME_LENGTH = 40;
+    private static final int MIN_UNIT_ID = 1;
+    private static final int MAX_UNIT_ID = 6;
+    /**
+     * Returned by {@link #parseScaled(char[], int, int, int)} for numbers which cannot be represented
+     */
+    private static final long INVALID_NUMBER = Long.MIN_VALUE;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L,
+            1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L,
+            100_000_000_000_000L, 1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L,
+            1_000_000_000_000_000_000L};
+
+    private Violation violation;
+
+    /**
+     * Decode a message and append its KPIs to the given batch. Either all KPIs are added or none.
+     * @param payload raw JSON payload
+     * @param rows batch the rows are appended to
+     * @return false if the payload violates the message schema. See {@link #getViolation()} for the reason.
+     */
+    public boolean decode(byte[] payload, KpiBatch rows) {
+        var start = rows.size();
+        violation = null;
+        try (var parser = jsonFactory.createParser(payload)) {
+            violation = decodeMsg(parser, rows, start);
+            // nothing but whitespace may follow the message
+            if (violation == null && parser.nextToken() != null) violation = Violation.NO_JSON;
+        } catch (IOException e) {
+            violation = Violation.NO_JSON;
+        }
+        if (violation == null) return true;
+        rows.truncate(start);
+        return false;
+    }
+
+    /**
+     * Get the reason why the last payload was rejected.
+     * @return reason or null if the last payload was valid
+     */
+    public Violation getViolation() {
+        return violation;
+    }
+
+    private Violation decodeMsg(JsonParser parser, KpiBatch rows, int start) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) return Violation.NO_OBJECT;
+        var equipmentId = -1;
+        var unixTimestamp = INVALID_NUMBER;
+        var hasTimestamp = false;
+        var hasKpis = false;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            // field names are canonicalized by Jackson, so this does not allocate
+            switch (field) {
+                case "clientId" -> {
+                    if (parser.nextToken() != JsonToken.VALUE_STRING || textLength(parser) != CLIENT_ID_LENGTH) return Violation.INVALID_CLIENT_ID;
+                    equipmentId = KpiDictionary.EQUIPMENT.idOf(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                    if (equipmentId == KpiDictionary.FULL) return Violation.DICTIONARY_FULL;
+                }
+                case "unixTimestamp" -> {
+                    var token = parser.nextToken();
+                    unixTimestamp = INVALID_NUMBER;
+                    if (token == JsonToken.VALUE_NUMBER_INT && parser.getNumberType() != JsonParser.NumberType.BIG_INTEGER) {
+                        unixTimestamp = parser.getLongValue();
+                    } else if (token == JsonToken.VALUE_NUMBER_FLOAT) {
+                        // e.g. 1.6e12 is a multiple of 1 as well
+                        unixTimestamp = parseScaled(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength(), 0);
+                    }
+                    if (unixTimestamp == INVALID_NUMBER) return Violation.INVALID_UNIX_TIMESTAMP;
+                }
+                case "timestamp" -> {
+                    if (parser.nextToken() != JsonToken.VALUE_STRING || textLength(parser) != TIMESTAMP_LENGTH) return Violation.INVALID_TIMESTAMP;
+                    hasTimestamp = true;
+                }
+                case "kpis" -> {
+                    if (parser.nextToken() != JsonToken.START_ARRAY) return Violation.INVALID_KPIS;
+                    // KPIs of a duplicate kpis field replace the previous ones
+                    rows.truncate(start);
+                    JsonToken token;
+                    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                        if (token != JsonToken.START_OBJECT) return Violation.INVALID_KPIS;
+                        var kpiViolation = decodeKpi(parser, rows);
+                        if (kpiViolation != null) return kpiViolation;
+                    }
+                    hasKpis = true;
+                }
+                default -> {
+                    return Violation.UNKNOWN_FIELD;
+                }
+            }
+        }
+        if (parser.currentToken() != JsonToken.END_OBJECT) return Violation.NO_JSON;
+        if (equipmentId < 0 || unixTimestamp == INVALID_NUMBER || !hasTimestamp || !hasKpis) return Violation.MISSING_FIELD;
+        // equipment and timestamp may follow the kpis array, so they are set afterwards
+        rows.setEquipmentAndTimestamp(start, equipmentId, unixTimestamp);
+        return null;
+    }
+
+    /**
+     * Decode a single KPI object. The parser is positioned at its START_OBJECT token.
+     */
+    private static Violation decodeKpi(JsonParser parser, KpiBatch rows) throws IOException {
+        var nameId = -1;
+        var unitId = -1;
+        var value = INVALID_NUMBER;
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+            switch (field) {
+                case "name" -> {
+                    if (parser.nextToken() != JsonToken.VALUE_STRING || textLength(parser) > MAX_NAME_LENGTH) return Violation.INVALID_NAME;
+                    nameId = KpiDictionary.NAMES.idOf(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+                    if (nameId == KpiDictionary.FULL) return Violation.DICTIONARY_FULL;
+                }
+                case "unitId" -> {
+                    if (parser.nextToken() != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() != JsonParser.NumberType.INT) return Violation.INVALID_UNIT;
+                    unitId = parser.getIntValue();
+                    if (unitId < MIN_UNIT_ID || unitId > MAX_UNIT_ID) return Violation.INVALID_UNIT;
+                }
+                case "value" -> {
+                    var token = parser.nextToken();
+                    if (token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) return Violation.INVALID_VALUE;
+                    value = parseScaled(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength(), KpiBatch.VALUE_SCALE);
+                    if (value == INVALID_NUMBER) return Violation.INVALID_VALUE;
+                }
+                default -> {
+                    // the schema allows additional fields within KPIs
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (nameId < 0 || unitId < 0 || value == INVALID_NUMBER) return Violation.INVALID_KPIS;
+        // equipment and timestamp are set once the whole message is read
+        rows.add(0, 0, nameId, unitId, value);
+        return null;
+    }
+
+    /**
+     * Length of the current string token in code points as defined by JSON Schema.
+     */
+    private static int textLength(JsonParser parser) throws IOException {
+        return Character.codePointCount(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+
+    /**
+     * Parse a JSON number and multiply it by 10^scale without creating a BigDecimal.
+     * @param chars buffer holding the number as text
+     * @param offset index of first char
+     * @param length number of chars
+     * @param scale number of decimal places to keep
+     * @return number multiplied by 10^scale or {@link #INVALID_NUMBER} if it has more decimal places or does not fit into a long
+     */
+    static long parseScaled(char[] chars, int offset, int length, int scale) {
+        var i = offset;
+        var end = offset + length;
+        var negative = i < end && chars[i] == '-';
+        if (negative) i++;
+        var mantissa = 0L;
+        var fractionDigits = 0;
+        var pendingZeros = 0;
+        var fraction = false;
+        var exponent = 0;
+        try {
+            for (; i < end; i++) {
+                var c = chars[i];
+                if (c >= '0' && c <= '9') {
+                    if (!fraction) {
+                        mantissa = Math.addExact(Math.multiplyExact(mantissa, 10), c - '0');
+                    } else if (c == '0') {
+                        // trailing zeros of the fraction do not change the value
+                        pendingZeros++;
+                    } else {
+                        if (pendingZeros + 1 >= POWERS_OF_TEN.length) return INVALID_NUMBER;
+                        mantissa = Math.addExact(Math.multiplyExact(mantissa, POWERS_OF_TEN[pendingZeros + 1]), c - '0');
+                        fractionDigits += pendingZeros + 1;
+                        pendingZeros = 0;
+                    }
+                } else if (c == '.') {
+                    fraction = true;
+                } else if (c == 'e' || c == 'E') {
+                    exponent = parseExponent(chars, i + 1, end);
+                    break;
+                } else {
+                    return INVALID_NUMBER;
+                }
+            }
+            if (mantissa == 0) return 0;
+            var shift = (long) scale + exponent - fractionDigits;
+            if (shift >= POWERS_OF_TEN.length || -shift >= POWERS_OF_TEN.length) return INVALID_NUMBER;
+            if (shift >= 0) {
+                mantissa = Math.multiplyExact(mantissa, POWERS_OF_TEN[(int) shift]);
+            } else {
+                var divisor = POWERS_OF_TEN[(int) -shift];
+                if (mantissa % divisor != 0) return INVALID_NUMBER;
+                mantissa /= divisor;
+            }
+        } catch (ArithmeticException e) {
+            return INVALID_NUMBER;
+        }
+        return negative ? -mantissa : mantissa;
+    }
+
+    private static int parseExponent(char[] chars, int i, int end) {
+        var negative = false;
+        if (i < end && (chars[i] == '-' || chars[i] == '+')) negative = chars[i++] == '-';
+        var exponent = 0;
+        for (; i < end; i++) {
+            // saturate, anything beyond is out of range anyway
+            exponent = Math.min(exponent * 10 + (chars[i] - '0'), 10_000);
+        }
+        return negative ? -exponent : exponent;
+    }
+}
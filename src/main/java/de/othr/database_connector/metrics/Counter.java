@@ -0,0 +1,62 @@
+package de.othr.database_connector.metrics;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonically increasing counter. Incrementing is lock-free and scales with many writing threads.
+ * @author Thomas Pilz
+ */
+public class Counter extends Metric {
+
+    private final LongAdder value = new LongAdder();
+
+    /**
+     * Create a new counter.
+     * @param name metric name, should end with _total
+     * @param help description of the metric
+     */
+    public Counter(String name, String help) {
+        super(name, help);
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    /**
+     * Add a non-negative amount.
+     * @param amount amount to add
+     */
+    public void add(long amount) {
+        value.add(amount);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    protected String type() {
+        return "counter";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        out.append(name).append(' ').append(get()).append('\n');
+    }
+}
@@ -0,0 +1,50 @@
+package de.othr.database_connector.metrics;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Gauge whose value is read from a supplier whenever the metrics are scraped, e.g. the depth of a queue.
+ * @author Thomas Pilz
+ */
+public class Gauge extends Metric {
+
+    private final DoubleSupplier value;
+
+    /**
+     * Create a new gauge.
+     * @param name metric name
+     * @param help description of the metric
+     * @param value supplies the current value. Called by the thread serving the metrics endpoint.
+     */
+    public Gauge(String name, String help, DoubleSupplier value) {
+        super(name, help);
+        this.value = value;
+    }
+
+    @Override
+    protected String type() {
+        return "gauge";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        out.append(name).append(' ');
+        appendValue(out, value.getAsDouble());
+        out.append('\n');
+    }
+}
@@ -0,0 +1,158 @@
+package de.othr.database_connector.metrics;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed buckets. Recording a value is lock-free.
+ * Besides the buckets the estimated quantiles {@link #QUANTILES} are exposed as gauge {@code <name>_quantile},
+ * so latencies can be read without a Prometheus server. They are interpolated within buckets like PromQL's histogram_quantile does,
+ * so their precision depends on the bucket layout.
+ * @author Thomas Pilz
+ */
+public class Histogram extends Metric {
+
+    /**
+     * Quantiles exposed in addition to the buckets
+     */
+    public static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private final double[] upperBounds;
+    /**
+     * Number of recorded values per bucket (not cumulative). The last bucket holds values greater than the largest upper bound.
+     */
+    private final LongAdder[] counts;
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * Create a new histogram.
+     * @param name metric name including the unit, e.g. _seconds
+     * @param help description of the metric
+     * @param upperBounds inclusive upper bounds of the buckets in ascending order
+     */
+    public Histogram(String name, String help, double[] upperBounds) {
+        super(name, help);
+        this.upperBounds = upperBounds.clone();
+        this.counts = new LongAdder[upperBounds.length + 1];
+        for (var i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+    }
+
+    /**
+     * Create exponentially growing bucket bounds.
+     * @param start upper bound of the first bucket
+     * @param factor factor between two consecutive bounds
+     * @param count number of buckets
+     * @return upper bounds
+     */
+    public static double[] exponentialBuckets(double start, double factor, int count) {
+        var bounds = new double[count];
+        for (var i = 0; i < count; i++) bounds[i] = start * Math.pow(factor, i);
+        return bounds;
+    }
+
+    /**
+     * Record a value.
+     * @param value value to record
+     */
+    public void record(double value) {
+        var i = Arrays.binarySearch(upperBounds, value);
+        counts[i >= 0 ? i : -i - 1].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Record a duration in seconds.
+     * @param nanos duration in nanoseconds
+     */
+    public void recordNanos(long nanos) {
+        record(nanos / 1e9);
+    }
+
+    /**
+     * Estimate a quantile from the buckets.
+     * @param q quantile between 0 and 1
+     * @return estimated value or NaN if nothing was recorded
+     */
+    public double quantile(double q) {
+        var snapshot = snapshot();
+        var total = snapshot[snapshot.length - 1];
+        if (total == 0) return Double.NaN;
+        var rank = q * total;
+        for (var i = 0; i < upperBounds.length; i++) {
+            if (snapshot[i] < rank) continue;
+            var lower = i == 0 ? 0 : upperBounds[i - 1];
+            var below = i == 0 ? 0 : snapshot[i - 1];
+            var inBucket = snapshot[i] - below;
+            return inBucket == 0 ? upperBounds[i] : lower + (upperBounds[i] - lower) * (rank - below) / inBucket;
+        }
+        // the quantile lies in the +Inf bucket, the best estimate is the largest bound
+        return upperBounds[upperBounds.length - 1];
+    }
+
+    public long getCount() {
+        var count = 0L;
+        for (var c : counts) count += c.sum();
+        return count;
+    }
+
+    /**
+     * Get cumulative bucket counts. The last element is the total count.
+     */
+    private long[] snapshot() {
+        var cumulative = new long[counts.length];
+        var count = 0L;
+        for (var i = 0; i < counts.length; i++) {
+            count += counts[i].sum();
+            cumulative[i] = count;
+        }
+        return cumulative;
+    }
+
+    @Override
+    protected String type() {
+        return "histogram";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        var snapshot = snapshot();
+        for (var i = 0; i < upperBounds.length; i++) {
+            out.append(name).append("_bucket{le=\"");
+            appendValue(out, upperBounds[i]);
+            out.append("\"} ").append(snapshot[i]).append('\n');
+        }
+        var total = snapshot[snapshot.length - 1];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+        out.append(name).append("_sum ");
+        appendValue(out, sum.sum());
+        out.append('\n');
+        out.append(name).append("_count ").append(total).append('\n');
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        super.write(out);
+        out.append("# HELP ").append(name).append("_quantile Estimated quantiles of ").append(name).append('\n');
+        out.append("# TYPE ").append(name).append("_quantile gauge\n");
+        for (var q : QUANTILES) {
+            out.append(name).append("_quantile{quantile=\"").append(q).append("\"} ");
+            appendValue(out, quantile(q));
+            out.append('\n');
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package de.othr.database_connector.metrics;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter with one label, e.g. messages per topic. Incrementing a known label value is lock-free.
+ * The number of label values is limited to keep the number of time series bounded,
+ * further values are counted with the label value {@value #OTHER}.
+ * @author Thomas Pilz
+ */
+public class LabeledCounter extends Metric {
+
+    /**
+     * Label value used once the maximum number of label values is reached
+     */
+    public static final String OTHER = "other";
+    private final String label;
+    private final int maxValues;
+    private final ConcurrentHashMap<String, LongAdder> values = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new labeled counter.
+     * @param name metric name, should end with _total
+     * @param help description of the metric
+     * @param label name of the label
+     * @param maxValues maximum number of distinct label values
+     */
+    public LabeledCounter(String name, String help, String label, int maxValues) {
+        super(name, help);
+        this.label = label;
+        this.maxValues = maxValues;
+    }
+
+    public void increment(String labelValue) {
+        add(labelValue, 1);
+    }
+
+    /**
+     * Add a non-negative amount to the counter of a label value.
+     * @param labelValue label value
+     * @param amount amount to add
+     */
+    public void add(String labelValue, long amount) {
+        var adder = values.get(labelValue);
+        if (adder == null) {
+            // the size check is racy, so the limit may be exceeded by a few values
+            var key = values.size() < maxValues ? labelValue : OTHER;
+            adder = values.computeIfAbsent(key, k -> new LongAdder());
+        }
+        adder.add(amount);
+    }
+
+    /**
+     * Get the current value of a label value.
+     * @param labelValue label value
+     * @return count or 0 if the label value was never counted
+     */
+    public long get(String labelValue) {
+        var adder = values.get(labelValue);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    @Override
+    protected String type() {
+        return "counter";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        for (Map.Entry<String, LongAdder> entry : values.entrySet()) {
+            out.append(name).append('{').append(label).append("=\"");
+            appendLabelValue(out, entry.getKey());
+            out.append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package de.othr.database_connector.metrics;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Metric which can be exposed in the Prometheus text exposition format.
+ * @author Thomas Pilz
+ */
+public abstract class Metric {
+
+    protected final String name;
+    protected final String help;
+
+    /**
+     * Create a new metric.
+     * @param name metric name, must match [a-zA-Z_:][a-zA-Z0-9_:]*
+     * @param help description of the metric
+     */
+    protected Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the Prometheus metric type.
+     * @return counter, gauge or histogram
+     */
+    protected abstract String type();
+
+    /**
+     * Append all samples of this metric without HELP and TYPE lines.
+     * @param out output
+     */
+    protected abstract void writeSamples(StringBuilder out);
+
+    /**
+     * Append the metric including its HELP and TYPE lines.
+     * @param out output
+     */
+    public void write(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type()).append('\n');
+        writeSamples(out);
+    }
+
+    /**
+     * Append a label value escaped as required by the text format.
+     * @param out output
+     * @param value label value
+     */
+    protected static void appendLabelValue(StringBuilder out, String value) {
+        for (var i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Append a sample value. Integral values are written without fraction.
+     * @param out output
+     * @param value sample value
+     */
+    protected static void appendValue(StringBuilder out, double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) out.append((long) value);
+        else out.append(value);
+    }
+}
@@ -0,0 +1,107 @@
+package de.othr.database_connector.metrics;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics of the connector. Updating them is lock-free, so they can be updated on the hot path.
+ * All metrics are exposed by the {@link MetricsServer}.
+ * @author Thomas Pilz
+ */
+public class Metrics {
+
+    private static final List<Metric> registry = new CopyOnWriteArrayList<>();
+
+    public static final LabeledCounter MESSAGES_RECEIVED = register(new LabeledCounter("mqtt_messages_received_total",
+            "Number of received MQTT messages per topic which are not ignored by a topic route", "topic", 1000));
+    public static final Counter MESSAGES_IGNORED = register(new Counter("mqtt_messages_ignored_total",
+            "Number of received MQTT messages dropped without reading the payload, as their topic is ignored or not routed"));
+    public static final LabeledCounter MESSAGES_INVALID = register(new LabeledCounter("mqtt_messages_invalid_total",
+            "Number of received MQTT messages which were rejected per reason", "reason", 64));
+    public static final LabeledCounter MESSAGES_INVALID_TOPICS = register(new LabeledCounter("mqtt_messages_invalid_by_topic_total",
+            "Number of received MQTT messages which were rejected per topic", "topic", 1000));
+    public static final Counter DEAD_LETTERS = register(new Counter("mqtt_dead_letters_total",
+            "Number of rejected MQTT messages written to the dead letter file"));
+    public static final Counter MQTT_RECONNECTS = register(new Counter("mqtt_reconnects_total",
+            "Number of reconnects to the MQTT message broker"));
+    public static final Counter KPIS_DUPLICATE = register(new Counter("ingest_duplicate_kpis_total",
+            "Number of received KPIs dropped as duplicates of KPIs with the same equipment, timestamp and name"));
+    public static final Counter KPIS_DEDUP_LATE = register(new Counter("ingest_dedup_late_kpis_total",
+            "Number of received KPIs too old for the deduplication window, which are written without checking for duplicates"));
+    public static final Counter KPIS_COMPRESSED = register(new Counter("ingest_compressed_kpis_total",
+            "Number of received KPIs not written as their value did not change significantly"));
+    public static final Counter ROLLUP_SKIPPED = register(new Counter("rollup_skipped_kpis_total",
+            "Number of received KPIs which could not be aggregated as the maximum number of open rollup windows was reached or the sum overflowed"));
+    public static final Counter ROLLUP_WINDOWS_WRITTEN = register(new Counter("rollup_windows_written_total",
+            "Number of window aggregates written to the rollup tables"));
+    public static final Counter SPOOL_DROPPED = register(new Counter("spool_dropped_kpis_total",
+            "Number of received KPIs which could not be appended to the spool. Their messages are not acknowledged if received with QoS 1 or 2"));
+    public static final Histogram BATCH_SIZE = register(new Histogram("ingest_batch_size_kpis",
+            "Number of KPIs per batch written to the database", Histogram.exponentialBuckets(1, 2, 18)));
+    public static final Histogram FLUSH_DURATION = register(new Histogram("db_flush_duration_seconds",
+            "Time it takes to write and commit a batch", Histogram.exponentialBuckets(0.0001, 1.25, 60)));
+    public static final Counter KPIS_COMMITTED = register(new Counter("db_committed_kpis_total",
+            "Number of KPIs committed to the database"));
+    public static final LabeledCounter SINK_KPIS_WRITTEN = register(new LabeledCounter("sink_written_kpis_total",
+            "Number of KPIs written per sink", "sink", 16));
+    public static final LabeledCounter SINK_BYTES_WRITTEN = register(new LabeledCounter("sink_written_bytes_total",
+            "Number of bytes written per file based sink", "sink", 16));
+    public static final LabeledCounter SINK_FAILURES = register(new LabeledCounter("sink_write_failures_total",
+            "Number of batches a sink could not write, either to be retried or dropped", "sink", 16));
+    public static final Counter DB_RECONNECTS = register(new Counter("db_reconnects_total",
+            "Number of reconnects to the database after the connection was lost"));
+    public static final LabeledCounter ERRORS = register(new LabeledCounter("connector_errors_total",
+            "Number of errors while processing messages and batches per cause", "cause", 64));
+    public static final Histogram END_TO_END_LAG = register(new Histogram("kpi_end_to_end_lag_seconds",
+            "Time between the Unix timestamp of a message and the commit of its KPIs", Histogram.exponentialBuckets(0.001, 1.25, 75)));
+
+    private Metrics() {
+    }
+
+    /**
+     * Register a metric so that it is exposed by the {@link MetricsServer}.
+     * @param metric metric
+     * @return the metric
+     */
+    public static <T extends Metric> T register(T metric) {
+        registry.add(metric);
+        return metric;
+    }
+
+    /**
+     * Register a gauge.
+     * @param name metric name
+     * @param help description of the metric
+     * @param value supplies the current value whenever the metrics are scraped
+     * @return the gauge
+     */
+    public static Gauge registerGauge(String name, String help, DoubleSupplier value) {
+        return register(new Gauge(name, help, value));
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format.
+     * @return metrics as text
+     */
+    public static String scrape() {
+        var out = new StringBuilder(16 * 1024);
+        for (var metric : registry) metric.write(out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Supervises the availability of the database and reconnects in the background.
+ * Reconnection attempts are made with capped exponential backoff and jitter so that many instances
+ * do not hit a recovering database at the same time. Nobody is blocked while the supervisor reconnects.
+ * @author Thomas Pilz
+ */
+public class ConnectionSupervisor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionSupervisor.class);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("db-supervisor").factory());
+    private final BooleanSupplier connectAttempt;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final AtomicBoolean connected = new AtomicBoolean(false);
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+    /**
+     * Number of reported connection losses, used to detect losses reported while a reconnect succeeds
+     */
+    private final AtomicLong losses = new AtomicLong();
+
+    /**
+     * Create a new supervisor.
+     * @param connectAttempt tries to connect to the database once and returns whether it was successful
+     * @param initialDelayMs delay before the second attempt
+     * @param maxDelayMs maximum delay between two attempts
+     */
+    public ConnectionSupervisor(BooleanSupplier connectAttempt, long initialDelayMs, long maxDelayMs) {
+        this.connectAttempt = connectAttempt;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Check whether the database is currently believed to be reachable.
+     * @return true if connected
+     */
+    public boolean isConnected(){
+        return connected.get();
+    }
+
+    /**
+     * Report that the connection to the database was lost (or was never established) and start reconnecting in the background
+     * unless a reconnect is already in progress. Returns immediately.
+     */
+    public void connectionLost(){
+        losses.incrementAndGet();
+        connected.set(false);
+        if(!reconnecting.compareAndSet(false, true)) return;
+        scheduler.execute(() -> attempt(initialDelayMs));
+    }
+
+    private void attempt(long nextDelayMs){
+        var lossesBefore = losses.get();
+        if(connectAttempt.getAsBoolean()){
+            reconnecting.set(false);
+            connected.set(true);
+            // a loss reported in the meantime would otherwise be overwritten without a reconnect being scheduled
+            if(losses.get() != lossesBefore) connectionLost();
+            return;
+        }
+        // "equal jitter": wait at least half of the delay and add a random share of the other half
+        var delay = nextDelayMs / 2 + ThreadLocalRandom.current().nextLong(nextDelayMs / 2 + 1);
+        logger.warn("Trying to reconnect to database in {} ms", delay);
+        scheduler.schedule(() -> attempt(Math.min(nextDelayMs * 2, maxDelayMs)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop reconnecting.
+     */
+    public void shutdown(){
+        scheduler.shutdownNow();
+    }
+}
@@ -15,16 +15,19 @@ See the License for the specific language governing permissions and
 limitations under the License.
  */
 
-import de.othr.database_connector.kpi.KpiMsg;
+import de.othr.database_connector.metrics.Metrics;
+import org.postgresql.ds.PGSimpleDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
 import java.sql.*;
-import java.util.concurrent.*;
+import java.util.ArrayDeque;
 
 
 /**
- * Database service to connect to a PostgreSQL database and insert KPI data.
+ * Database service to connect to a PostgreSQL database.
+ * Holds a small pool of connections which are handed out to {@link KpiWriter}s so that multiple writers can insert KPIs in parallel.
  * @author Thomas Pilz
  */
 public class DatabaseService {
@@ -35,7 +38,26 @@ public class DatabaseService {
      * SLF4J logger using Log4j 2
      */
     private static final Logger logger = LoggerFactory.getLogger(DatabaseService.class);
-    public Connection dbCon;
+    /**
+     * Source of new connections. May be replaced by any other {@link DataSource} implementation.
+     */
+    private DataSource dataSource;
+    /**
+     * Open connections currently not used by any writer
+     */
+    private final ArrayDeque<Connection> idleConnections = new ArrayDeque<>();
+    private static final long INITIAL_RECONNECT_DELAY_MS = 1000;
+    private long maxReconnectDelayMs = 180_000;
+    private boolean reWriteBatchedInserts = false;
+    private volatile ConnectionSupervisor supervisor;
+    /**
+     * Whether a connection was established before. Only accessed by the supervisor thread.
+     */
+    private boolean connectedBefore = false;
+    /**
+     * Whether {@link #close()} was called, so returned connections are closed instead of being pooled
+     */
+    private boolean closed = false;
 
     private DatabaseService() {
 
@@ -48,90 +70,136 @@ public class DatabaseService {
     }
 
 
-    private void connect(String url, String username, String password) throws ExecutionException, InterruptedException {
-        var execSrv = Executors.newSingleThreadScheduledExecutor();
-        final int maxReconnectionDelay = 180;
-        long reconnectionDelay = 1;
-        Callable<Boolean> connect = () ->{
-            try {
-                dbCon = DriverManager.getConnection(url, username, password);
-                dbCon.setAutoCommit(false);
-                logger.info("Successfully connected to database {}", url);
-                return true;
-            } catch (SQLException e) {
-                logger.warn("Could not connect to database {} with username {}", url, username, e);
-                return false;
-            }
-        };
-        var isConnected = execSrv.schedule(connect, reconnectionDelay, TimeUnit.SECONDS);
-        while(!isConnected.get()){
-            var newReconnectionDelay = reconnectionDelay * 2;
-            if(newReconnectionDelay > maxReconnectionDelay) reconnectionDelay = maxReconnectionDelay;
-            else reconnectionDelay = newReconnectionDelay;
-            logger.warn("Trying to reconnect in {} seconds", 2);
-            isConnected = execSrv.schedule(connect, reconnectionDelay, TimeUnit.SECONDS);
-        }
+    /**
+     * Set the data source connections are created with. If none is set {@link #connect2db(String, String, String)} creates a pgJDBC data source.
+     * @param dataSource data source
+     */
+    public synchronized void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
     }
 
+    /**
+     * Set the maximum delay between two reconnection attempts. Must be called before {@link #connect2db(String, String, String)}.
+     * @param maxReconnectDelayMs maximum delay in milliseconds
+     */
+    public synchronized void setMaxReconnectDelayMs(long maxReconnectDelayMs) {
+        this.maxReconnectDelayMs = maxReconnectDelayMs;
+    }
 
-    public void connect2db(String url, String username, String password){
-        try {
-            connect(url, username, password);
-        } catch (ExecutionException e) {
-            logger.warn("An exception occurred when trying to connect to database {}", url, e.getCause());
-        } catch (InterruptedException e) {
-            logger.error("Thread responsible for connecting to the database was interrupted!");
+    /**
+     * Set whether pgJDBC rewrites batches of single-row INSERT statements into multi-row INSERT statements.
+     * Only applies to the pgJDBC data source created by {@link #connect2db(String, String, String)} and must be called before.
+     * @param reWriteBatchedInserts true to enable the rewrite
+     */
+    public synchronized void setReWriteBatchedInserts(boolean reWriteBatchedInserts) {
+        this.reWriteBatchedInserts = reWriteBatchedInserts;
+    }
+
+    /**
+     * Connect to the database in the background. Returns immediately.
+     * If the database is unreachable a {@link ConnectionSupervisor} keeps trying to reconnect.
+     * @param url JDBC URL of the database
+     * @param username database user
+     * @param password password of database user
+     */
+    public synchronized void connect2db(String url, String username, String password){
+        if (dataSource == null) {
+            var pgDataSource = new PGSimpleDataSource();
+            pgDataSource.setUrl(url);
+            pgDataSource.setUser(username);
+            pgDataSource.setPassword(password);
+            pgDataSource.setReWriteBatchedInserts(reWriteBatchedInserts);
+            dataSource = pgDataSource;
         }
+        if (supervisor == null) {
+            supervisor = new ConnectionSupervisor(() -> {
+                try {
+                    releaseConnection(getConnection());
+                    logger.info("Successfully connected to database {}", url);
+                    if (connectedBefore) Metrics.DB_RECONNECTS.increment();
+                    connectedBefore = true;
+                    return true;
+                } catch (SQLException e) {
+                    logger.warn("Could not connect to database {} with username {}: {}", url, username, e.getMessage());
+                    return false;
+                }
+            }, INITIAL_RECONNECT_DELAY_MS, maxReconnectDelayMs);
+        }
+        supervisor.connectionLost();
     }
 
-    public boolean isConnected(){
-        try {
-            if (dbCon.isClosed()) return false;
-        } catch (SQLException e) {
-            return false;
+    /**
+     * Check whether the database is currently reachable.
+     * @return true if the database is reachable
+     */
+    public boolean isAvailable(){
+        var sup = supervisor;
+        return sup != null && sup.isConnected();
+    }
+
+    /**
+     * Report that a connection to the database was lost. All idle connections are closed and the database service reconnects in the background.
+     */
+    public void connectionLost(){
+        synchronized (this) {
+            while (!idleConnections.isEmpty()) {
+                try {
+                    idleConnections.pop().close();
+                } catch (SQLException ignored) {
+                }
+            }
         }
-        return true;
+        if (supervisor != null) supervisor.connectionLost();
     }
 
-    public void insertKpis(KpiMsg msg) {
-        if (dbCon == null) {
-            logger.error("You must open a database connection first!");
-            return;
+    /**
+     * Stop reconnecting and close all idle connections. Connections still used by writers are closed once they are returned.
+     */
+    public void close(){
+        if (supervisor != null) supervisor.shutdown();
+        synchronized (this) {
+            closed = true;
+            while (!idleConnections.isEmpty()) {
+                try {
+                    idleConnections.pop().close();
+                } catch (SQLException ignored) {
+                }
+            }
         }
-        try {
-            if (dbCon.isClosed()) {
-                logger.error("No valid database connection open! Please open a database connection first!");
-                return;
+        logger.info("Closed database connections");
+    }
+
+    /**
+     * Take an idle connection from the pool or open a new one if there is none.
+     * Connections have auto-commit disabled.
+     * @return open database connection
+     * @throws SQLException if no connection could be opened
+     */
+    public Connection getConnection() throws SQLException {
+        DataSource source;
+        synchronized (this) {
+            if (dataSource == null) throw new SQLException("You must connect to a database first!");
+            while (!idleConnections.isEmpty()) {
+                var con = idleConnections.pop();
+                if (!con.isClosed()) return con;
             }
-        } catch (SQLException e) {
-            logger.error("Cannot connect to database!", e);
-            return;
+            source = dataSource;
         }
-        long count = 0;
-        var batchSize = 100;
+        var con = source.getConnection();
+        con.setAutoCommit(false);
+        return con;
+    }
 
-        var kpis = msg.getKpis();
+    /**
+     * Return a connection to the pool so that it can be reused.
+     * @param con connection taken from {@link #getConnection()}
+     */
+    public synchronized void releaseConnection(Connection con) {
         try {
-            var prepStmnt = dbCon.prepareStatement("INSERT INTO kpis (k_equipment,k_timestamp,k_name,k_unit,k_value) VALUES (?, ?, ?, ?, ?)");
-            for (var kpi : kpis) {
-                count++;
-
-                prepStmnt.setString(1, msg.getClientId());
-                prepStmnt.setTimestamp(2, new Timestamp(msg.getUnixTimestamp()));
-                prepStmnt.setString(3, kpi.getName());
-                prepStmnt.setInt(4, kpi.getUnitId());
-                prepStmnt.setBigDecimal(5, kpi.getValue());
-                prepStmnt.addBatch();
-                if (count % batchSize == 0 || count == kpis.size()) {
-                    prepStmnt.executeBatch();
-                    dbCon.commit();
-                }
-            }
-        } catch (BatchUpdateException e){
-            logger.warn("Could not insert all KPIs!", e);
+            if (closed) con.close();
+            else if (!con.isClosed()) idleConnections.push(con);
         } catch (SQLException e) {
-            logger.warn("Could not insert values into database!", e);
-            e.printStackTrace();
+            logger.warn("Could not return connection to pool!", e);
         }
     }
 }
@@ -0,0 +1,165 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Bounded cache of the surrogate keys of a dimension table (e.g. equipment or KPI names) in the normalized schema.
+ * Maps the process-local {@link KpiDictionary} ID of a string to the ID of its row in the dimension table.
+ * <p>
+ * The cache is direct-mapped: every dictionary ID has exactly one slot, an entry is evicted when another ID maps
+ * to the same slot. As dictionary IDs are dense there is no eviction as long as the number of distinct strings does not
+ * exceed the capacity. Lookups are lock-free and do not allocate, so it can be shared by all writers.
+ * Strings which are not cached are inserted into the dimension table if they do not exist yet (upsert-on-miss).
+ * @author Thomas Pilz
+ */
+public class DimensionCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DimensionCache.class);
+    private final String table;
+    private final String idColumn;
+    private final String keyColumn;
+    private final KpiDictionary dictionary;
+    /**
+     * Slots holding (dictionary ID + 1) in the upper and the database ID in the lower 32 bits, 0 if empty
+     */
+    private final AtomicLongArray entries;
+    private final int mask;
+
+    /**
+     * Create a new cache.
+     * @param table name of dimension table
+     * @param idColumn name of integer surrogate key column
+     * @param keyColumn name of unique text column
+     * @param dictionary dictionary the strings are interned in
+     * @param capacity maximum number of cached entries (rounded up to a power of two)
+     */
+    public DimensionCache(String table, String idColumn, String keyColumn, KpiDictionary dictionary, int capacity) {
+        this.table = table;
+        this.idColumn = idColumn;
+        this.keyColumn = keyColumn;
+        this.dictionary = dictionary;
+        var size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.entries = new AtomicLongArray(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Get the database ID of a string.
+     * @param localId ID of the string in the dictionary
+     * @return database ID or -1 if it is not cached
+     */
+    public int get(int localId) {
+        var entry = entries.get(localId & mask);
+        return (int) (entry >>> 32) == localId + 1 ? (int) entry : -1;
+    }
+
+    /**
+     * Cache the database ID of a string, replacing the entry which occupies its slot.
+     * @param localId ID of the string in the dictionary
+     * @param dbId ID of the string in the dimension table
+     */
+    public void put(int localId, int dbId) {
+        entries.set(localId & mask, (long) (localId + 1) << 32 | (dbId & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Load existing rows of the dimension table into the cache so that a cold start does not cause a lookup per string.
+     * @param con database connection
+     * @throws SQLException if the table cannot be read
+     */
+    public void warmUp(Connection con) throws SQLException {
+        var count = 0;
+        try (var stmnt = con.prepareStatement("SELECT %s, %s FROM %s ORDER BY %s DESC LIMIT ?".formatted(idColumn, keyColumn, table, idColumn))) {
+            stmnt.setInt(1, entries.length());
+            try (var rs = stmnt.executeQuery()) {
+                while (rs.next()) {
+                    var localId = dictionary.idOf(rs.getString(2));
+                    if (localId == KpiDictionary.FULL) break;
+                    put(localId, rs.getInt(1));
+                    count++;
+                }
+            }
+        }
+        logger.info("Loaded {} entries of table {} into cache", count, table);
+    }
+
+    /**
+     * Get the database IDs of the strings of multiple rows. Strings which are not cached are inserted into the dimension
+     * table in a separate transaction which is committed, so the IDs stay valid even if the caller's transaction is rolled back.
+     * @param con database connection with auto-commit disabled and no pending changes
+     * @param rows number of rows
+     * @param localIdOfRow dictionary ID of the string of a row
+     * @param dbIds array the database ID of every row is written to
+     * @throws SQLException if the dimension table cannot be read or written
+     */
+    public void resolve(Connection con, int rows, IntUnaryOperator localIdOfRow, int[] dbIds) throws SQLException {
+        LinkedHashSet<String> missing = null;
+        for (var i = 0; i < rows; i++) {
+            var localId = localIdOfRow.applyAsInt(i);
+            dbIds[i] = get(localId);
+            if (dbIds[i] >= 0) continue;
+            if (missing == null) missing = new LinkedHashSet<>();
+            missing.add(dictionary.get(localId));
+        }
+        if (missing == null) return;
+        var resolved = upsert(con, missing);
+        for (var i = 0; i < rows; i++) {
+            if (dbIds[i] >= 0) continue;
+            var dbId = resolved.get(localIdOfRow.applyAsInt(i));
+            if (dbId == null) throw new SQLException("Could not find %s in table %s".formatted(dictionary.get(localIdOfRow.applyAsInt(i)), table));
+            dbIds[i] = dbId;
+        }
+    }
+
+    /**
+     * Insert strings which do not exist yet and read the IDs of all given strings.
+     * @return database ID per dictionary ID
+     */
+    private HashMap<Integer, Integer> upsert(Connection con, LinkedHashSet<String> keys) throws SQLException {
+        var resolved = new HashMap<Integer, Integer>();
+        var keyArray = con.createArrayOf("text", keys.toArray());
+        try (var insert = con.prepareStatement("INSERT INTO %s (%s) SELECT unnest(?::text[]) ON CONFLICT (%s) DO NOTHING".formatted(table, keyColumn, keyColumn));
+             var select = con.prepareStatement("SELECT %s, %s FROM %s WHERE %s = ANY(?::text[])".formatted(idColumn, keyColumn, table, keyColumn))) {
+            insert.setArray(1, keyArray);
+            insert.executeUpdate();
+            select.setArray(1, keyArray);
+            try (var rs = select.executeQuery()) {
+                while (rs.next()) {
+                    var localId = dictionary.idOf(rs.getString(2));
+                    if (localId == KpiDictionary.FULL) continue;
+                    put(localId, rs.getInt(1));
+                    resolved.put(localId, rs.getInt(1));
+                }
+            }
+            con.commit();
+        } finally {
+            keyArray.free();
+        }
+        logger.debug("Resolved {} new entries of table {}", keys.size(), table);
+        return resolved;
+    }
+}
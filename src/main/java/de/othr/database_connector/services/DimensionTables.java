@@ -0,0 +1,103 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Dimension tables of the normalized schema together with their caches.
+ * Tables are created if they do not exist and the caches are warmed up once the first writer is connected.
+ * Shared by all writers.
+ * @author Thomas Pilz
+ */
+public class DimensionTables {
+
+    private static final Logger logger = LoggerFactory.getLogger(DimensionTables.class);
+    /**
+     * Table of KPI values referencing the dimension tables
+     */
+    public static final String FACT_TABLE = "kpi_values (v_equipment,v_timestamp,v_name,v_unit,v_value)";
+    private static final String[] DIMENSION_DDL = {
+            "CREATE TABLE IF NOT EXISTS equipment (e_id integer GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, e_number text NOT NULL UNIQUE)",
+            "CREATE TABLE IF NOT EXISTS kpi_name (n_id integer GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, n_name text NOT NULL UNIQUE)"
+    };
+    private static final String FACT_DDL = "CREATE TABLE IF NOT EXISTS kpi_values (v_equipment integer NOT NULL REFERENCES equipment (e_id), v_timestamp timestamptz NOT NULL, "
+            + "v_name integer NOT NULL REFERENCES kpi_name (n_id), v_unit integer NOT NULL, v_value numeric NOT NULL)";
+    private final String factDdl;
+    private final DimensionCache equipment;
+    private final DimensionCache names;
+    private volatile boolean ready = false;
+    private final ReentrantLock readyLock = new ReentrantLock();
+
+    /**
+     * Create dimension tables with caches of the given size.
+     * @param cacheSize maximum number of cached entries per dimension
+     */
+    public DimensionTables(int cacheSize) {
+        this(cacheSize, Partitioning.NONE);
+    }
+
+    /**
+     * Create dimension tables with caches of the given size.
+     * @param cacheSize maximum number of cached entries per dimension
+     * @param partitioning partitioning of the kpi_values table if it has to be created. Its partitions are managed by a {@link PartitionManager}.
+     */
+    public DimensionTables(int cacheSize, Partitioning partitioning) {
+        this.factDdl = partitioning == Partitioning.NONE ? FACT_DDL : FACT_DDL + " PARTITION BY RANGE (v_timestamp)";
+        this.equipment = new DimensionCache("equipment", "e_id", "e_number", KpiDictionary.EQUIPMENT, cacheSize);
+        this.names = new DimensionCache("kpi_name", "n_id", "n_name", KpiDictionary.NAMES, cacheSize);
+    }
+
+    public DimensionCache getEquipment() {
+        return equipment;
+    }
+
+    public DimensionCache getNames() {
+        return names;
+    }
+
+    /**
+     * Create missing tables and warm up the caches unless this has been done already.
+     * @param con database connection with auto-commit disabled and no pending changes
+     * @throws SQLException if the tables cannot be created or read
+     */
+    public void ensureReady(Connection con) throws SQLException {
+        if (ready) return;
+        // a lock instead of a monitor, so that a writer running on a virtual thread does not pin its carrier while waiting for the database
+        readyLock.lock();
+        try {
+            if (ready) return;
+            try (var stmnt = con.createStatement()) {
+                for (var ddl : DIMENSION_DDL) stmnt.execute(ddl);
+                stmnt.execute(factDdl);
+            }
+            con.commit();
+            equipment.warmUp(con);
+            names.warmUp(con);
+            con.commit();
+            ready = true;
+            logger.info("Using normalized schema with dimension tables equipment and kpi_name");
+        } finally {
+            readyLock.unlock();
+        }
+    }
+}
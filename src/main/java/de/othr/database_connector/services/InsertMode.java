@@ -0,0 +1,36 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * How KPIs are written to the database.
+ * @author Thomas Pilz
+ */
+public enum InsertMode {
+    /**
+     * Batched INSERT statements using a prepared statement.
+     */
+    INSERT,
+    /**
+     * PostgreSQL COPY in text format. Works with any column types that accept the text representation of the values.
+     */
+    COPY_TEXT,
+    /**
+     * PostgreSQL COPY in binary format.
+     * Requires the columns to be of type text/ varchar (k_equipment, k_name), timestamptz/ timestamp (k_timestamp), integer (k_unit) and numeric (k_value).
+     */
+    COPY_BINARY
+}
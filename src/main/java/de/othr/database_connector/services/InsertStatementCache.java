@@ -0,0 +1,130 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Prepared multi-row INSERT statements of a single connection.
+ * Statements are prepared once per connection and reused for every batch, so pgJDBC switches to server-side prepared statements
+ * after a few executions and the database does not have to parse and plan the INSERT again.
+ * A batch of n rows is split into statements inserting {@link #WIDTHS} rows at once, e.g. 300 rows are written using
+ * two statements of 128 rows, two of 16 rows and twelve of a single row.
+ * Not thread-safe, every {@link KpiWriter} owns its own cache.
+ * @author Thomas Pilz
+ */
+public class InsertStatementCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(InsertStatementCache.class);
+    /**
+     * Number of rows inserted by one execution of the cached statements, in descending order
+     */
+    public static final int[] WIDTHS = {128, 16, 1};
+    private static final int COLUMNS = 5;
+    private final String table;
+    private final PreparedStatement[] statements = new PreparedStatement[WIDTHS.length];
+    private Connection con;
+
+    /**
+     * Create a new statement cache.
+     * @param table table including its column list the rows are inserted into
+     */
+    public InsertStatementCache(String table) {
+        this.table = table;
+    }
+
+    /**
+     * Insert all rows of a batch. The transaction is not committed.
+     * @param con connection to insert rows with. If it differs from the connection of the previous call all statements are prepared again.
+     * @param kpis KPI rows
+     * @param equipmentKeys dimension table IDs of the equipment of every row or null to insert equipment numbers as text
+     * @param nameKeys dimension table IDs of the KPI name of every row or null to insert KPI names as text
+     * @throws SQLException if the rows could not be inserted
+     */
+    public void insert(Connection con, KpiBatch kpis, int[] equipmentKeys, int[] nameKeys) throws SQLException {
+        if (this.con != con) {
+            close();
+            this.con = con;
+        }
+        var row = 0;
+        for (var w = 0; w < WIDTHS.length; w++) {
+            var width = WIDTHS[w];
+            if (kpis.size() - row < width) continue;
+            var stmnt = statement(w);
+            Timestamp timestamp = null;
+            for (; kpis.size() - row >= width; row += width) {
+                var param = 1;
+                for (var i = row; i < row + width; i++) {
+                    // rows of one message share their timestamp
+                    if (timestamp == null || timestamp.getTime() != kpis.getTimestamp(i)) timestamp = new Timestamp(kpis.getTimestamp(i));
+                    if (equipmentKeys != null) stmnt.setInt(param++, equipmentKeys[i]);
+                    else stmnt.setString(param++, kpis.getEquipment(i));
+                    stmnt.setTimestamp(param++, timestamp);
+                    if (nameKeys != null) stmnt.setInt(param++, nameKeys[i]);
+                    else stmnt.setString(param++, kpis.getName(i));
+                    stmnt.setInt(param++, kpis.getUnitId(i));
+                    stmnt.setBigDecimal(param++, kpis.getValue(i));
+                }
+                stmnt.addBatch();
+            }
+            stmnt.executeBatch();
+        }
+    }
+
+    private PreparedStatement statement(int index) throws SQLException {
+        if (statements[index] == null) statements[index] = con.prepareStatement(sql(table, WIDTHS[index]));
+        return statements[index];
+    }
+
+    /**
+     * Build an INSERT statement inserting the given number of rows.
+     * @param table table including its column list
+     * @param rows number of rows
+     * @return SQL statement
+     */
+    static String sql(String table, int rows) {
+        var sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES ");
+        for (var i = 0; i < rows; i++) {
+            if (i > 0) sql.append(',');
+            sql.append("(?").append(",?".repeat(COLUMNS - 1)).append(')');
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Close all cached statements. They are prepared again on the next insert.
+     */
+    @Override
+    public void close() {
+        for (var i = 0; i < statements.length; i++) {
+            if (statements[i] == null) continue;
+            try {
+                statements[i].close();
+            } catch (SQLException e) {
+                logger.debug("Could not close prepared statement", e);
+            }
+            statements[i] = null;
+        }
+        con = null;
+    }
+}
@@ -0,0 +1,418 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Streams KPIs to PostgreSQL using COPY ... FROM STDIN.
+ * Rows are encoded directly into a reusable byte buffer (no intermediate Strings per row) which is handed to the
+ * pgJDBC {@link org.postgresql.copy.CopyManager} whenever it is full.
+ * Instances are not thread-safe.
+ * @author Thomas Pilz
+ */
+public class KpiCopyWriter {
+
+    private static final String COLUMNS = "kpis (k_equipment,k_timestamp,k_name,k_unit,k_value)";
+    private static final byte[] BINARY_HEADER = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Maximum number of bytes a single row can occupy apart from the variable length text columns
+     */
+    private static final int MAX_FIXED_ROW_SIZE = 128;
+    /**
+     * Milliseconds between the Unix epoch and the PostgreSQL epoch (2000-01-01T00:00:00Z)
+     */
+    private static final long PG_EPOCH_OFFSET_MS = 946_684_800_000L;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L,
+            1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L, 10_000_000_000_000L,
+            100_000_000_000_000L, 1_000_000_000_000_000L, 10_000_000_000_000_000L, 100_000_000_000_000_000L};
+
+    private final boolean binary;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private CopyIn copyIn;
+    /**
+     * Scratch space for base 10000 digits of numeric values
+     */
+    private final short[] numericDigits = new short[12];
+
+    /**
+     * Create a new COPY writer.
+     * @param binary true to use the binary COPY format, false to use the text format
+     */
+    public KpiCopyWriter(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Copy a batch of KPIs into the kpis table. The transaction is not committed.
+     * @param con connection to a PostgreSQL database
+     * @param kpis KPI rows
+     * @return number of rows copied
+     * @throws SQLException if the connection is no pgJDBC connection or the copy fails
+     */
+    public long copy(Connection con, KpiBatch kpis) throws SQLException {
+        return copy(con, kpis, null, null);
+    }
+
+    /**
+     * Copy a batch of KPIs into the kpis table or, if keys are given, into the kpi_values table of the normalized schema.
+     * The transaction is not committed.
+     * @param con connection to a PostgreSQL database
+     * @param kpis KPI rows
+     * @param equipmentKeys IDs of the equipment table per row or null to write equipment numbers
+     * @param nameKeys IDs of the kpi_name table per row or null to write KPI names
+     * @return number of rows copied
+     * @throws SQLException if the connection is no pgJDBC connection or the copy fails
+     */
+    public long copy(Connection con, KpiBatch kpis, int[] equipmentKeys, int[] nameKeys) throws SQLException {
+        return copy(con, null, kpis, equipmentKeys, nameKeys);
+    }
+
+    /**
+     * Copy a batch of KPIs into the given table, e.g. a partition of the kpis or kpi_values table.
+     * The transaction is not committed.
+     * @param con connection to a PostgreSQL database
+     * @param table table including its column list or null to copy into the kpis or kpi_values table
+     * @param kpis KPI rows
+     * @param equipmentKeys IDs of the equipment table per row or null to write equipment numbers
+     * @param nameKeys IDs of the kpi_name table per row or null to write KPI names
+     * @return number of rows copied
+     * @throws SQLException if the connection is no pgJDBC connection or the copy fails
+     */
+    public long copy(Connection con, String table, KpiBatch kpis, int[] equipmentKeys, int[] nameKeys) throws SQLException {
+        var normalized = equipmentKeys != null;
+        var columns = table != null ? table : normalized ? DimensionTables.FACT_TABLE : COLUMNS;
+        var copyManager = con.unwrap(PGConnection.class).getCopyAPI();
+        copyIn = copyManager.copyIn(binary
+                ? "COPY %s FROM STDIN (FORMAT binary)".formatted(columns)
+                : "COPY %s FROM STDIN (FORMAT text)".formatted(columns));
+        position = 0;
+        try {
+            if (binary) writeBytes(BINARY_HEADER);
+            for (var i = 0; i < kpis.size(); i++) {
+                if (normalized && binary) writeBinaryRow(equipmentKeys[i], kpis.getTimestamp(i), nameKeys[i], kpis.getUnitId(i), kpis.getScaledValue(i));
+                else if (normalized) writeTextRow(equipmentKeys[i], kpis.getTimestamp(i), nameKeys[i], kpis.getUnitId(i), kpis.getScaledValue(i));
+                else if (binary) writeBinaryRow(kpis.getEquipment(i), kpis.getTimestamp(i), kpis.getName(i), kpis.getUnitId(i), kpis.getScaledValue(i));
+                else writeTextRow(kpis.getEquipment(i), kpis.getTimestamp(i), kpis.getName(i), kpis.getUnitId(i), kpis.getScaledValue(i));
+            }
+            if (binary) writeShort(-1);
+            flushBuffer();
+            return copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) copyIn.cancelCopy();
+            copyIn = null;
+        }
+    }
+
+    private void writeTextRow(String equipment, long unixTimestamp, String name, int unitId, long scaledValue) throws SQLException {
+        ensureCapacity(MAX_FIXED_ROW_SIZE + maxTextLength(equipment) + maxTextLength(name));
+        writeEscapedText(equipment);
+        buffer[position++] = '\t';
+        writeTimestampText(unixTimestamp);
+        buffer[position++] = '\t';
+        writeEscapedText(name);
+        buffer[position++] = '\t';
+        writeLongText(unitId);
+        buffer[position++] = '\t';
+        writeDecimalText(scaledValue, KpiBatch.VALUE_SCALE);
+        buffer[position++] = '\n';
+    }
+
+    private void writeBinaryRow(String equipment, long unixTimestamp, String name, int unitId, long scaledValue) throws SQLException {
+        ensureCapacity(MAX_FIXED_ROW_SIZE + maxTextLength(equipment) + maxTextLength(name));
+        writeShort(5);
+        writeBinaryText(equipment);
+        writeInt(8);
+        writeLong((unixTimestamp - PG_EPOCH_OFFSET_MS) * 1000L);
+        writeBinaryText(name);
+        writeInt(4);
+        writeInt(unitId);
+        writeBinaryNumeric(scaledValue, KpiBatch.VALUE_SCALE);
+    }
+
+    private void writeTextRow(int equipmentKey, long unixTimestamp, int nameKey, int unitId, long scaledValue) throws SQLException {
+        ensureCapacity(MAX_FIXED_ROW_SIZE);
+        writeLongText(equipmentKey);
+        buffer[position++] = '\t';
+        writeTimestampText(unixTimestamp);
+        buffer[position++] = '\t';
+        writeLongText(nameKey);
+        buffer[position++] = '\t';
+        writeLongText(unitId);
+        buffer[position++] = '\t';
+        writeDecimalText(scaledValue, KpiBatch.VALUE_SCALE);
+        buffer[position++] = '\n';
+    }
+
+    private void writeBinaryRow(int equipmentKey, long unixTimestamp, int nameKey, int unitId, long scaledValue) throws SQLException {
+        ensureCapacity(MAX_FIXED_ROW_SIZE);
+        writeShort(5);
+        writeInt(4);
+        writeInt(equipmentKey);
+        writeInt(8);
+        writeLong((unixTimestamp - PG_EPOCH_OFFSET_MS) * 1000L);
+        writeInt(4);
+        writeInt(nameKey);
+        writeInt(4);
+        writeInt(unitId);
+        writeBinaryNumeric(scaledValue, KpiBatch.VALUE_SCALE);
+    }
+
+    /**
+     * Maximum number of bytes a string can occupy when UTF-8 encoded and escaped for the COPY text format.
+     */
+    private static int maxTextLength(String s) {
+        return s == null ? 2 : s.length() * 3 + 4;
+    }
+
+    private void writeEscapedText(String s) {
+        if (s == null) {
+            buffer[position++] = '\\';
+            buffer[position++] = 'N';
+            return;
+        }
+        for (var i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+                case '\\' -> { buffer[position++] = '\\'; buffer[position++] = '\\'; }
+                case '\t' -> { buffer[position++] = '\\'; buffer[position++] = 't'; }
+                case '\n' -> { buffer[position++] = '\\'; buffer[position++] = 'n'; }
+                case '\r' -> { buffer[position++] = '\\'; buffer[position++] = 'r'; }
+                default -> i = writeUtf8Char(s, i);
+            }
+        }
+    }
+
+    private void writeBinaryText(String s) {
+        if (s == null) {
+            writeInt(-1);
+            return;
+        }
+        var lengthPosition = position;
+        position += 4;
+        for (var i = 0; i < s.length(); i++) {
+            i = writeUtf8Char(s, i);
+        }
+        var length = position - lengthPosition - 4;
+        buffer[lengthPosition] = (byte) (length >>> 24);
+        buffer[lengthPosition + 1] = (byte) (length >>> 16);
+        buffer[lengthPosition + 2] = (byte) (length >>> 8);
+        buffer[lengthPosition + 3] = (byte) length;
+    }
+
+    /**
+     * UTF-8 encode the character at the given index.
+     * @return index of the last char consumed (differs from i for surrogate pairs)
+     */
+    private int writeUtf8Char(String s, int i) {
+        int c = s.charAt(i);
+        if (c < 0x80) {
+            buffer[position++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (c >> 6));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            var codePoint = Character.toCodePoint((char) c, s.charAt(++i));
+            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            buffer[position++] = (byte) (0xE0 | (c >> 12));
+            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    /**
+     * Write timestamp as "yyyy-MM-dd HH:mm:ss.SSS+00".
+     */
+    private void writeTimestampText(long unixTimestamp) {
+        var epochDay = Math.floorDiv(unixTimestamp, 86_400_000L);
+        var millisOfDay = Math.floorMod(unixTimestamp, 86_400_000L);
+        // civil date from days since epoch (see http://howardhinnant.github.io/date_algorithms.html)
+        var z = epochDay + 719_468;
+        var era = Math.floorDiv(z, 146_097);
+        var dayOfEra = z - era * 146_097;
+        var yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        var dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        var mp = (5 * dayOfYear + 2) / 153;
+        var day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        var month = mp < 10 ? mp + 3 : mp - 9;
+        var year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        writeDigits(year, 4);
+        buffer[position++] = '-';
+        writeDigits(month, 2);
+        buffer[position++] = '-';
+        writeDigits(day, 2);
+        buffer[position++] = ' ';
+        writeDigits(millisOfDay / 3_600_000, 2);
+        buffer[position++] = ':';
+        writeDigits(millisOfDay / 60_000 % 60, 2);
+        buffer[position++] = ':';
+        writeDigits(millisOfDay / 1000 % 60, 2);
+        buffer[position++] = '.';
+        writeDigits(millisOfDay % 1000, 3);
+        buffer[position++] = '+';
+        buffer[position++] = '0';
+        buffer[position++] = '0';
+    }
+
+    /**
+     * Write a non-negative number with exactly the given number of digits (zero padded).
+     */
+    private void writeDigits(long value, int digits) {
+        for (var i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    private void writeLongText(long value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            if (value == Long.MIN_VALUE) {
+                writeBytes("9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            value = -value;
+        }
+        var digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) digits++;
+        if (digits == POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits - 1] * 10) digits++;
+        writeDigits(value, digits);
+    }
+
+    /**
+     * Write the decimal unscaled * 10^-scale.
+     */
+    private void writeDecimalText(long unscaled, int scale) {
+        // split before negating so that Long.MIN_VALUE does not overflow
+        var integerPart = unscaled / POWERS_OF_TEN[scale];
+        var fractionPart = unscaled % POWERS_OF_TEN[scale];
+        if (unscaled < 0) {
+            buffer[position++] = '-';
+            integerPart = -integerPart;
+            fractionPart = -fractionPart;
+        }
+        writeLongText(integerPart);
+        if (scale > 0) {
+            buffer[position++] = '.';
+            writeDigits(fractionPart, scale);
+        }
+    }
+
+    /**
+     * Write value in the binary format of the PostgreSQL numeric type which consists of
+     * ndigits, weight, sign and dscale (each int16) followed by ndigits base 10000 digits (int16).
+     */
+    private void writeBinaryNumeric(long unscaled, int scale) throws SQLException {
+        if (unscaled == Long.MIN_VALUE) throw new SQLException("Value %d is out of range for binary COPY".formatted(unscaled));
+        var sign = unscaled < 0 ? 0x4000 : 0x0000;
+        unscaled = Math.abs(unscaled);
+
+        var integerPart = unscaled / POWERS_OF_TEN[scale];
+        var fractionPart = unscaled % POWERS_OF_TEN[scale];
+        // integer part: base 10000 digits, least significant digit first
+        var integerDigits = 0;
+        for (var rest = integerPart; rest > 0; rest /= 10_000) {
+            numericDigits[integerDigits++] = (short) (rest % 10_000);
+        }
+        // reverse integer digits to get most significant first
+        for (int i = 0, j = integerDigits - 1; i < j; i++, j--) {
+            var tmp = numericDigits[i];
+            numericDigits[i] = numericDigits[j];
+            numericDigits[j] = tmp;
+        }
+        // fraction part: pad to a multiple of 4 decimal digits and split into base 10000 digits
+        var fractionGroups = (scale + 3) / 4;
+        var paddedFraction = fractionPart * POWERS_OF_TEN[fractionGroups * 4 - scale];
+        for (var i = fractionGroups - 1; i >= 0; i--) {
+            numericDigits[integerDigits + i] = (short) (paddedFraction % 10_000);
+            paddedFraction /= 10_000;
+        }
+        var first = 0;
+        var last = integerDigits + fractionGroups;
+        var weight = integerDigits - 1;
+        // strip leading and trailing zero digits
+        while (first < last && numericDigits[first] == 0) {
+            first++;
+            weight--;
+        }
+        while (last > first && numericDigits[last - 1] == 0) last--;
+        var ndigits = last - first;
+        if (ndigits == 0) {
+            weight = 0;
+            sign = 0;
+        }
+
+        writeInt(8 + 2 * ndigits);
+        writeShort(ndigits);
+        writeShort(weight);
+        writeShort(sign);
+        writeShort(scale);
+        for (var i = first; i < last; i++) {
+            writeShort(numericDigits[i]);
+        }
+    }
+
+    private void writeShort(int value) {
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    private void writeBytes(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    /**
+     * Make sure the buffer has room for the given number of bytes by sending its content to the database if required.
+     */
+    private void ensureCapacity(int bytes) throws SQLException {
+        if (bytes > buffer.length) throw new SQLException("Row of %d bytes exceeds COPY buffer size".formatted(bytes));
+        if (position + bytes > buffer.length) flushBuffer();
+    }
+
+    private void flushBuffer() throws SQLException {
+        if (position == 0) return;
+        copyIn.writeToCopy(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -0,0 +1,156 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads files written by {@link KpiFileWriter}, e.g. to load archived KPIs back into a database.
+ * @author Thomas Pilz
+ */
+public class KpiFileReader {
+
+    /**
+     * Receives the KPIs read from a file.
+     */
+    @FunctionalInterface
+    public interface KpiConsumer {
+        /**
+         * Receive a KPI.
+         * @param equipment equipment number
+         * @param unixTimestamp milliseconds since the Unix epoch
+         * @param name KPI name
+         * @param unitId unit the KPI is measured in
+         * @param value value
+         */
+        void accept(String equipment, long unixTimestamp, String name, int unitId, BigDecimal value);
+    }
+
+    private final byte[] block;
+    private int position = 0;
+
+    private KpiFileReader(byte[] block) {
+        this.block = block;
+    }
+
+    /**
+     * Read all KPIs of a file. A block cut off at the end of the file, e.g. by a crash while it was written, is skipped.
+     * @param file file written by {@link KpiFileWriter}
+     * @param consumer receives every KPI in the order the KPIs were written
+     * @return number of KPIs read
+     * @throws IOException if the file cannot be read or is not a valid KPI file
+     */
+    public static long read(Path file, KpiConsumer consumer) throws IOException {
+        var equipment = new HashMap<Integer, String>();
+        var names = new HashMap<Integer, String>();
+        var inflater = new Inflater();
+        var kpis = 0L;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != KpiFileWriter.MAGIC) throw new IOException("File " + file + " is not a KPI file!");
+            var version = in.readByte();
+            if (version != KpiFileWriter.VERSION) throw new IOException("Unsupported version " + version + " of KPI file " + file + "!");
+            while (true) {
+                byte[] compressed;
+                int length;
+                try {
+                    length = in.readInt();
+                    compressed = new byte[in.readInt()];
+                    in.readFully(compressed);
+                } catch (EOFException e) {
+                    break;
+                }
+                var block = new byte[length];
+                inflater.reset();
+                inflater.setInput(compressed);
+                try {
+                    if (inflater.inflate(block) != length || !inflater.finished()) throw new IOException("Corrupt block in KPI file " + file + "!");
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt block in KPI file " + file + "!", e);
+                }
+                kpis += new KpiFileReader(block).decode(equipment, names, consumer);
+            }
+        } finally {
+            inflater.end();
+        }
+        return kpis;
+    }
+
+    /**
+     * Decode a block and pass its KPIs on.
+     * @param equipment equipment numbers of the file by ID, new ones of the block are added
+     * @param names KPI names of the file by ID, new ones of the block are added
+     * @param consumer receives every KPI
+     * @return number of KPIs
+     */
+    private int decode(HashMap<Integer, String> equipment, HashMap<Integer, String> names, KpiConsumer consumer) {
+        var rows = (int) getVarLong();
+        getNewStrings(equipment);
+        getNewStrings(names);
+        var timestamps = new long[rows];
+        var previous = 0L;
+        for (var i = 0; i < rows; i++) {
+            previous += getZigZag();
+            timestamps[i] = previous;
+        }
+        var equipmentIds = new int[rows];
+        for (var i = 0; i < rows; i++) equipmentIds[i] = (int) getVarLong();
+        var nameIds = new int[rows];
+        for (var i = 0; i < rows; i++) nameIds[i] = (int) getVarLong();
+        var unitIds = new int[rows];
+        for (var i = 0; i < rows; i++) unitIds[i] = (int) getZigZag();
+        for (var i = 0; i < rows; i++) {
+            var value = BigDecimal.valueOf(getZigZag(), KpiBatch.VALUE_SCALE);
+            consumer.accept(equipment.get(equipmentIds[i]), timestamps[i], names.get(nameIds[i]), unitIds[i], value);
+        }
+        return rows;
+    }
+
+    private void getNewStrings(HashMap<Integer, String> strings) {
+        var count = getVarLong();
+        for (var i = 0; i < count; i++) {
+            var id = (int) getVarLong();
+            var length = (int) getVarLong();
+            strings.put(id, new String(block, position, length, StandardCharsets.UTF_8));
+            position += length;
+        }
+    }
+
+    private long getZigZag() {
+        var value = getVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long getVarLong() {
+        var value = 0L;
+        for (var shift = 0; ; shift += 7) {
+            var b = block[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+}
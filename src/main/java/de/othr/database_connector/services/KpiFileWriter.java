@@ -0,0 +1,330 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.ingest.KpiSink;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import de.othr.database_connector.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.Deflater;
+
+/**
+ * Writes KPIs to compressed columnar files in a local directory, e.g. to archive raw KPIs cheaply.
+ * A file starts with the magic bytes {@code KPIC} and a format version byte, followed by one block per batch.
+ * Every block starts with its uncompressed and compressed length (4 byte integers) and is compressed with zlib (deflate).
+ * An uncompressed block holds, all numbers encoded as unsigned LEB128 varints and signed numbers zigzag encoded:
+ * <ol>
+ *     <li>the number of rows</li>
+ *     <li>the number of equipment numbers used in the file for the first time, followed by their ID and UTF-8 string</li>
+ *     <li>the same for KPI names</li>
+ *     <li>the column of Unix timestamps in milliseconds (signed), each as difference to the previous one</li>
+ *     <li>the columns of equipment IDs, KPI name IDs and units (signed)</li>
+ *     <li>the column of values multiplied by 10^{@value KpiBatch#VALUE_SCALE} (signed)</li>
+ * </ol>
+ * Files are named {@code <prefix>-<UTC time of creation>.kpic} and carry the suffix {@code .part} while they are written.
+ * They are completed once they reach the maximum size or age, so that only complete files have to be picked up for archiving.
+ * Files left incomplete by a crash are completed on start, a block cut off by the crash is skipped by {@link KpiFileReader}.
+ * Blocks are handed to the operating system on every write and synced to disk whenever the writer is idle and before a file is completed.
+ * Every writer is meant to be driven by a single thread and is therefore not thread-safe.
+ * @author Thomas Pilz
+ */
+public class KpiFileWriter implements KpiSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(KpiFileWriter.class);
+    /**
+     * Limits the log output while files cannot be written, e.g. because the disk is full. Shared by all writers.
+     */
+    private static final ErrorReporter errors = new ErrorReporter(logger);
+    /**
+     * Magic bytes at the start of every file ("KPIC")
+     */
+    public static final int MAGIC = 0x4B504943;
+    public static final byte VERSION = 1;
+    public static final String SUFFIX = ".kpic";
+    /**
+     * Suffix of files which are still written
+     */
+    public static final String PART_SUFFIX = ".part";
+    /**
+     * Time the writer is unavailable after a batch could not be written
+     */
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private final Path dir;
+    private final String prefix;
+    private final long maxFileBytes;
+    private final long maxFileAgeMs;
+    private final Deflater deflater = new Deflater();
+    /**
+     * Equipment numbers and KPI names already written to the current file
+     */
+    private final BitSet equipmentWritten = new BitSet();
+    private final BitSet namesWritten = new BitSet();
+    private final ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+    /**
+     * IDs of equipment numbers or KPI names of the current batch which are new to the current file
+     */
+    private int[] newIds = new int[256];
+    private byte[] block = new byte[64 * 1024];
+    private int blockLength;
+    private byte[] compressed = new byte[64 * 1024];
+    private FileChannel channel;
+    private Path file;
+    private long fileBytes;
+    private long fileCreated;
+    private boolean dirty = false;
+    private long unavailableUntil = 0;
+
+    /**
+     * Create a new file writer and complete files with the same prefix left incomplete by a previous run.
+     * The first file is created once the first batch is written.
+     * @param dir directory files are written to, created if it does not exist
+     * @param prefix prefix of the file names, must be unique among all writers of the directory
+     * @param maxFileBytes size in bytes after which a file is completed
+     * @param maxFileAgeMs time in milliseconds after which a file is completed
+     * @throws IOException if the directory cannot be created or read
+     */
+    public KpiFileWriter(Path dir, String prefix, long maxFileBytes, long maxFileAgeMs) throws IOException {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMs = maxFileAgeMs;
+        Files.createDirectories(dir);
+        try (var incomplete = Files.newDirectoryStream(dir, prefix + "-*" + SUFFIX + PART_SUFFIX)) {
+            for (var part : incomplete) {
+                complete(part);
+                logger.info("Completed file {} left incomplete by a previous run", part);
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return System.currentTimeMillis() >= unavailableUntil;
+    }
+
+    /**
+     * Append a batch as compressed block to the current file and complete the file if it reached its maximum size or age.
+     * @param batch KPI rows to write
+     * @return false if the batch could not be written, e.g. because the disk is full. The writer is unavailable for a few seconds then.
+     */
+    @Override
+    public boolean write(KpiBatch batch) {
+        if (batch.isEmpty()) return true;
+        try {
+            if (channel == null) open();
+            encode(batch);
+            var length = compress();
+            header.clear();
+            header.putInt(blockLength).putInt(length).flip();
+            var buffers = new ByteBuffer[]{header, ByteBuffer.wrap(compressed, 0, length)};
+            while (buffers[1].hasRemaining()) channel.write(buffers);
+            fileBytes += header.capacity() + length;
+            dirty = true;
+            Metrics.SINK_KPIS_WRITTEN.add(name(), batch.size());
+            Metrics.SINK_BYTES_WRITTEN.add(name(), header.capacity() + length);
+        } catch (IOException e) {
+            errors.error("FILE_SINK", "Could not write batch of %d KPIs to file %s! Batch is retried.".formatted(batch.size(), file), e);
+            Metrics.SINK_FAILURES.increment(name());
+            // a partially written block is skipped by readers, so the file is completed and the batch is written to a new file
+            if (channel != null) closeFile();
+            unavailableUntil = System.currentTimeMillis() + RETRY_DELAY_MS;
+            return false;
+        }
+        if (fileBytes >= maxFileBytes || System.currentTimeMillis() - fileCreated >= maxFileAgeMs) completeFile();
+        return true;
+    }
+
+    /**
+     * Sync written blocks to disk and complete the current file if it reached its maximum age.
+     */
+    @Override
+    public void flush() {
+        if (channel == null) return;
+        if (System.currentTimeMillis() - fileCreated >= maxFileAgeMs) {
+            completeFile();
+            return;
+        }
+        if (!dirty) return;
+        try {
+            channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            errors.error("FILE_SINK", "Could not sync file %s to disk!".formatted(file), e);
+            closeFile();
+        }
+    }
+
+    /**
+     * Complete the current file.
+     */
+    @Override
+    public void close() {
+        if (channel != null) completeFile();
+        deflater.end();
+    }
+
+    private void open() throws IOException {
+        // file names have a resolution of milliseconds, so a file completed right away must not be followed by one with the same name
+        fileCreated = Math.max(System.currentTimeMillis(), fileCreated + 1);
+        file = dir.resolve(prefix + "-" + FILE_TIME.format(Instant.ofEpochMilli(fileCreated)) + SUFFIX + PART_SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        var fileHeader = ByteBuffer.allocate(Integer.BYTES + 1).putInt(MAGIC).put(VERSION).flip();
+        while (fileHeader.hasRemaining()) channel.write(fileHeader);
+        fileBytes = fileHeader.capacity();
+        equipmentWritten.clear();
+        namesWritten.clear();
+    }
+
+    /**
+     * Sync the current file to disk and complete it.
+     */
+    private void completeFile() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            errors.error("FILE_SINK", "Could not sync file %s to disk!".formatted(file), e);
+        }
+        closeFile();
+    }
+
+    /**
+     * Close the current file and remove its {@value #PART_SUFFIX} suffix.
+     * A file which cannot be renamed keeps the suffix and is completed on the next start.
+     */
+    private void closeFile() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+        dirty = false;
+        try {
+            complete(file);
+        } catch (IOException e) {
+            logger.warn("Could not complete file {}!", file, e);
+        }
+    }
+
+    private static void complete(Path part) throws IOException {
+        var name = part.getFileName().toString();
+        Files.move(part, part.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length())), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Encode a batch as uncompressed block.
+     * @param batch KPI rows
+     */
+    private void encode(KpiBatch batch) {
+        blockLength = 0;
+        var rows = batch.size();
+        putVarLong(rows);
+        putNewStrings(batch, rows, true);
+        putNewStrings(batch, rows, false);
+        var previous = 0L;
+        for (var i = 0; i < rows; i++) {
+            putZigZag(batch.getTimestamp(i) - previous);
+            previous = batch.getTimestamp(i);
+        }
+        for (var i = 0; i < rows; i++) putVarLong(batch.getEquipmentId(i));
+        for (var i = 0; i < rows; i++) putVarLong(batch.getNameId(i));
+        for (var i = 0; i < rows; i++) putZigZag(batch.getUnitId(i));
+        for (var i = 0; i < rows; i++) putZigZag(batch.getScaledValue(i));
+    }
+
+    /**
+     * Write the equipment numbers or KPI names of a batch which were not written to the current file yet.
+     * @param batch KPI rows
+     * @param rows number of rows
+     * @param equipment true for equipment numbers, false for KPI names
+     */
+    private void putNewStrings(KpiBatch batch, int rows, boolean equipment) {
+        var written = equipment ? equipmentWritten : namesWritten;
+        var count = 0;
+        for (var i = 0; i < rows; i++) {
+            var id = equipment ? batch.getEquipmentId(i) : batch.getNameId(i);
+            if (written.get(id)) continue;
+            written.set(id);
+            if (count == newIds.length) newIds = Arrays.copyOf(newIds, count * 2);
+            newIds[count++] = id;
+        }
+        putVarLong(count);
+        var dictionary = equipment ? KpiDictionary.EQUIPMENT : KpiDictionary.NAMES;
+        for (var i = 0; i < count; i++) {
+            var bytes = dictionary.get(newIds[i]).getBytes(StandardCharsets.UTF_8);
+            putVarLong(newIds[i]);
+            putVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, block, blockLength, bytes.length);
+            blockLength += bytes.length;
+        }
+    }
+
+    private void putZigZag(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void putVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            block[blockLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        block[blockLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (blockLength + bytes > block.length) block = Arrays.copyOf(block, Math.max(block.length * 2, blockLength + bytes));
+    }
+
+    /**
+     * Compress the encoded block.
+     * @return length of the compressed block
+     */
+    private int compress() {
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        var length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+}
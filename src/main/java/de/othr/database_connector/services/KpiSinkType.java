@@ -0,0 +1,31 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Sinks received KPIs are written to.
+ * @author Thomas Pilz
+ */
+public enum KpiSinkType {
+    /**
+     * The kpis table (or kpi_values table of the normalized schema) of the PostgreSQL database.
+     */
+    POSTGRES,
+    /**
+     * Compressed columnar files in a local directory written by {@link KpiFileWriter}.
+     */
+    FILE
+}
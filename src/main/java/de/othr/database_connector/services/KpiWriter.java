@@ -0,0 +1,363 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.ingest.KpiSink;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+
+/**
+ * Writes KPIs to the database using its own connection taken from the {@link DatabaseService} connection pool.
+ * Every writer is meant to be driven by a single thread and is therefore not thread-safe.
+ * @author Thomas Pilz
+ */
+public class KpiWriter implements KpiSink, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(KpiWriter.class);
+    /**
+     * Limits the log output of batches rejected by the database, e.g. because of a misbehaving device. Shared by all writers.
+     */
+    private static final ErrorReporter errors = new ErrorReporter(logger);
+    /**
+     * Number of consecutive COPY failures after which the writer switches to batched INSERT permanently
+     */
+    private static final int MAX_COPY_FAILURES = 3;
+    /**
+     * Columns of the kpis table and of alternate tables topics can be routed to
+     */
+    public static final String KPIS_COLUMNS = "(k_equipment,k_timestamp,k_name,k_unit,k_value)";
+    private final DatabaseService db;
+    private Connection dbCon;
+    private InsertMode insertMode = InsertMode.INSERT;
+    private KpiCopyWriter copyWriter;
+    /**
+     * Number of consecutive batches COPY failed for while the batched INSERT succeeded
+     */
+    private int copyFailures = 0;
+    /**
+     * Dimension tables of the normalized schema or null if the denormalized kpis table is used
+     */
+    private final DimensionTables dimensions;
+    /**
+     * IDs of the dimension tables per row of the current batch (normalized schema only)
+     */
+    private int[] equipmentKeys = new int[0];
+    private int[] nameKeys = new int[0];
+    /**
+     * INSERT statements prepared for the current connection
+     */
+    private final InsertStatementCache insertStatements;
+    /**
+     * Table including its column list KPIs are written to unless they are written to a partition
+     */
+    private final String table;
+    /**
+     * Partitions of the table KPIs are written to or null if they are not managed by the connector
+     */
+    private final PartitionManager partitions;
+    /**
+     * INSERT statements prepared for the partition the previous batch was inserted into
+     */
+    private InsertStatementCache partitionStatements;
+    private String statementsPartition;
+
+    /**
+     * Create a new writer. A connection is taken from the pool once the first KPIs are inserted.
+     * @param db database service providing connections
+     * @param insertMode how KPIs are written to the database
+     */
+    public KpiWriter(DatabaseService db, InsertMode insertMode) {
+        this(db, insertMode, (DimensionTables) null);
+    }
+
+    /**
+     * Create a new writer. A connection is taken from the pool once the first KPIs are inserted.
+     * @param db database service providing connections
+     * @param insertMode how KPIs are written to the database
+     * @param dimensions dimension tables to use the normalized schema or null to write to the kpis table
+     */
+    public KpiWriter(DatabaseService db, InsertMode insertMode, DimensionTables dimensions) {
+        this(db, insertMode, dimensions, null);
+    }
+
+    /**
+     * Create a new writer. A connection is taken from the pool once the first KPIs are inserted.
+     * @param db database service providing connections
+     * @param insertMode how KPIs are written to the database
+     * @param dimensions dimension tables to use the normalized schema or null to write to the kpis table
+     * @param partitions partitions batches are inserted into directly if all of their rows fall into the same partition, or null
+     */
+    public KpiWriter(DatabaseService db, InsertMode insertMode, DimensionTables dimensions, PartitionManager partitions) {
+        this(db, insertMode, dimensions, partitions, dimensions != null ? DimensionTables.FACT_TABLE : "kpis " + KPIS_COLUMNS);
+    }
+
+    /**
+     * Create a new writer which writes KPIs to a table with the columns of the kpis table. A connection is taken from the pool once the first KPIs are inserted.
+     * @param db database service providing connections
+     * @param insertMode how KPIs are written to the database
+     * @param table name of table
+     */
+    public KpiWriter(DatabaseService db, InsertMode insertMode, String table) {
+        this(db, insertMode, null, null, table + " " + KPIS_COLUMNS);
+    }
+
+    private KpiWriter(DatabaseService db, InsertMode insertMode, DimensionTables dimensions, PartitionManager partitions, String table) {
+        this.db = db;
+        this.dimensions = dimensions;
+        this.partitions = partitions;
+        this.table = table;
+        this.insertStatements = new InsertStatementCache(table);
+        setInsertMode(insertMode);
+    }
+
+    public InsertMode getInsertMode() {
+        return insertMode;
+    }
+
+    /**
+     * Set how KPIs are written to the database.
+     * @param insertMode insert mode
+     */
+    public void setInsertMode(InsertMode insertMode) {
+        this.insertMode = insertMode;
+        this.copyWriter = insertMode == InsertMode.INSERT ? null : new KpiCopyWriter(insertMode == InsertMode.COPY_BINARY);
+        this.copyFailures = 0;
+        logger.info("Using insert mode {}", insertMode);
+    }
+
+    @Override
+    public String name() {
+        return "postgres";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return db.isAvailable();
+    }
+
+    @Override
+    public boolean write(KpiBatch batch) {
+        return insertKpis(batch);
+    }
+
+    /**
+     * Insert a batch of KPIs within a single transaction.
+     * Depending on the insert mode a COPY or the cached multi-row INSERT statements are used.
+     * If partitions are managed and all KPIs fall into the same partition, they are inserted into the partition directly.
+     * If a COPY fails the KPIs are inserted using INSERT statements instead. The writer only switches to INSERT statements permanently
+     * if the table does not accept the COPY format or COPY failed for several batches in a row.
+     * @param kpis KPI rows
+     * @return false if the KPIs could not be inserted because the database is unreachable and should be retried once it is reachable again.
+     * True if the KPIs were inserted or were rejected by the database.
+     */
+    public boolean insertKpis(KpiBatch kpis) {
+        if (!ensureConnection()) return false;
+        var start = System.nanoTime();
+        try {
+            if (dimensions != null) resolveKeys(kpis);
+            var partition = partitions != null ? partitions.partitionOf(dbCon, kpis) : null;
+            if (copyWriter == null) {
+                batchInsertKpis(partition, kpis);
+                recordCommit(kpis, start);
+                return true;
+            }
+            var target = partition != null ? partition : table;
+            SQLException copyFailure;
+            try {
+                if (dimensions != null) copyWriter.copy(dbCon, target, kpis, equipmentKeys, nameKeys);
+                else copyWriter.copy(dbCon, target, kpis, null, null);
+                dbCon.commit();
+                recordCommit(kpis, start);
+                copyFailures = 0;
+                return true;
+            } catch (SQLException e) {
+                if (isConnectionLost(e)) throw e;
+                logger.warn("Could not insert KPIs using COPY. Falling back to batched INSERT.", e);
+                rollback();
+                copyFailure = e;
+            }
+            batchInsertKpis(partition, kpis);
+            recordCommit(kpis, start);
+            // COPY is only given up if the table does not accept its format or it keeps failing, transient errors (e.g. lock timeouts) are retried with COPY
+            String reason = null;
+            if (isFormatMismatch(copyFailure)) reason = "it does not accept the COPY format";
+            else if (++copyFailures >= MAX_COPY_FAILURES) reason = "COPY failed for %d batches in a row".formatted(copyFailures);
+            if (reason != null) {
+                logger.warn("Switching to batched INSERT permanently for {} as {}. Last COPY failure:", target.split(" ", 2)[0], reason, copyFailure);
+                setInsertMode(InsertMode.INSERT);
+            }
+            return true;
+        } catch (SQLException e) {
+            if (isConnectionLost(e)) {
+                logger.warn("Lost connection to database! Batch of {} KPIs is retried once the database is reachable again.", kpis.size());
+                Metrics.SINK_FAILURES.increment(name());
+                closeConnection();
+                db.connectionLost();
+                return false;
+            }
+            // the batch is dropped as it would be rejected again
+            errors.error("INSERT", "Could not insert batch of %d KPIs! Batch is dropped.".formatted(kpis.size()),
+                    e instanceof BatchUpdateException && e.getNextException() != null ? e.getNextException() : e);
+            Metrics.SINK_FAILURES.increment(name());
+            rollback();
+            return true;
+        }
+    }
+
+    /**
+     * Update the metrics after a batch was committed.
+     * @param kpis committed KPI rows
+     * @param start {@link System#nanoTime()} when writing the batch started
+     */
+    private void recordCommit(KpiBatch kpis, long start) {
+        Metrics.FLUSH_DURATION.recordNanos(System.nanoTime() - start);
+        Metrics.BATCH_SIZE.record(kpis.size());
+        Metrics.KPIS_COMMITTED.add(kpis.size());
+        Metrics.SINK_KPIS_WRITTEN.add(name(), kpis.size());
+        // rows of one message are consecutive and share their timestamp, so the lag is recorded once per message
+        var now = System.currentTimeMillis();
+        for (var i = 0; i < kpis.size(); i++) {
+            if (i > 0 && kpis.getTimestamp(i) == kpis.getTimestamp(i - 1) && kpis.getEquipmentId(i) == kpis.getEquipmentId(i - 1)) continue;
+            Metrics.END_TO_END_LAG.record((now - kpis.getTimestamp(i)) / 1000.0);
+        }
+    }
+
+    /**
+     * Look up (and insert if required) the dimension table IDs of equipment and KPI names of all rows.
+     * @param kpis KPI rows
+     * @throws SQLException if the dimension tables cannot be accessed
+     */
+    private void resolveKeys(KpiBatch kpis) throws SQLException {
+        dimensions.ensureReady(dbCon);
+        if (equipmentKeys.length < kpis.size()) {
+            equipmentKeys = new int[kpis.capacity()];
+            nameKeys = new int[kpis.capacity()];
+        }
+        dimensions.getEquipment().resolve(dbCon, kpis.size(), kpis::getEquipmentId, equipmentKeys);
+        dimensions.getNames().resolve(dbCon, kpis.size(), kpis::getNameId, nameKeys);
+    }
+
+    /**
+     * Insert KPIs using the cached multi-row INSERT statements and a single commit.
+     * @param partition partition including its column list or null to insert into the table of this writer
+     * @param kpis KPI rows
+     * @throws SQLException if the KPIs could not be inserted
+     */
+    private void batchInsertKpis(String partition, KpiBatch kpis) throws SQLException {
+        var statements = partition == null ? insertStatements : partitionStatements(partition);
+        if (dimensions != null) statements.insert(dbCon, kpis, equipmentKeys, nameKeys);
+        else statements.insert(dbCon, kpis, null, null);
+        dbCon.commit();
+    }
+
+    /**
+     * Get the INSERT statements of a partition. Statements are only kept for the latest partition, as batches move on to the next partition
+     * once its time range has begun and rarely go back.
+     * @param partition partition including its column list
+     * @return statement cache of partition
+     */
+    private InsertStatementCache partitionStatements(String partition) {
+        if (!partition.equals(statementsPartition)) {
+            if (partitionStatements != null) partitionStatements.close();
+            partitionStatements = new InsertStatementCache(partition);
+            statementsPartition = partition;
+        }
+        return partitionStatements;
+    }
+
+    /**
+     * Check whether an exception was caused by data the table does not accept in the format of the COPY.
+     * @param e exception thrown by the JDBC driver
+     * @return true if the column types do not match the COPY format
+     */
+    private static boolean isFormatMismatch(SQLException e) {
+        // 22P02 = invalid text representation, 22P03 = invalid binary representation, 42804 = datatype mismatch
+        var sqlState = e.getSQLState();
+        return "22P02".equals(sqlState) || "22P03".equals(sqlState) || "42804".equals(sqlState);
+    }
+
+    /**
+     * Check whether an exception was caused by a broken connection rather than by the statement itself.
+     * @param e exception thrown by the JDBC driver
+     * @return true if the connection is lost
+     */
+    private boolean isConnectionLost(SQLException e) {
+        // SQL state class 08 = connection exception
+        var sqlState = e.getSQLState();
+        if (sqlState != null && sqlState.startsWith("08")) return true;
+        try {
+            return dbCon.isClosed() || !dbCon.isValid(5);
+        } catch (SQLException ex) {
+            return true;
+        }
+    }
+
+    private void rollback(){
+        try {
+            dbCon.rollback();
+        } catch (SQLException e) {
+            logger.warn("Could not roll back transaction!", e);
+        }
+    }
+
+    /**
+     * Make sure this writer holds an open connection by taking a new one from the pool if required.
+     * @return true if an open connection is available
+     */
+    private boolean ensureConnection() {
+        if (!db.isAvailable()) return false;
+        try {
+            if (dbCon != null && !dbCon.isClosed()) return true;
+        } catch (SQLException ignored) {
+        }
+        try {
+            dbCon = db.getConnection();
+            return true;
+        } catch (SQLException e) {
+            logger.warn("Cannot connect to database!", e);
+            dbCon = null;
+            db.connectionLost();
+            return false;
+        }
+    }
+
+    private void closeConnection() {
+        insertStatements.close();
+        if (partitionStatements != null) partitionStatements.close();
+        try {
+            dbCon.close();
+        } catch (SQLException ignored) {
+        }
+        dbCon = null;
+    }
+
+    /**
+     * Return the connection of this writer to the pool.
+     */
+    @Override
+    public void close() {
+        if (dbCon == null) return;
+        insertStatements.close();
+        if (partitionStatements != null) partitionStatements.close();
+        db.releaseConnection(dbCon);
+        dbCon = null;
+    }
+}
@@ -15,9 +15,14 @@ See the License for the specific language governing permissions and
 limitations under the License.
  */
 
-import com.fasterxml.jackson.databind.DatabindException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import de.othr.database_connector.kpi.KpiMsg;
+import de.othr.database_connector.helpers.DeadLetterFile;
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.helpers.ValidationMode;
+import de.othr.database_connector.helpers.Validator;
+import de.othr.database_connector.ingest.Acknowledgement;
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiMsgDecoder;
+import de.othr.database_connector.metrics.Metrics;
 import org.eclipse.paho.mqttv5.client.*;
 import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
 import org.eclipse.paho.mqttv5.common.MqttException;
@@ -26,48 +31,112 @@ import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.util.function.Consumer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.BiConsumer;
 
 /**
- * MQTT Service to connect to a MQTT message broker and subscribe to all messages.
+ * MQTT Service to connect to a MQTT message broker and subscribe to messages.
+ * By default all messages are subscribed. If a shared subscription group is set the topic filters are subscribed
+ * as MQTT v5 shared subscriptions ({@code $share/<group>/<filter>}), so the broker distributes messages among all
+ * connector instances using the same group instead of sending every message to every instance.
  * @author Thomas Pilz
  */
-public class MqttService implements MqttCallback {
+public class MqttService implements MqttCallback, AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(MqttService.class);
-    private Consumer<KpiMsg> onValidMessageListener;
+    /**
+     * Expiry interval of the session if messages are acknowledged manually, so unacknowledged messages are sent again after a reconnect
+     */
+    private static final long SESSION_EXPIRY_SECONDS = 300;
+    /**
+     * Number of threads of a client: network receiver and sender, message callback and keep-alive pings.
+     * The spare threads take over while the threads of a broken connection wind down during a reconnect.
+     */
+    private static final int CLIENT_THREADS = 8;
+    private static final long DISCONNECT_TIMEOUT_MS = 5000;
+    private BiConsumer<KpiBatch, Acknowledgement> onValidMessageListener;
+    /**
+     * Listener per topic or null to hand all messages to {@link #onValidMessageListener}
+     */
+    private TopicRouter<BiConsumer<KpiBatch, Acknowledgement>> router;
     private final MqttClientPersistence persistence;
-    private final MqttConnectionOptions connectionOptions;
-    private static final ObjectMapper jsonMapper = new ObjectMapper();
     private final String msgBrokerUrl;
     private final String clientId;
+    private MqttAsyncClient client;
+    /**
+     * Runs all threads of the client on virtual threads, so the callback does not occupy a platform thread while it waits for the ingest pipeline
+     */
+    private ScheduledExecutorService clientExecutor;
+    private List<String> topicFilters = List.of("#");
+    private String sharedGroup = null;
+    private int qos = 0;
+    private int receiveMaximum = 1000;
+    /**
+     * False once {@link #stopConsuming()} was called
+     */
+    private volatile boolean consuming = true;
+    /**
+     * KPI rows of the message currently being processed. Reused for every message as callbacks are invoked by a single thread.
+     */
+    private final KpiBatch rows = new KpiBatch(64);
+    private final KpiMsgDecoder decoder = new KpiMsgDecoder();
+    /**
+     * Counts rejected messages and limits how many of them are logged, as a misbehaving device may send invalid messages at a high rate
+     */
+    private final ErrorReporter errors = new ErrorReporter(logger);
+    private ValidationMode validationMode = ValidationMode.STRICT;
+    /**
+     * True if the decoder enforces exactly the rules of the deployed schema, so messages it accepts need no schema evaluation
+     */
+    private final boolean decoderMatchesSchema = KpiMsgDecoder.SCHEMA_FINGERPRINT.equals(Validator.getMsgSchemaFingerprint());
 
-
-    public MqttService(String msgBrokerUrl, String clientId, Consumer<KpiMsg> onValidMessageListener) {
+    public MqttService(String msgBrokerUrl, String clientId, BiConsumer<KpiBatch, Acknowledgement> onValidMessageListener) {
         this.msgBrokerUrl = msgBrokerUrl;
         this.clientId = clientId;
         // Set memory persistence to prevent paho to create lots of lock files
         this.persistence = new MemoryPersistence();
-        // Set MQTT connection options
-        this.connectionOptions = new MqttConnectionOptionsBuilder()
-                .automaticReconnect(true)
-                .cleanStart(true)
-                .build();
         this.onValidMessageListener = onValidMessageListener;
     }
 
     public MqttService(String msgBrokerUrl, String clientId){
-        this(msgBrokerUrl, clientId, msg -> {});
+        this(msgBrokerUrl, clientId, (msg, ack) -> {
+            if(ack != null) ack.acknowledge();
+        });
     }
 
-    public void connectAndSubscribeAll(){
+    /**
+     * Build the MQTT connection options.
+     * With manual acknowledgements the session is kept after a disconnect so that the broker sends unacknowledged messages again.
+     * @return connection options
+     */
+    private MqttConnectionOptions buildConnectionOptions(){
+        var options = new MqttConnectionOptionsBuilder()
+                .automaticReconnect(true)
+                .cleanStart(qos == 0)
+                .build();
+        if(qos > 0){
+            options.setSessionExpiryInterval(SESSION_EXPIRY_SECONDS);
+            options.setReceiveMaximum(receiveMaximum);
+        }
+        return options;
+    }
+
+    /**
+     * Connect to the message broker and subscribe to the topic filters.
+     * Subscriptions are renewed whenever the client reconnects.
+     */
+    public void connectAndSubscribe(){
         try {
             // Use async MQTT client for better performance/ non-blocking operations
             logger.info("Attempting to connect to {} as {}", msgBrokerUrl, clientId);
-            var client = new MqttAsyncClient(msgBrokerUrl, clientId, persistence);
+            clientExecutor = Executors.newScheduledThreadPool(CLIENT_THREADS, Thread.ofVirtual().name("mqtt-%s-".formatted(clientId), 0).factory());
+            client = new MqttAsyncClient(msgBrokerUrl, clientId, persistence, null, clientExecutor);
             client.setCallback(this);
-            var conToken = client.connect(connectionOptions, new MqttActionListener() {
+            client.setManualAcks(qos > 0);
+            var conToken = client.connect(buildConnectionOptions(), new MqttActionListener() {
                 @Override
                 public void onSuccess(IMqttToken asyncActionToken) {
 
@@ -79,22 +148,150 @@ public class MqttService implements MqttCallback {
                 }
             });
             conToken.waitForCompletion();
-            client.subscribe("#", 0);
+            subscribe();
         } catch (MqttException e) {
             logger.warn("Failed to connect due to exception.", e);
         }
     }
 
-    public Consumer<KpiMsg> getOnValidMessageListener() {
+    /**
+     * Subscribe to all topic filters and log every subscription the broker rejected.
+     * @throws MqttException if the subscribe request could not be sent
+     */
+    private void subscribe() throws MqttException {
+        var filters = getSubscriptionFilters();
+        var qos = new int[filters.length];
+        Arrays.fill(qos, this.qos);
+        var token = client.subscribe(filters, qos);
+        token.waitForCompletion();
+        var reasonCodes = token.getReasonCodes();
+        for(var i = 0; reasonCodes != null && i < reasonCodes.length && i < filters.length; i++){
+            // reason codes >= 0x80 indicate failure, e.g. 0x9E if the broker does not support shared subscriptions
+            if(reasonCodes[i] >= 0x80) logger.error("Broker rejected subscription of {} to {} with reason code 0x{}", clientId, filters[i], Integer.toHexString(reasonCodes[i]));
+            else logger.info("{} subscribed to {}", clientId, filters[i]);
+        }
+    }
+
+    /**
+     * Get the topic filters as they are sent to the broker, i.e. prefixed with {@code $share/<group>/} if a shared subscription group is set.
+     * @return topic filters
+     */
+    public String[] getSubscriptionFilters(){
+        return topicFilters.stream()
+                .map(filter -> sharedGroup == null ? filter : "$share/%s/%s".formatted(sharedGroup, filter))
+                .toArray(String[]::new);
+    }
+
+    public List<String> getTopicFilters() {
+        return topicFilters;
+    }
+
+    /**
+     * Set the topic filters to subscribe to. Must be called before {@link #connectAndSubscribe()}.
+     * @param topicFilters MQTT topic filters, may contain wildcards
+     */
+    public void setTopicFilters(List<String> topicFilters) {
+        if(topicFilters.isEmpty()) throw new IllegalArgumentException("At least one topic filter is required!");
+        this.topicFilters = List.copyOf(topicFilters);
+    }
+
+    public String getSharedGroup() {
+        return sharedGroup;
+    }
+
+    /**
+     * Set the group of the shared subscriptions. Must be called before {@link #connectAndSubscribe()}.
+     * @param sharedGroup share name or null to subscribe without sharing
+     */
+    public void setSharedGroup(String sharedGroup) {
+        if(sharedGroup != null && (sharedGroup.isEmpty() || sharedGroup.chars().anyMatch(c -> c == '/' || c == '+' || c == '#'))){
+            throw new IllegalArgumentException("Shared subscription group must not be empty or contain '/', '+' or '#'!");
+        }
+        this.sharedGroup = sharedGroup;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * Set the QoS of the subscriptions. With QoS 1 or 2 messages are acknowledged once the listener acknowledges them.
+     * Must be called before {@link #connectAndSubscribe()}.
+     * @param qos 0, 1 or 2
+     */
+    public void setQos(int qos) {
+        if(qos < 0 || qos > 2) throw new IllegalArgumentException("QoS must be 0, 1 or 2!");
+        this.qos = qos;
+    }
+
+    public int getReceiveMaximum() {
+        return receiveMaximum;
+    }
+
+    /**
+     * Set the maximum number of unacknowledged QoS 1 and 2 messages the broker sends. Must be called before {@link #connectAndSubscribe()}.
+     * @param receiveMaximum receive maximum between 1 and 65535
+     */
+    public void setReceiveMaximum(int receiveMaximum) {
+        if(receiveMaximum < 1 || receiveMaximum > 65535) throw new IllegalArgumentException("Receive maximum must be between 1 and 65535!");
+        this.receiveMaximum = receiveMaximum;
+    }
+
+    public BiConsumer<KpiBatch, Acknowledgement> getOnValidMessageListener() {
         return onValidMessageListener;
     }
 
-    public void setOnValidMessageListener(Consumer<KpiMsg> onValidMessageListener) {
+    /**
+     * Set the listener which receives the KPI rows of every valid message.
+     * The batch is reused for the next message, so the listener has to copy rows it wants to keep.
+     * The listener must acknowledge the message once the rows are stored. The acknowledgement is null for QoS 0.
+     * @param onValidMessageListener listener
+     */
+    public void setOnValidMessageListener(BiConsumer<KpiBatch, Acknowledgement> onValidMessageListener) {
         this.onValidMessageListener = onValidMessageListener;
     }
 
-    public void onValidMessageReceived(Consumer<KpiMsg> listener, KpiMsg kpiMsg){
-        listener.accept(kpiMsg);
+    public TopicRouter<BiConsumer<KpiBatch, Acknowledgement>> getRouter() {
+        return router;
+    }
+
+    /**
+     * Set the listener per topic. Messages of topics without a listener are dropped (and acknowledged) before their payload is read.
+     * @param router listener per topic or null to hand the KPIs of all messages to the listener set by {@link #setOnValidMessageListener(BiConsumer)}
+     */
+    public void setRouter(TopicRouter<BiConsumer<KpiBatch, Acknowledgement>> router) {
+        this.router = router;
+    }
+
+    public DeadLetterFile getDeadLetters() {
+        return errors.getDeadLetters();
+    }
+
+    /**
+     * Set the file the payloads of rejected messages are written to.
+     * @param deadLetters dead letter file, may be shared by several services, or null to discard rejected payloads
+     */
+    public void setDeadLetters(DeadLetterFile deadLetters) {
+        errors.setDeadLetters(deadLetters);
+    }
+
+    public ValidationMode getValidationMode() {
+        return validationMode;
+    }
+
+    /**
+     * Set how received messages are validated against the message schema.
+     * @param validationMode validation mode
+     */
+    public void setValidationMode(ValidationMode validationMode) {
+        this.validationMode = validationMode;
+        if(validationMode == ValidationMode.STRICT && !decoderMatchesSchema){
+            logger.warn("Message decoder was not written for the deployed message schema. Every message is evaluated against the schema.");
+        }
+    }
+
+    public void onValidMessageReceived(BiConsumer<KpiBatch, Acknowledgement> listener, KpiBatch kpis, Acknowledgement ack){
+        listener.accept(kpis, ack);
     }
 
     @Override
@@ -109,34 +306,74 @@ public class MqttService implements MqttCallback {
 
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
-        logger.debug("Received message of topic {}", topic);
-/*        JsonNode msg = null;
-
-        try {
-            msg = new ObjectMapper().readTree(message.getPayload());
-        } catch (IOException e){
-            logger.warn("Received message could not be parsed as JSON. Message is ignored.");
+        if(!consuming && keepsSubscriptionWhenStopped()){
+            // not acknowledged, so the broker sends it again once the session is resumed
+            logger.debug("Holding back message of topic {} as consuming has stopped", topic);
             return;
         }
-        var validation = Validator.isMsgValid(msg);
-        if(!validation.isValid()) {
-            logger.warn(validation.getErrMsg());
+        var ack = acknowledgementOf(message);
+        var listener = router == null ? onValidMessageListener : router.route(topic);
+        if(listener == null){
+            logger.debug("Ignoring message of topic {}", topic);
+            Metrics.MESSAGES_IGNORED.increment();
+            if(ack != null) ack.acknowledge();
             return;
         }
-        System.out.println("parsed");*/
-        // now we know the type of the message; No need to catch DatabindException as validator ensures message has the right format
-        KpiMsg kpiMsg;
-        try {
-            kpiMsg = jsonMapper.readValue(message.getPayload(), KpiMsg.class);
-        } catch (DatabindException e){
-            logger.warn("Received message does not conform to required structure.", e);
-            return;
-        } catch (IOException e){
-            logger.warn("Could not parse message for topic {}", topic, e);
+        logger.debug("Received message of topic {}", topic);
+        Metrics.MESSAGES_RECEIVED.increment(topic);
+        var payload = message.getPayload();
+        rows.clear();
+        var decoded = decoder.decode(payload, rows);
+        if(requiresSchemaEvaluation(decoded)){
+            var validation = Validator.isMsgValid(payload);
+            if(!validation.isValid()){
+                errors.reject(topic, "SCHEMA", validation.getErrMsg(), payload);
+                // invalid messages are acknowledged as well, receiving them again would not make them valid
+                if(ack != null) ack.acknowledge();
+                return;
+            }
+        }
+        if(!decoded){
+            errors.reject(topic, decoder.getViolation().name(), decoder.getViolation().getDescription(), payload);
+            if(ack != null) ack.acknowledge();
             return;
         }
-        logger.debug("Parsed message: {}", kpiMsg.toString());
-        onValidMessageListener.accept(kpiMsg);
+        logger.debug("Decoded {} KPIs", rows.size());
+        listener.accept(rows, ack);
+    }
+
+    /**
+     * Create the acknowledgement of a message.
+     * @param message received message
+     * @return acknowledgement or null if the message is not acknowledged manually (QoS 0)
+     */
+    private Acknowledgement acknowledgementOf(MqttMessage message){
+        if(qos == 0 || message.getQos() == 0) return null;
+        var c = client;
+        var id = message.getId();
+        var messageQos = message.getQos();
+        return () -> {
+            try {
+                c.messageArrivedComplete(id, messageQos);
+            } catch (MqttException e) {
+                // the broker sends the message again as it is not acknowledged
+                errors.error("ACKNOWLEDGE", "Could not acknowledge message %d!".formatted(id), e);
+            }
+        };
+    }
+
+    /**
+     * Check whether a message has to be evaluated against the full schema.
+     * @param decoded whether the decoder accepted the message
+     * @return true if the schema has to be evaluated
+     */
+    private boolean requiresSchemaEvaluation(boolean decoded){
+        return switch (validationMode) {
+            case OFF -> false;
+            // fast path: the decoder already proved the message valid
+            case STRICT -> !decoded || !decoderMatchesSchema;
+            case FULL -> true;
+        };
     }
 
     @Override
@@ -146,12 +383,70 @@ public class MqttService implements MqttCallback {
 
     @Override
     public void connectComplete(boolean reconnect, String serverURI) {
-        if(reconnect) logger.info("Successfully reconnected to {}", serverURI);
-        else logger.info("Successfully connected to {}", serverURI);
+        if(!reconnect){
+            logger.info("Successfully connected to {}", serverURI);
+            return;
+        }
+        logger.info("Successfully reconnected to {}", serverURI);
+        Metrics.MQTT_RECONNECTS.increment();
+        if(!consuming && !keepsSubscriptionWhenStopped()) return;
+        // the broker may not have kept the session (clean start with QoS 0, expired or lost session otherwise), so subscriptions are renewed.
+        // Subscribe in a separate thread as the callback must not block.
+        Thread.ofVirtual().name("mqtt-resubscribe").start(() -> {
+            try {
+                subscribe();
+            } catch (MqttException e) {
+                logger.error("Could not renew subscriptions {} after reconnect!", Arrays.toString(getSubscriptionFilters()), e);
+            }
+        });
     }
 
     @Override
     public void authPacketArrived(int reasonCode, MqttProperties properties) {
 
     }
+
+    /**
+     * Stop handing new messages to the listener, e.g. before shutting down, while the connection stays open so that messages
+     * which were handed to the listener already can still be acknowledged.
+     * If messages are acknowledged manually without a shared subscription, the subscriptions are kept in the session so that the broker
+     * stores messages until the connector is back, and messages received from now on are not acknowledged and therefore sent again.
+     * Otherwise all topic filters are unsubscribed, so the broker sends messages to the other members of the shared subscription group
+     * or stops sending them. Messages already on their way are still handed to the listener.
+     */
+    public void stopConsuming(){
+        consuming = false;
+        if(client == null || !client.isConnected() || keepsSubscriptionWhenStopped()) return;
+        try {
+            client.unsubscribe(getSubscriptionFilters()).waitForCompletion(DISCONNECT_TIMEOUT_MS);
+            logger.info("{} unsubscribed from {}", clientId, Arrays.toString(getSubscriptionFilters()));
+        } catch (MqttException e) {
+            logger.warn("Could not unsubscribe {} from {}", clientId, Arrays.toString(getSubscriptionFilters()), e);
+        }
+    }
+
+    /**
+     * Check whether subscriptions are kept in the session when consuming stops. This is the case if messages are acknowledged manually
+     * and no shared subscription is used, as only then the broker stores messages for this client until it reconnects.
+     * @return true if subscriptions are kept
+     */
+    private boolean keepsSubscriptionWhenStopped(){
+        return qos > 0 && sharedGroup == null;
+    }
+
+    /**
+     * Disconnect from the message broker and stop all threads of the client.
+     * Messages which were received but not acknowledged yet are sent again by the broker, as the session is kept if messages are acknowledged manually.
+     */
+    @Override
+    public void close(){
+        if(client == null) return;
+        try {
+            if(client.isConnected()) client.disconnect().waitForCompletion(DISCONNECT_TIMEOUT_MS);
+            client.close();
+        } catch (MqttException e) {
+            logger.warn("Could not disconnect {} from {}", clientId, msgBrokerUrl, e);
+        }
+        clientExecutor.shutdownNow();
+    }
 }
@@ -0,0 +1,274 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages the partitions of a table range-partitioned by the timestamp of KPIs.
+ * Partitions for the current and the next time ranges are created ahead of time in the background, so creating a partition
+ * (which locks the parent table) rarely happens while KPIs are written. Partitions of late KPIs are created on demand within a limited number of past time ranges.
+ * If all rows of a batch fall into the same time range, writers insert them into the partition directly instead of the parent table,
+ * which saves PostgreSQL routing every single row.
+ * KPIs whose partition could not be created are inserted into the parent table and end up in its DEFAULT partition, which is created if it does not exist.
+ * Once the DEFAULT partition holds KPIs of a time range, the partition of this range cannot be created any more, its KPIs keep going to the DEFAULT partition.
+ * Shared by all writers.
+ * @author Thomas Pilz
+ */
+public class PartitionManager implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionManager.class);
+    /**
+     * Parent table of the denormalized schema. The parent table of the normalized schema is created by {@link DimensionTables}.
+     */
+    private static final String KPIS_DDL = "CREATE TABLE IF NOT EXISTS kpis (k_equipment text NOT NULL, k_timestamp timestamptz NOT NULL, "
+            + "k_name text NOT NULL, k_unit integer NOT NULL, k_value numeric NOT NULL) PARTITION BY RANGE (k_timestamp)";
+    /**
+     * Number of past time ranges whose partitions are remembered
+     */
+    private static final int RETAINED_RANGES = 48;
+    private final Partitioning partitioning;
+    private final int partitionsAhead;
+    private final int partitionsBehind;
+    private final String parentTable;
+    private final String columns;
+    private final String ddl;
+    private final DateTimeFormatter suffixFormat;
+    /**
+     * Partition (including its column list) by start of its time range for all partitions known to exist
+     */
+    private final Map<Long, String> partitions = new ConcurrentHashMap<>();
+    /**
+     * Start of all time ranges whose partition could not be created, e.g. because it overlaps a partition not created by the connector
+     * or the DEFAULT partition already holds KPIs of the range. KPIs of these ranges are inserted into the parent table.
+     */
+    private final Set<Long> unmanaged = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock createLock = new ReentrantLock();
+    private volatile boolean ready = false;
+    /**
+     * False if the parent table exists but is not partitioned
+     */
+    private volatile boolean enabled = true;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create a partition manager.
+     * @param partitioning length of the time range of a partition, must not be {@link Partitioning#NONE}
+     * @param partitionsAhead number of partitions following the current one which are created ahead of time
+     * @param partitionsBehind number of partitions preceding the current one which are created on demand for late KPIs
+     * @param normalized true to partition the kpi_values table of the normalized schema, false to partition the kpis table
+     */
+    public PartitionManager(Partitioning partitioning, int partitionsAhead, int partitionsBehind, boolean normalized) {
+        if (partitioning == Partitioning.NONE) throw new IllegalArgumentException("Partitioning NONE needs no partition manager!");
+        this.partitioning = partitioning;
+        this.partitionsAhead = partitionsAhead;
+        this.partitionsBehind = partitionsBehind;
+        var table = normalized ? DimensionTables.FACT_TABLE : "kpis (k_equipment,k_timestamp,k_name,k_unit,k_value)";
+        this.parentTable = table.substring(0, table.indexOf(' '));
+        this.columns = table.substring(table.indexOf(' '));
+        this.ddl = normalized ? null : KPIS_DDL;
+        this.suffixFormat = DateTimeFormatter.ofPattern(partitioning.getNamePattern()).withZone(ZoneOffset.UTC);
+    }
+
+    /**
+     * Create the partitions ahead of time in the background using connections of the given database service.
+     * @param db database service
+     */
+    public void start(DatabaseService db) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("partition-manager").factory());
+        // check four times per time range, so a partition is created ahead of time even if some attempts fail
+        var period = partitioning.getIntervalMs() / 4;
+        scheduler.scheduleAtFixedRate(() -> createAhead(db), 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void createAhead(DatabaseService db) {
+        if (!db.isAvailable()) return;
+        try {
+            var con = db.getConnection();
+            try {
+                if (!ensureReady(con)) return;
+                var current = rangeOf(System.currentTimeMillis());
+                // forget old partitions, they are looked up again if late KPIs arrive
+                partitions.keySet().removeIf(range -> range < current - RETAINED_RANGES * partitioning.getIntervalMs());
+                for (var i = 0; i <= partitionsAhead; i++) ensurePartition(con, current + i * partitioning.getIntervalMs());
+            } finally {
+                db.releaseConnection(con);
+            }
+        } catch (SQLException e) {
+            logger.warn("Could not create partitions of table {} ahead of time: {}", parentTable, e.getMessage());
+        }
+    }
+
+    /**
+     * Create the parent table if it does not exist and check that it is partitioned, unless this has been done already.
+     * @param con database connection with auto-commit disabled and no pending changes
+     * @return true if partitions can be created, false if the parent table does not exist yet or is not partitioned
+     * @throws SQLException if the parent table cannot be created or read
+     */
+    public boolean ensureReady(Connection con) throws SQLException {
+        if (ready) return enabled;
+        createLock.lock();
+        try {
+            if (ready) return enabled;
+            if (ddl != null) {
+                try (var stmnt = con.createStatement()) {
+                    stmnt.execute(ddl);
+                }
+            }
+            String kind;
+            try (var stmnt = con.prepareStatement("SELECT relkind FROM pg_class WHERE oid = to_regclass(?)")) {
+                stmnt.setString(1, parentTable);
+                try (var rs = stmnt.executeQuery()) {
+                    kind = rs.next() ? rs.getString(1) : null;
+                }
+            }
+            con.commit();
+            // the parent table of the normalized schema is created once the dimension tables are ready
+            if (kind == null) return false;
+            enabled = kind.equals("p");
+            if (enabled) createDefaultPartition(con);
+            ready = true;
+            if (enabled) logger.info("Managing {} partitions of table {}", partitioning, parentTable);
+            else logger.warn("Table {} is not partitioned! KPIs are written to it without creating partitions.", parentTable);
+            return enabled;
+        } finally {
+            createLock.unlock();
+        }
+    }
+
+    /**
+     * Create the DEFAULT partition of the parent table unless it has one, so that KPIs inserted into the parent table
+     * whose time range has no partition are not rejected.
+     * @param con database connection with auto-commit disabled and no pending changes
+     * @throws SQLException if the connection is lost
+     */
+    private void createDefaultPartition(Connection con) throws SQLException {
+        try (var stmnt = con.prepareStatement("SELECT 1 FROM pg_partitioned_table WHERE partrelid = to_regclass(?) AND partdefid <> 0")) {
+            stmnt.setString(1, parentTable);
+            try (var rs = stmnt.executeQuery()) {
+                if (rs.next()) {
+                    con.commit();
+                    return;
+                }
+            }
+        }
+        try (var stmnt = con.createStatement()) {
+            stmnt.execute("CREATE TABLE IF NOT EXISTS %s_default PARTITION OF %s DEFAULT".formatted(parentTable, parentTable));
+            con.commit();
+            logger.info("Created default partition {}_default of table {}", parentTable, parentTable);
+        } catch (SQLException e) {
+            con.rollback();
+            var sqlState = e.getSQLState();
+            if (sqlState != null && sqlState.startsWith("08")) throw e;
+            logger.warn("Could not create default partition of table {}! KPIs without partition are rejected: {}", parentTable, e.getMessage());
+        }
+    }
+
+    /**
+     * Get the partition all rows of a batch are inserted into and create the partitions of all rows if they do not exist yet.
+     * Partitions are only created from {@code partitionsBehind} time ranges before to {@code partitionsAhead} time ranges after the current one,
+     * rows outside are inserted into the parent table without creating a partition.
+     * Must be called while no changes are pending on the connection, as partitions are created in transactions of their own.
+     * @param con database connection with auto-commit disabled
+     * @param kpis KPI rows
+     * @return partition including its column list if all rows fall into the same managed time range,
+     * null if the rows have to be inserted into the parent table
+     * @throws SQLException if the connection is lost
+     */
+    public String partitionOf(Connection con, KpiBatch kpis) throws SQLException {
+        if (kpis.isEmpty() || !ensureReady(con)) return null;
+        // timestamps are set by the devices, so partitions are only created close to the current time range. Otherwise a device with a wrong clock
+        // could create any number of partitions, each locking the parent table.
+        var current = rangeOf(System.currentTimeMillis());
+        var first = current - partitionsBehind * partitioning.getIntervalMs();
+        var last = current + partitionsAhead * partitioning.getIntervalMs();
+        var range = rangeOf(kpis.getTimestamp(0));
+        var single = true;
+        var previous = Long.MIN_VALUE;
+        for (var i = 0; i < kpis.size(); i++) {
+            var r = rangeOf(kpis.getTimestamp(i));
+            if (r == previous) continue;
+            if (r >= first && r <= last) ensurePartition(con, r);
+            single &= r == range;
+            previous = r;
+        }
+        return single ? partitions.get(range) : null;
+    }
+
+    /**
+     * Get the start of the time range a timestamp falls into.
+     * @param unixTimestamp milliseconds since the Unix epoch
+     * @return start of time range in milliseconds since the Unix epoch
+     */
+    private long rangeOf(long unixTimestamp) {
+        return Math.floorDiv(unixTimestamp, partitioning.getIntervalMs()) * partitioning.getIntervalMs();
+    }
+
+    /**
+     * Create the partition of a time range unless it is known to exist.
+     * @param con database connection with auto-commit disabled and no pending changes
+     * @param range start of time range
+     * @throws SQLException if the connection is lost
+     */
+    private void ensurePartition(Connection con, long range) throws SQLException {
+        if (partitions.containsKey(range) || unmanaged.contains(range)) return;
+        // a lock instead of a monitor, so that a writer running on a virtual thread does not pin its carrier while waiting for the database
+        createLock.lock();
+        try {
+            if (partitions.containsKey(range) || unmanaged.contains(range)) return;
+            var name = "%s_p%s".formatted(parentTable, suffixFormat.format(Instant.ofEpochMilli(range)));
+            try (var stmnt = con.createStatement()) {
+                stmnt.execute("CREATE TABLE IF NOT EXISTS %s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')".formatted(
+                        name, parentTable, Instant.ofEpochMilli(range), Instant.ofEpochMilli(range + partitioning.getIntervalMs())));
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                var sqlState = e.getSQLState();
+                if (sqlState != null && sqlState.startsWith("08")) throw e;
+                logger.warn("Could not create partition {} of table {}! KPIs of this time range are written to the parent table: {}", name, parentTable, e.getMessage());
+                unmanaged.add(range);
+                return;
+            }
+            partitions.put(range, name + columns);
+            logger.debug("Created partition {} of table {}", name, parentTable);
+        } finally {
+            createLock.unlock();
+        }
+    }
+
+    /**
+     * Stop creating partitions ahead of time.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,59 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Partitioning of the table KPIs are written to by ranges of their timestamp.
+ * @author Thomas Pilz
+ */
+public enum Partitioning {
+    /**
+     * KPIs are written to a single table which is not managed by the connector.
+     */
+    NONE(0, null),
+    /**
+     * One partition per day (UTC).
+     */
+    DAILY(86_400_000L, "yyyyMMdd"),
+    /**
+     * One partition per hour (UTC).
+     */
+    HOURLY(3_600_000L, "yyyyMMddHH");
+
+    private final long intervalMs;
+    private final String namePattern;
+
+    Partitioning(long intervalMs, String namePattern) {
+        this.intervalMs = intervalMs;
+        this.namePattern = namePattern;
+    }
+
+    /**
+     * Get the length of the time range of a partition.
+     * @return length in milliseconds
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Get the pattern of the suffix naming a partition after the start of its time range.
+     * @return {@link java.time.format.DateTimeFormatter} pattern
+     */
+    public String getNamePattern() {
+        return namePattern;
+    }
+}
@@ -0,0 +1,133 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.ErrorReporter;
+import de.othr.database_connector.ingest.RollupBatch;
+import de.othr.database_connector.ingest.RollupInterval;
+import de.othr.database_connector.ingest.RollupSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.EnumSet;
+
+/**
+ * Writes window aggregates of {@link de.othr.database_connector.ingest.Rollups} to the rollup table of their interval, e.g. kpis_1m.
+ * Rollup tables are created if they do not exist. Every window is upserted, so a window written before (by this or another connector instance
+ * or because KPIs arrived late) is merged with the new aggregates. The average of a window is {@code r_sum / r_count}.
+ * Equipment numbers and KPI names are stored as text independent of the schema mode, as rollup tables are small.
+ * @author Thomas Pilz
+ */
+public class RollupWriter implements RollupSink {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollupWriter.class);
+    private static final ErrorReporter errors = new ErrorReporter(logger);
+    private static final String DDL = "CREATE TABLE IF NOT EXISTS %s (r_equipment text NOT NULL, r_name text NOT NULL, r_unit integer NOT NULL, "
+            + "r_window timestamptz NOT NULL, r_count bigint NOT NULL, r_sum numeric NOT NULL, r_min numeric NOT NULL, r_max numeric NOT NULL, "
+            + "r_last numeric NOT NULL, r_last_timestamp timestamptz NOT NULL, PRIMARY KEY (r_equipment, r_name, r_unit, r_window))";
+    private static final String UPSERT = "INSERT INTO %s AS r (r_equipment,r_name,r_unit,r_window,r_count,r_sum,r_min,r_max,r_last,r_last_timestamp) "
+            + "VALUES (?,?,?,?,?,?,?,?,?,?) ON CONFLICT (r_equipment, r_name, r_unit, r_window) DO UPDATE SET "
+            + "r_count = r.r_count + EXCLUDED.r_count, r_sum = r.r_sum + EXCLUDED.r_sum, "
+            + "r_min = LEAST(r.r_min, EXCLUDED.r_min), r_max = GREATEST(r.r_max, EXCLUDED.r_max), "
+            + "r_last = CASE WHEN EXCLUDED.r_last_timestamp >= r.r_last_timestamp THEN EXCLUDED.r_last ELSE r.r_last END, "
+            + "r_last_timestamp = GREATEST(r.r_last_timestamp, EXCLUDED.r_last_timestamp)";
+    /**
+     * Number of rows sent to the database at once
+     */
+    private static final int CHUNK_SIZE = 1000;
+    private final DatabaseService db;
+    /**
+     * Intervals whose table has been created. Only accessed by the flushing thread of the rollups.
+     */
+    private final EnumSet<RollupInterval> created = EnumSet.noneOf(RollupInterval.class);
+
+    /**
+     * Create a new rollup writer.
+     * @param db database service connections are taken from
+     */
+    public RollupWriter(DatabaseService db) {
+        this.db = db;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return db.isAvailable();
+    }
+
+    @Override
+    public boolean write(RollupInterval interval, RollupBatch windows) {
+        Connection con;
+        try {
+            con = db.getConnection();
+        } catch (SQLException e) {
+            logger.warn("Cannot connect to database to write rollups: {}", e.getMessage());
+            db.connectionLost();
+            return false;
+        }
+        try {
+            if (!created.contains(interval)) {
+                try (var stmnt = con.createStatement()) {
+                    stmnt.execute(DDL.formatted(interval.getTable()));
+                }
+                con.commit();
+                created.add(interval);
+            }
+            try (var stmnt = con.prepareStatement(UPSERT.formatted(interval.getTable()))) {
+                for (var i = 0; i < windows.size(); i++) {
+                    stmnt.setString(1, windows.getEquipment(i));
+                    stmnt.setString(2, windows.getName(i));
+                    stmnt.setInt(3, windows.getUnitId(i));
+                    stmnt.setTimestamp(4, new Timestamp(windows.getWindow(i)));
+                    stmnt.setLong(5, windows.getCount(i));
+                    stmnt.setBigDecimal(6, RollupBatch.toDecimal(windows.getScaledSum(i)));
+                    stmnt.setBigDecimal(7, RollupBatch.toDecimal(windows.getScaledMin(i)));
+                    stmnt.setBigDecimal(8, RollupBatch.toDecimal(windows.getScaledMax(i)));
+                    stmnt.setBigDecimal(9, RollupBatch.toDecimal(windows.getScaledLast(i)));
+                    stmnt.setTimestamp(10, new Timestamp(windows.getLastTimestamp(i)));
+                    stmnt.addBatch();
+                    if ((i + 1) % CHUNK_SIZE == 0) stmnt.executeBatch();
+                }
+                stmnt.executeBatch();
+            }
+            con.commit();
+            return true;
+        } catch (SQLException e) {
+            rollback(con);
+            var sqlState = e.getSQLState();
+            if (sqlState != null && sqlState.startsWith("08")) {
+                logger.warn("Lost connection to database! {} windows of {} are retried once the database is reachable again.", windows.size(), interval.getTable());
+                db.connectionLost();
+                return false;
+            }
+            errors.error("ROLLUP", "Could not write %d windows to %s! Windows are dropped.".formatted(windows.size(), interval.getTable()),
+                    e.getNextException() != null ? e.getNextException() : e);
+            return true;
+        } finally {
+            db.releaseConnection(con);
+        }
+    }
+
+    private void rollback(Connection con) {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            logger.warn("Could not roll back transaction!", e);
+        }
+    }
+}
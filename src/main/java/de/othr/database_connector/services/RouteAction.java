@@ -0,0 +1,35 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * What happens to messages of a topic matched by a {@link TopicRoute}.
+ * @author Thomas Pilz
+ */
+public enum RouteAction {
+    /**
+     * KPIs are written to the kpis table (or the kpi_values table of the normalized schema).
+     */
+    INGEST,
+    /**
+     * Messages are dropped without reading their payload.
+     */
+    IGNORE,
+    /**
+     * KPIs are written to the table given by the route, which has the columns of the kpis table.
+     */
+    TABLE
+}
@@ -0,0 +1,32 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+/**
+ * Layout of the tables KPIs are written to.
+ * @author Thomas Pilz
+ */
+public enum SchemaMode {
+    /**
+     * Every row of the kpis table contains equipment number and KPI name as text.
+     */
+    DENORMALIZED,
+    /**
+     * Equipment numbers and KPI names are stored once in the dimension tables equipment and kpi_name.
+     * Rows of the kpi_values table only reference them by integer ID.
+     */
+    NORMALIZED
+}
@@ -0,0 +1,68 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.regex.Pattern;
+
+/**
+ * Rule mapping the topics matched by an MQTT topic filter to a {@link RouteAction}.
+ * Written as {@code <filter>=<action>} or {@code <filter>=TABLE:<table>}, e.g. {@code kpis/#=INGEST} or {@code legacy/+/kpis=TABLE:legacy_kpis}.
+ * @param filter MQTT topic filter, may contain wildcards
+ * @param action what to do with messages of matching topics
+ * @param table table KPIs are written to if the action is {@link RouteAction#TABLE}, otherwise null
+ * @author Thomas Pilz
+ */
+public record TopicRoute(String filter, RouteAction action, String table) {
+
+    /**
+     * Optionally schema-qualified table name, only plain identifiers to rule out SQL injection
+     */
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
+    public TopicRoute {
+        TopicRouter.validateFilter(filter);
+        if ((action == RouteAction.TABLE) != (table != null)) throw new IllegalArgumentException("Only action TABLE requires a table!");
+        if (table != null && !TABLE_NAME.matcher(table).matches()) throw new IllegalArgumentException("Invalid table name '%s'!".formatted(table));
+    }
+
+    /**
+     * Parse a route written as {@code <filter>=<action>} or {@code <filter>=TABLE:<table>}.
+     * @param route route
+     * @return parsed route
+     * @throws IllegalArgumentException if the route is malformed
+     */
+    public static TopicRoute parse(String route) {
+        var separator = route.lastIndexOf('=');
+        if (separator < 0) throw new IllegalArgumentException("Route '%s' must be of the form <filter>=<action>!".formatted(route));
+        var filter = route.substring(0, separator).trim();
+        var target = route.substring(separator + 1).trim();
+        var tableSeparator = target.indexOf(':');
+        var actionName = (tableSeparator < 0 ? target : target.substring(0, tableSeparator)).trim();
+        RouteAction action;
+        try {
+            action = RouteAction.valueOf(actionName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown action '%s' of route '%s'! Must be INGEST, IGNORE or TABLE:<table>.".formatted(actionName, route));
+        }
+        var table = tableSeparator < 0 ? null : target.substring(tableSeparator + 1).trim();
+        return new TopicRoute(filter, action, table);
+    }
+
+    @Override
+    public String toString() {
+        return table == null ? "%s=%s".formatted(filter, action) : "%s=%s:%s".formatted(filter, action, table);
+    }
+}
@@ -0,0 +1,139 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps topics to targets using MQTT topic filters compiled into a trie of topic levels.
+ * Matching a topic walks the trie level by level without allocating, so messages of topics nobody is interested in
+ * can be dropped before their payload is touched. If several filters match a topic the one added first wins.
+ * Wildcards follow the MQTT rules: {@code +} matches exactly one level, {@code #} matches any number of levels including none
+ * and topics starting with {@code $} are not matched by a wildcard in the first level.
+ * Filters are added once while setting up, matching is thread-safe afterwards.
+ * @param <T> type of target
+ * @author Thomas Pilz
+ */
+public class TopicRouter<T> {
+
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private static final class Node {
+        String[] levels = new String[0];
+        Node[] children = new Node[0];
+        Node plus;
+        /**
+         * Index of the first filter ending at this node
+         */
+        int rule = NO_MATCH;
+        /**
+         * Index of the first filter ending with {@code #} after this node
+         */
+        int hashRule = NO_MATCH;
+
+        Node child(String level) {
+            for (var i = 0; i < levels.length; i++) {
+                if (levels[i].equals(level)) return children[i];
+            }
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            levels[levels.length - 1] = level;
+            return children[children.length - 1] = new Node();
+        }
+    }
+
+    private final Node root = new Node();
+    private final List<T> targets = new ArrayList<>();
+
+    /**
+     * Add a topic filter. Filters added earlier take precedence.
+     * @param filter MQTT topic filter, may contain wildcards
+     * @param target target of topics matched by the filter, may be null
+     * @throws IllegalArgumentException if the filter is not a valid MQTT topic filter
+     */
+    public void add(String filter, T target) {
+        validateFilter(filter);
+        var rule = targets.size();
+        targets.add(target);
+        var node = root;
+        for (var level : filter.split("/", -1)) {
+            if (level.equals("#")) {
+                node.hashRule = Math.min(node.hashRule, rule);
+                return;
+            }
+            if (level.equals("+")) {
+                if (node.plus == null) node.plus = new Node();
+                node = node.plus;
+            } else {
+                node = node.child(level);
+            }
+        }
+        node.rule = Math.min(node.rule, rule);
+    }
+
+    /**
+     * Check that a topic filter is valid: not empty, {@code #} only as the last level and wildcards only as a whole level.
+     * @param filter MQTT topic filter
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    static void validateFilter(String filter) {
+        if (filter == null || filter.isEmpty()) throw new IllegalArgumentException("Topic filter must not be empty!");
+        var levels = filter.split("/", -1);
+        for (var i = 0; i < levels.length; i++) {
+            var level = levels[i];
+            if (level.equals("#") && i < levels.length - 1) throw new IllegalArgumentException("'#' must be the last level of topic filter '%s'!".formatted(filter));
+            if (level.length() > 1 && (level.contains("#") || level.contains("+"))) {
+                throw new IllegalArgumentException("Wildcards must occupy a whole level of topic filter '%s'!".formatted(filter));
+            }
+        }
+    }
+
+    /**
+     * Get the target of the first filter matching a topic.
+     * @param topic topic of a message, must not contain wildcards
+     * @return target or null if no filter matches the topic or its target is null
+     */
+    public T route(String topic) {
+        var rule = match(root, topic, 0, !topic.startsWith("$"));
+        return rule == NO_MATCH ? null : targets.get(rule);
+    }
+
+    /**
+     * Find the first filter matching the levels of the topic from the given index on.
+     * @param node node of the previous level
+     * @param topic topic
+     * @param from index of the first char of the current level or topic length + 1 if all levels have been matched
+     * @param wildcards whether wildcards may match the current level
+     * @return index of the first matching filter or {@link #NO_MATCH}
+     */
+    private int match(Node node, String topic, int from, boolean wildcards) {
+        var best = wildcards ? node.hashRule : NO_MATCH;
+        if (from > topic.length()) return Math.min(best, node.rule);
+        var end = topic.indexOf('/', from);
+        if (end < 0) end = topic.length();
+        var length = end - from;
+        for (var i = 0; i < node.levels.length; i++) {
+            var level = node.levels[i];
+            if (level.length() == length && topic.regionMatches(from, level, 0, length)) {
+                best = Math.min(best, match(node.children[i], topic, end + 1, true));
+            }
+        }
+        if (wildcards && node.plus != null) best = Math.min(best, match(node.plus, topic, end + 1, true));
+        return best;
+    }
+}
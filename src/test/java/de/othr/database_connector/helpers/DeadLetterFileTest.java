@@ -0,0 +1,76 @@
+package de.othr.database_connector.helpers;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeadLetterFileTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rotatesOnceHalfOfMaximumSizeIsReached() throws IOException {
+        var file = dir.resolve("dead-letters.jsonl");
+        try (var deadLetters = new DeadLetterFile(file, 1000)) {
+            for (var i = 0; i < 10; i++) assertTrue(deadLetters.write("kpis/" + i, "SCHEMA", "invalid", "{}".getBytes(StandardCharsets.UTF_8)));
+        }
+        assertTrue(Files.exists(dir.resolve("dead-letters.jsonl.1")));
+        assertTrue(Files.size(file) <= 500);
+        assertTrue(Files.size(dir.resolve("dead-letters.jsonl.1")) <= 500);
+    }
+
+    @Test
+    void appendsToFileIfItCannotBeRotated() throws IOException {
+        var file = dir.resolve("dead-letters.jsonl");
+        // a non-empty directory cannot be replaced by the file
+        Files.createDirectories(dir.resolve("dead-letters.jsonl.1"));
+        Files.writeString(dir.resolve("dead-letters.jsonl.1").resolve("blocker"), "");
+        try (var deadLetters = new DeadLetterFile(file, 1000)) {
+            for (var i = 0; i < 10; i++) assertTrue(deadLetters.write("kpis/" + i, "SCHEMA", "invalid", "{}".getBytes(StandardCharsets.UTF_8)));
+        }
+        var lines = Files.readAllLines(file);
+        assertEquals(10, lines.size());
+        assertTrue(lines.get(9).contains("\"topic\":\"kpis/9\""));
+    }
+
+    @Test
+    void reopensFileAfterItCouldNotBeWritten() throws IOException {
+        var file = dir.resolve("dead-letters.jsonl");
+        try (var deadLetters = new DeadLetterFile(file, 1000)) {
+            assertTrue(deadLetters.write("kpis/1", "SCHEMA", "invalid", new byte[0]));
+            // the rotated file cannot be replaced and the file cannot be created again while its path is a directory
+            Files.createDirectories(dir.resolve("dead-letters.jsonl.1").resolve("blocker"));
+            Files.delete(file);
+            Files.createDirectories(file.resolve("blocker"));
+            assertFalse(deadLetters.write("kpis/2", "SCHEMA", "invalid", new byte[250]));
+            Files.delete(file.resolve("blocker"));
+            Files.delete(file);
+            assertTrue(deadLetters.write("kpis/3", "SCHEMA", "invalid", new byte[0]));
+        }
+        var lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"topic\":\"kpis/3\""));
+    }
+}
@@ -0,0 +1,100 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompressorTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+    private static final long HEARTBEAT_MS = 3_600_000;
+
+    private static Compressor compressor(String... rules) {
+        return new Compressor(Arrays.stream(rules).map(CompressionRule::parse).toList(), HEARTBEAT_MS, 1 << 20);
+    }
+
+    /**
+     * Compress a single KPI.
+     * @return the row written in its place (timestamp offset in seconds and scaled value) or null if it was dropped
+     */
+    private static long[] compress(Compressor compressor, String equipment, String name, int unitId, long seconds, long scaledValue) {
+        var rows = new KpiBatch(1);
+        rows.add(KpiDictionary.EQUIPMENT.idOf(equipment), T0 + seconds * 1000, KpiDictionary.NAMES.idOf(name), unitId, scaledValue);
+        compressor.filter(rows);
+        return rows.isEmpty() ? null : new long[]{(rows.getTimestamp(0) - T0) / 1000, rows.getScaledValue(0)};
+    }
+
+    @Test
+    void deadbandDropsValuesWithinDeviationOfLastWrittenValue() {
+        var compressor = compressor("temperature*=DEADBAND:0.5");
+        assertArrayEquals(new long[]{0, 2000}, compress(compressor, "compr-0001", "temperature", 1, 0, 2000));
+        // exactly on the boundary
+        assertNull(compress(compressor, "compr-0001", "temperature", 1, 1, 2050));
+        assertNull(compress(compressor, "compr-0001", "temperature", 1, 2, 1950));
+        assertArrayEquals(new long[]{3, 2051}, compress(compressor, "compr-0001", "temperature", 1, 3, 2051));
+        // the deviation is relative to the last written value, not to the last received one
+        assertNull(compress(compressor, "compr-0001", "temperature", 1, 4, 2001));
+        assertArrayEquals(new long[]{5, 2000}, compress(compressor, "compr-0001", "temperature", 1, 5, 2000));
+        // a new unit and the heartbeat are always written
+        assertArrayEquals(new long[]{6, 2000}, compress(compressor, "compr-0001", "temperature", 2, 6, 2000));
+        assertArrayEquals(new long[]{3606, 2000}, compress(compressor, "compr-0001", "temperature", 2, 3606, 2000));
+        // names without rule are not compressed
+        assertArrayEquals(new long[]{7, 2000}, compress(compressor, "compr-0001", "pressure", 1, 7, 2000));
+        assertArrayEquals(new long[]{8, 2000}, compress(compressor, "compr-0001", "pressure", 1, 8, 2000));
+    }
+
+    @Test
+    void deadbandInPercentOfLastWrittenValue() {
+        var compressor = compressor("speed=DEADBAND:10%");
+        assertNotNull(compress(compressor, "compr-0002", "speed", 1, 0, 10000));
+        assertNull(compress(compressor, "compr-0002", "speed", 1, 1, 11000));
+        assertNull(compress(compressor, "compr-0002", "speed", 1, 2, 9000));
+        assertNotNull(compress(compressor, "compr-0002", "speed", 1, 3, 11001));
+    }
+
+    @Test
+    void swingingDoorKeepsPointsOnTheDoorBoundary() {
+        var compressor = compressor("level=SWINGING_DOOR:1");
+        assertArrayEquals(new long[]{0, 0}, compress(compressor, "compr-0003", "level", 1, 0, 0));
+        assertNull(compress(compressor, "compr-0003", "level", 1, 1, 0));
+        // narrows the door to slopes of -1 to 1 per 20 s
+        assertNull(compress(compressor, "compr-0003", "level", 1, 2, 0));
+        // slope 1.5 per 30 s lies exactly on the upper edge of the door
+        assertNull(compress(compressor, "compr-0003", "level", 1, 3, 150));
+        // outside the door, so the previous KPI is written in place of this one
+        assertArrayEquals(new long[]{3, 150}, compress(compressor, "compr-0003", "level", 1, 4, 250));
+    }
+
+    @Test
+    void swingingDoorWritesCandidateOncePointLeavesTheDoor() {
+        var compressor = compressor("level=SWINGING_DOOR:1");
+        compress(compressor, "compr-0004", "level", 1, 0, 0);
+        compress(compressor, "compr-0004", "level", 1, 1, 0);
+        compress(compressor, "compr-0004", "level", 1, 2, 0);
+        // just above the upper edge of the door
+        assertArrayEquals(new long[]{2, 0}, compress(compressor, "compr-0004", "level", 1, 3, 151));
+        // the door starts again at the written KPI
+        assertNull(compress(compressor, "compr-0004", "level", 1, 4, 151));
+        // the heartbeat writes the candidate held back
+        assertArrayEquals(new long[]{4, 151}, compress(compressor, "compr-0004", "level", 1, 3602, 151));
+    }
+}
@@ -0,0 +1,74 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeduplicatorTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    /**
+     * Rows of one equipment, one per timestamp offset, all with the same KPI name
+     */
+    private static KpiBatch rows(String equipment, long... offsets) {
+        var rows = new KpiBatch(offsets.length);
+        for (var offset : offsets) {
+            rows.add(KpiDictionary.EQUIPMENT.idOf(equipment), T0 + offset, KpiDictionary.NAMES.idOf("temperature"), 1, offset);
+        }
+        return rows;
+    }
+
+    @Test
+    void dropsKpisReceivedBeforeAndWithinBatch() {
+        var deduplicator = new Deduplicator(60_000, 1 << 20);
+        assertEquals(0, deduplicator.filter(rows("dedup-0001", 0, 1000)));
+        var again = rows("dedup-0001", 1000, 2000, 2000, 0);
+        assertEquals(3, deduplicator.filter(again));
+        assertEquals(1, again.size());
+        assertEquals(T0 + 2000, again.getTimestamp(0));
+        // other equipment has its own window
+        assertEquals(0, deduplicator.filter(rows("dedup-0002", 0, 1000)));
+    }
+
+    @Test
+    void evictsKpisWhichLeftTheWindow() {
+        var deduplicator = new Deduplicator(10_000, 1 << 20);
+        deduplicator.filter(rows("dedup-0003", 0, 5000));
+        // moves the window to [1000, 11000], which evicts the KPI at 0 but keeps the one at 5000
+        deduplicator.filter(rows("dedup-0003", 11_000));
+        assertEquals(1, deduplicator.filter(rows("dedup-0003", 5000)));
+        // KPIs older than the window cannot be checked and are kept
+        var late = rows("dedup-0003", 0);
+        assertEquals(0, deduplicator.filter(late));
+        assertEquals(1, late.size());
+    }
+
+    @Test
+    void evictsOldestKpisOnceMemoryLimitIsReached() {
+        // enough for the initial 16 keys of one window, so the window cannot grow
+        var deduplicator = new Deduplicator(3_600_000, 16 * 3 * Long.BYTES);
+        for (var i = 0; i < 20; i++) deduplicator.filter(rows("dedup-0004", i * 1000L));
+        assertEquals(16 * 3 * Long.BYTES, deduplicator.getBytes());
+        // the first four keys were evicted to make room, the others are still remembered
+        assertEquals(0, deduplicator.filter(rows("dedup-0004", 3000)));
+        assertEquals(1, deduplicator.filter(rows("dedup-0004", 19_000)));
+    }
+}
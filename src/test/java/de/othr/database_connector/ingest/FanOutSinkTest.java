@@ -0,0 +1,107 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FanOutSinkTest {
+
+    /**
+     * Sink which records the sizes of the batches it takes and fails as often as it is told to
+     */
+    private static final class RecordingSink implements KpiSink {
+        final List<Integer> written = new ArrayList<>();
+        int failures = 0;
+        boolean throwing = false;
+
+        @Override
+        public String name() {
+            return "recording";
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return failures == 0;
+        }
+
+        @Override
+        public boolean write(KpiBatch batch) {
+            if (failures > 0) {
+                failures--;
+                if (throwing) throw new IllegalStateException("sink failed");
+                return false;
+            }
+            written.add(batch.size());
+            return true;
+        }
+    }
+
+    private static KpiBatch batch(int rows) {
+        var batch = new KpiBatch(rows);
+        for (var i = 0; i < rows; i++) batch.add(0, 1_700_000_000_000L + i, 0, 1, i);
+        return batch;
+    }
+
+    @Test
+    void skipsSinksWhichTookTheBatchWhenItIsRetried() {
+        var database = new RecordingSink();
+        var file = new RecordingSink();
+        var sink = new FanOutSink(List.of(database, file));
+        var batch = batch(3);
+        file.failures = 2;
+        assertFalse(sink.isAvailable());
+        assertFalse(sink.write(batch, false));
+        assertFalse(sink.write(batch, true));
+        assertTrue(sink.write(batch, true));
+        assertEquals(List.of(3), database.written);
+        assertEquals(List.of(3), file.written);
+        assertTrue(sink.isAvailable());
+    }
+
+    @Test
+    void skipsSinksWhichTookTheBatchWhenAnotherSinkThrew() {
+        var database = new RecordingSink();
+        var file = new RecordingSink();
+        var sink = new FanOutSink(List.of(database, file));
+        var batch = batch(3);
+        file.failures = 1;
+        file.throwing = true;
+        assertThrows(IllegalStateException.class, () -> sink.write(batch, false));
+        assertTrue(sink.write(batch, true));
+        assertEquals(List.of(3), database.written);
+        assertEquals(List.of(3), file.written);
+    }
+
+    @Test
+    void writesNewBatchToAllSinks() {
+        var database = new RecordingSink();
+        var file = new RecordingSink();
+        var sink = new FanOutSink(List.of(database, file));
+        file.failures = 1;
+        assertFalse(sink.write(batch(3), false));
+        // the failed batch was given up, e.g. dropped, so a batch with the same rows is new to every sink
+        assertTrue(sink.write(batch(3), false));
+        assertTrue(sink.write(batch(5), false));
+        assertEquals(List.of(3, 3, 5), database.written);
+        assertEquals(List.of(3, 5), file.written);
+    }
+}
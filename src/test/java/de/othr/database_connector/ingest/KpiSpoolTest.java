@@ -0,0 +1,128 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiSpoolTest {
+
+    /**
+     * Encoded size of a record written by {@link #row(long)}: header, row count, timestamp, equipment, name, unit and value
+     */
+    private static final int RECORD_BYTES = 8 + 4 + 8 + (2 + 10) + (2 + 11) + 4 + 8;
+
+    @TempDir
+    Path dir;
+
+    private static KpiBatch row(long value) {
+        var rows = new KpiBatch(1);
+        rows.add(KpiDictionary.EQUIPMENT.idOf("spool-0001"), 1_700_000_000_000L + value, KpiDictionary.NAMES.idOf("temperature"), 1, value);
+        return rows;
+    }
+
+    /**
+     * Read all rows which are available and return their values.
+     */
+    private static long[] readValues(KpiSpool spool) throws InterruptedException {
+        var rows = new KpiBatch(16);
+        spool.read(rows, Integer.MAX_VALUE, 0);
+        var values = new long[rows.size()];
+        for (var i = 0; i < rows.size(); i++) {
+            assertEquals("spool-0001", rows.getEquipment(i));
+            assertEquals("temperature", rows.getName(i));
+            assertEquals(1_700_000_000_000L + rows.getScaledValue(i), rows.getTimestamp(i));
+            values[i] = rows.getScaledValue(i);
+        }
+        return values;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".seg")).count();
+        }
+    }
+
+    @Test
+    void rollsOverToNewSegmentsAndDeletesCommittedOnes() throws IOException, InterruptedException {
+        try (var spool = new KpiSpool(dir, "test", 256, 16)) {
+            for (var i = 0; i < 20; i++) assertTrue(spool.append(row(i)));
+            assertTrue(segmentFiles() > 1);
+            assertArrayEquals(new long[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19}, readValues(spool));
+            spool.commit();
+            assertEquals(1, segmentFiles());
+        }
+    }
+
+    @Test
+    void dropsRowsOnceAllSegmentsAreInUse() throws IOException, InterruptedException {
+        try (var spool = new KpiSpool(dir, "test", 256, 2)) {
+            var appended = 0;
+            while (spool.append(row(appended))) appended++;
+            assertTrue(spool.isFull());
+            assertEquals(1, spool.getDroppedKpis());
+            assertEquals(appended, readValues(spool).length);
+            spool.commit();
+            assertFalse(spool.isFull());
+            assertTrue(spool.append(row(appended)));
+        }
+    }
+
+    @Test
+    void discardsTornRecordOnRecovery() throws IOException, InterruptedException {
+        try (var spool = new KpiSpool(dir, "test", 4096, 4)) {
+            for (var i = 0; i < 3; i++) assertTrue(spool.append(row(i)));
+        }
+        // corrupt the payload of the last record as if the process crashed while it was written
+        try (var channel = FileChannel.open(dir.resolve("test-%020d.seg".formatted(0)), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x7F}), 2L * RECORD_BYTES + 20);
+        }
+        try (var spool = new KpiSpool(dir, "test", 4096, 4)) {
+            assertArrayEquals(new long[]{0, 1}, readValues(spool));
+            // the torn record is overwritten by the next one
+            assertTrue(spool.append(row(3)));
+            assertArrayEquals(new long[]{3}, readValues(spool));
+        }
+    }
+
+    @Test
+    void replaysRowsReadAfterLastCheckpointOnRestart() throws IOException, InterruptedException {
+        try (var spool = new KpiSpool(dir, "test", 256, 16)) {
+            for (var i = 0; i < 10; i++) assertTrue(spool.append(row(i)));
+            var rows = new KpiBatch(16);
+            assertEquals(6, spool.read(rows, 6, 0));
+            spool.commit();
+            // read but not committed, e.g. because the process stopped while writing them
+            assertEquals(4, readValues(spool).length);
+        }
+        try (var spool = new KpiSpool(dir, "test", 256, 16)) {
+            assertArrayEquals(new long[]{6, 7, 8, 9}, readValues(spool));
+            spool.rewind();
+            assertArrayEquals(new long[]{6, 7, 8, 9}, readValues(spool));
+        }
+    }
+}
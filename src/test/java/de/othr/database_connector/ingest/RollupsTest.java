@@ -0,0 +1,107 @@
+package de.othr.database_connector.ingest;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RollupsTest {
+
+    private static final long WINDOW = 1_700_000_040_000L;
+
+    /**
+     * Sink which records the windows it writes and can be made unreachable
+     */
+    private static final class RecordingSink implements RollupSink {
+        final List<long[]> rows = new ArrayList<>();
+        boolean reachable = true;
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean write(RollupInterval interval, RollupBatch windows) {
+            if (!reachable) return false;
+            for (var i = 0; i < windows.size(); i++) {
+                rows.add(new long[]{windows.getEquipmentId(i), windows.getNameId(i), windows.getWindow(i), windows.getCount(i),
+                        windows.getScaledSum(i), windows.getScaledMin(i), windows.getScaledMax(i), windows.getScaledLast(i)});
+            }
+            return true;
+        }
+    }
+
+    private static KpiBatch kpi(String equipment, String name, long timestamp, long scaledValue) {
+        var rows = new KpiBatch(1);
+        rows.add(KpiDictionary.EQUIPMENT.idOf(equipment), timestamp, KpiDictionary.NAMES.idOf(name), 0, scaledValue);
+        return rows;
+    }
+
+    @Test
+    void mergesWindowReopenedWhileItsAggregateIsPending() {
+        var sink = new RecordingSink();
+        var rollups = new Rollups(List.of(RollupInterval.MINUTE), 0, 1000, List.of(), sink);
+        rollups.filter(kpi("rollups-1", "temperature", WINDOW + 1000, 500));
+        rollups.filter(kpi("rollups-1", "temperature", WINDOW + 2000, 300));
+        rollups.filter(kpi("rollups-1", "pressure", WINDOW + 1000, 100));
+        sink.reachable = false;
+        rollups.flush(true);
+        assertTrue(sink.rows.isEmpty());
+
+        // KPIs arriving late reopen the window which has not been written yet
+        rollups.filter(kpi("rollups-1", "temperature", WINDOW + 500, 900));
+        rollups.filter(kpi("rollups-1", "temperature", WINDOW + 3000, 100));
+        sink.reachable = true;
+        rollups.flush(true);
+
+        assertEquals(2, sink.rows.size());
+        var temperature = sink.rows.stream().filter(row -> row[1] == KpiDictionary.NAMES.idOf("temperature")).toList();
+        assertEquals(1, temperature.size());
+        assertArrayEquals(new long[]{KpiDictionary.EQUIPMENT.idOf("rollups-1"), KpiDictionary.NAMES.idOf("temperature"), WINDOW, 4, 1800, 100, 900, 100},
+                temperature.get(0));
+        assertEquals(0, rollups.getOpenWindows());
+    }
+
+    @Test
+    void keepsWindowsApartIfMergedSumWouldOverflow() {
+        var batch = new RollupBatch(4);
+        batch.add(1, 2, 0, WINDOW, 1, Long.MAX_VALUE - 10, Long.MAX_VALUE - 10, Long.MAX_VALUE - 10, Long.MAX_VALUE - 10, WINDOW);
+        batch.add(1, 3, 0, WINDOW, 1, 5, 5, 5, 5, WINDOW);
+        batch.add(1, 2, 0, WINDOW, 1, 20, 20, 20, 20, WINDOW + 1);
+        batch.add(1, 3, 0, WINDOW, 2, 7, 1, 6, 6, WINDOW + 2);
+        var overflow = new RollupBatch(1);
+
+        assertEquals(1, batch.mergeWindows(overflow));
+
+        assertEquals(2, batch.size());
+        assertEquals(3, batch.getNameId(1));
+        assertEquals(3, batch.getCount(1));
+        assertEquals(12, batch.getScaledSum(1));
+        assertEquals(1, batch.getScaledMin(1));
+        assertEquals(6, batch.getScaledMax(1));
+        assertEquals(6, batch.getScaledLast(1));
+        assertEquals(WINDOW + 2, batch.getLastTimestamp(1));
+        assertEquals(1, overflow.size());
+        assertEquals(20, overflow.getScaledSum(0));
+    }
+}
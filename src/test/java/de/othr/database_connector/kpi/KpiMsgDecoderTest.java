@@ -0,0 +1,154 @@
+package de.othr.database_connector.kpi;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.helpers.Validator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiMsgDecoderTest {
+
+    private static final String HEADER = "\"clientId\":\"decoder-01\",\"unixTimestamp\":1700000000000,\"timestamp\":\"2023-11-14T22:13:20.000Z\"";
+
+    private static byte[] msg(String kpis) {
+        return ("{" + HEADER + ",\"kpis\":[" + kpis + "]}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long parseScaled(String number) {
+        return KpiMsgDecoder.parseScaled(number.toCharArray(), 0, number.length(), KpiBatch.VALUE_SCALE);
+    }
+
+    /**
+     * Payloads violating the message schema and the violation the decoder reports for them
+     */
+    private static final List<Object[]> INVALID = List.of(
+            new Object[]{"not json", KpiMsgDecoder.Violation.NO_JSON},
+            new Object[]{"{" + HEADER + ",\"kpis\":[", KpiMsgDecoder.Violation.NO_JSON},
+            new Object[]{"[1,2]", KpiMsgDecoder.Violation.NO_OBJECT},
+            new Object[]{"{" + HEADER + ",\"kpis\":[],\"extra\":1}", KpiMsgDecoder.Violation.UNKNOWN_FIELD},
+            new Object[]{"{\"clientId\":\"decoder-01\",\"kpis\":[]}", KpiMsgDecoder.Violation.MISSING_FIELD},
+            new Object[]{"{\"clientId\":\"decoder-1\",\"unixTimestamp\":1,\"timestamp\":\"2023-11-14T22:13:20.000Z\",\"kpis\":[]}", KpiMsgDecoder.Violation.INVALID_CLIENT_ID},
+            new Object[]{"{\"clientId\":\"decoder-01\",\"unixTimestamp\":1.5,\"timestamp\":\"2023-11-14T22:13:20.000Z\",\"kpis\":[]}", KpiMsgDecoder.Violation.INVALID_UNIX_TIMESTAMP},
+            new Object[]{"{\"clientId\":\"decoder-01\",\"unixTimestamp\":1,\"timestamp\":\"2023-11-14\",\"kpis\":[]}", KpiMsgDecoder.Violation.INVALID_TIMESTAMP},
+            new Object[]{"{" + HEADER + ",\"kpis\":{}}", KpiMsgDecoder.Violation.INVALID_KPIS},
+            new Object[]{new String(msg("{\"name\":\"" + "n".repeat(41) + "\",\"unitId\":1,\"value\":1}"), StandardCharsets.UTF_8), KpiMsgDecoder.Violation.INVALID_NAME},
+            new Object[]{new String(msg("{\"name\":\"speed\",\"unitId\":7,\"value\":1}"), StandardCharsets.UTF_8), KpiMsgDecoder.Violation.INVALID_UNIT},
+            new Object[]{new String(msg("{\"name\":\"speed\",\"unitId\":1,\"value\":\"1\"}"), StandardCharsets.UTF_8), KpiMsgDecoder.Violation.INVALID_VALUE},
+            new Object[]{new String(msg("{\"name\":\"speed\",\"unitId\":1,\"value\":0.001}"), StandardCharsets.UTF_8), KpiMsgDecoder.Violation.INVALID_VALUE}
+    );
+
+    @Test
+    void decodesAllKpisOfMessage() {
+        var decoder = new KpiMsgDecoder();
+        var rows = new KpiBatch(4);
+        assertTrue(decoder.decode(msg("{\"name\":\"speed\",\"unitId\":1,\"value\":12.5},{\"name\":\"temperature\",\"unitId\":2,\"value\":-3,\"comment\":{\"a\":[1]}}"), rows));
+        assertNull(decoder.getViolation());
+        assertEquals(2, rows.size());
+        for (var i = 0; i < rows.size(); i++) {
+            assertEquals("decoder-01", rows.getEquipment(i));
+            assertEquals(1_700_000_000_000L, rows.getTimestamp(i));
+        }
+        assertEquals("speed", rows.getName(0));
+        assertEquals(1, rows.getUnitId(0));
+        assertEquals(1250, rows.getScaledValue(0));
+        assertEquals("temperature", rows.getName(1));
+        assertEquals(2, rows.getUnitId(1));
+        assertEquals(-300, rows.getScaledValue(1));
+    }
+
+    @Test
+    void acceptsFieldsInAnyOrder() {
+        var rows = new KpiBatch(1);
+        var payload = "{\"kpis\":[{\"value\":1,\"unitId\":3,\"name\":\"speed\"}],\"timestamp\":\"2023-11-14T22:13:20.000Z\",\"unixTimestamp\":1.7e12,\"clientId\":\"decoder-02\"}";
+        assertTrue(new KpiMsgDecoder().decode(payload.getBytes(StandardCharsets.UTF_8), rows));
+        assertEquals("decoder-02", rows.getEquipment(0));
+        assertEquals(1_700_000_000_000L, rows.getTimestamp(0));
+        assertEquals(100, rows.getScaledValue(0));
+    }
+
+    @Test
+    void parsesScaledNumbersWithoutRounding() {
+        assertEquals(0, parseScaled("0"));
+        assertEquals(0, parseScaled("-0.000"));
+        assertEquals(150, parseScaled("1.5"));
+        assertEquals(150, parseScaled("1.50000"));
+        assertEquals(-1, parseScaled("-0.01"));
+        assertEquals(2500, parseScaled("2.5E1"));
+        assertEquals(1, parseScaled("1e-2"));
+        assertEquals(1, parseScaled("100e-4"));
+        assertEquals(123_456_789_012L, parseScaled("1234567890.12"));
+        assertEquals(Long.MAX_VALUE, parseScaled("92233720368547758.07"));
+    }
+
+    @Test
+    void rejectsNumbersWhichCannotBeRepresented() {
+        assertEquals(Long.MIN_VALUE, parseScaled("1.005"));
+        assertEquals(Long.MIN_VALUE, parseScaled("1e-3"));
+        assertEquals(Long.MIN_VALUE, parseScaled("92233720368547758.08"));
+        assertEquals(Long.MIN_VALUE, parseScaled("1e30"));
+        assertEquals(Long.MIN_VALUE, parseScaled("1e99999999999"));
+        assertEquals(Long.MIN_VALUE, parseScaled("0.0000000000000000000001"));
+    }
+
+    @Test
+    void rejectsMalformedMessagesWithoutAddingRows() {
+        var decoder = new KpiMsgDecoder();
+        var rows = new KpiBatch(4);
+        assertTrue(decoder.decode(msg("{\"name\":\"speed\",\"unitId\":1,\"value\":1}"), rows));
+        for (var invalid : INVALID) {
+            var payload = ((String) invalid[0]).getBytes(StandardCharsets.UTF_8);
+            assertFalse(decoder.decode(payload, rows), (String) invalid[0]);
+            assertEquals(invalid[1], decoder.getViolation(), (String) invalid[0]);
+            assertEquals(1, rows.size(), (String) invalid[0]);
+        }
+        // a KPI without value cannot be written although the schema allows it
+        assertFalse(decoder.decode(msg("{\"name\":\"speed\",\"unitId\":1},{\"name\":\"speed\",\"unitId\":1,\"value\":1}"), rows));
+        assertEquals(KpiMsgDecoder.Violation.INVALID_KPIS, decoder.getViolation());
+        assertEquals(1, rows.size());
+        // trailing content after the message
+        assertFalse(decoder.decode((new String(msg(""), StandardCharsets.UTF_8) + " {}").getBytes(StandardCharsets.UTF_8), rows));
+        assertEquals(KpiMsgDecoder.Violation.NO_JSON, decoder.getViolation());
+    }
+
+    @Test
+    void decoderWasWrittenForDeployedSchema() {
+        // otherwise the fast path is disabled and every message is evaluated against the schema
+        assertEquals(Validator.getMsgSchemaFingerprint(), KpiMsgDecoder.SCHEMA_FINGERPRINT);
+    }
+
+    @Test
+    void schemaAgreesWithDecoder() {
+        var decoder = new KpiMsgDecoder();
+        var rows = new KpiBatch(4);
+        // fast path: messages the decoder accepts are valid without evaluating the schema
+        for (var valid : List.of(msg(""), msg("{\"name\":\"speed\",\"unitId\":6,\"value\":-0.5,\"comment\":\"ok\"}"))) {
+            assertTrue(decoder.decode(valid, rows));
+            assertTrue(Validator.isMsgValid(valid).isValid());
+        }
+        // fallback: rejected messages are evaluated against the schema to report its errors
+        for (var invalid : INVALID) {
+            // the schema does not require an object, but there is nothing to insert otherwise
+            if (invalid[1] == KpiMsgDecoder.Violation.NO_OBJECT) continue;
+            var payload = ((String) invalid[0]).getBytes(StandardCharsets.UTF_8);
+            assertFalse(decoder.decode(payload, rows), (String) invalid[0]);
+            assertFalse(Validator.isMsgValid(payload).isValid(), (String) invalid[0]);
+        }
+    }
+}
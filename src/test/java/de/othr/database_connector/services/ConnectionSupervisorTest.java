@@ -0,0 +1,93 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionSupervisorTest {
+
+    /**
+     * Wait until the supervisor reports the given state.
+     */
+    private static void awaitConnected(ConnectionSupervisor supervisor, boolean connected) throws InterruptedException {
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (supervisor.isConnected() != connected) {
+            assertTrue(System.nanoTime() < deadline, "Supervisor did not become " + (connected ? "connected" : "disconnected"));
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void reconnectsIfConnectionIsLostWhileAttemptSucceeds() throws InterruptedException {
+        var attempts = new AtomicInteger();
+        var supervisor = new AtomicReference<ConnectionSupervisor>();
+        var secondAttempt = new CountDownLatch(2);
+        supervisor.set(new ConnectionSupervisor(() -> {
+            // a writer reports the loss of its connection while the supervisor connects
+            if (attempts.incrementAndGet() == 1) supervisor.get().connectionLost();
+            secondAttempt.countDown();
+            return true;
+        }, 1, 10));
+        try {
+            supervisor.get().connectionLost();
+            assertTrue(secondAttempt.await(5, TimeUnit.SECONDS), "Loss reported during the attempt did not schedule another attempt");
+            awaitConnected(supervisor.get(), true);
+            assertEquals(2, attempts.get());
+        } finally {
+            supervisor.get().shutdown();
+        }
+    }
+
+    @Test
+    void reconnectsAfterEveryLoss() throws InterruptedException {
+        var attempts = new AtomicInteger();
+        var supervisor = new ConnectionSupervisor(() -> attempts.incrementAndGet() % 2 == 0, 1, 10);
+        try {
+            for (var i = 0; i < 20; i++) {
+                supervisor.connectionLost();
+                awaitConnected(supervisor, true);
+            }
+            assertTrue(attempts.get() >= 40);
+        } finally {
+            supervisor.shutdown();
+        }
+    }
+
+    @Test
+    void staysConnectedWhileLossesAreReportedConcurrently() throws InterruptedException {
+        var supervisor = new ConnectionSupervisor(() -> true, 1, 10);
+        try {
+            var writers = new Thread[4];
+            for (var i = 0; i < writers.length; i++) {
+                writers[i] = Thread.ofVirtual().start(() -> {
+                    for (var j = 0; j < 1000; j++) supervisor.connectionLost();
+                });
+            }
+            for (var writer : writers) writer.join();
+            // every loss must eventually be followed by a successful reconnect
+            awaitConnected(supervisor, true);
+        } finally {
+            supervisor.shutdown();
+        }
+    }
+}
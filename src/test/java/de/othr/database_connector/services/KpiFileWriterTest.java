@@ -0,0 +1,130 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import de.othr.database_connector.kpi.KpiBatch;
+import de.othr.database_connector.kpi.KpiDictionary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KpiFileWriterTest {
+
+    private static final long T0 = 1_700_000_000_000L;
+
+    @TempDir
+    Path dir;
+
+    private static KpiBatch batch(int first, int rows) {
+        var batch = new KpiBatch(rows);
+        for (var i = first; i < first + rows; i++) {
+            // timestamps go back and forth and values are negative as well
+            batch.add(KpiDictionary.EQUIPMENT.idOf("file-" + (i % 3)), T0 + (i % 2 == 0 ? i : -i) * 1000L,
+                    KpiDictionary.NAMES.idOf(i % 2 == 0 ? "temperature" : "druck-ü"), 1 + i % 6, (i - 5) * 101L);
+        }
+        return batch;
+    }
+
+    private static String expected(int i) {
+        return "file-%d %d %s %d %s".formatted(i % 3, T0 + (i % 2 == 0 ? i : -i) * 1000L, i % 2 == 0 ? "temperature" : "druck-ü", 1 + i % 6,
+                BigDecimal.valueOf((i - 5) * 101L, KpiBatch.VALUE_SCALE));
+    }
+
+    private static List<String> read(Path file) throws IOException {
+        var kpis = new ArrayList<String>();
+        var count = KpiFileReader.read(file, (equipment, timestamp, name, unitId, value) ->
+                kpis.add("%s %d %s %d %s".formatted(equipment, timestamp, name, unitId, value)));
+        assertEquals(kpis.size(), count);
+        return kpis;
+    }
+
+    private List<Path> files(String glob) throws IOException {
+        var files = new ArrayList<Path>();
+        try (var stream = Files.newDirectoryStream(dir, glob)) {
+            stream.forEach(files::add);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    @Test
+    void readsWhatWasWritten() throws IOException {
+        var writer = new KpiFileWriter(dir, "test", 1 << 20, 3_600_000);
+        assertTrue(writer.write(batch(0, 10)));
+        assertTrue(writer.write(new KpiBatch(1)));
+        assertTrue(writer.write(batch(10, 7)));
+        writer.flush();
+        assertEquals(1, files("test-*.kpic.part").size());
+        writer.close();
+
+        var files = files("test-*.kpic");
+        assertEquals(1, files.size());
+        var expected = new ArrayList<String>();
+        for (var i = 0; i < 17; i++) expected.add(expected(i));
+        assertEquals(expected, read(files.get(0)));
+    }
+
+    @Test
+    void completesFileOnceItReachesMaximumSize() throws IOException {
+        var writer = new KpiFileWriter(dir, "test", 1, 3_600_000);
+        assertTrue(writer.write(batch(0, 5)));
+        assertTrue(writer.write(batch(5, 5)));
+        assertTrue(files("test-*.part").isEmpty());
+        writer.close();
+        var files = files("test-*.kpic");
+        assertEquals(2, files.size());
+        assertEquals(List.of(expected(0), expected(1), expected(2), expected(3), expected(4)), read(files.get(0)));
+        // every file has its own dictionary of equipment numbers and names
+        assertEquals(List.of(expected(5), expected(6), expected(7), expected(8), expected(9)), read(files.get(1)));
+    }
+
+    @Test
+    void skipsBlockCutOffByCrashAndCompletesFileOnStart() throws IOException {
+        var writer = new KpiFileWriter(dir, "test", 1 << 20, 3_600_000);
+        assertTrue(writer.write(batch(0, 4)));
+        assertTrue(writer.write(batch(4, 4)));
+        writer.flush();
+        // the process crashes while the second block is written, so the file is not completed
+        var part = files("test-*.kpic.part").get(0);
+        try (var channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        var restarted = new KpiFileWriter(dir, "test", 1 << 20, 3_600_000);
+        assertTrue(files("test-*.part").isEmpty());
+        restarted.close();
+        var files = files("test-*.kpic");
+        assertEquals(1, files.size());
+        assertEquals(List.of(expected(0), expected(1), expected(2), expected(3)), read(files.get(0)));
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        var file = dir.resolve("other.kpic");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5});
+        assertThrows(IOException.class, () -> KpiFileReader.read(file, (equipment, timestamp, name, unitId, value) -> {
+        }));
+    }
+}
@@ -0,0 +1,98 @@
+package de.othr.database_connector.services;
+/*
+Copyright 2021 Thomas Pilz
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopicRouterTest {
+
+    @Test
+    void firstMatchingFilterWins() {
+        var router = new TopicRouter<String>();
+        router.add("plant/+/kpis", "plus");
+        router.add("plant/#", "hash");
+        router.add("plant/line1/kpis", "exact");
+        assertEquals("plus", router.route("plant/line1/kpis"));
+        assertEquals("hash", router.route("plant/line1/status"));
+
+        var reversed = new TopicRouter<String>();
+        reversed.add("plant/#", "hash");
+        reversed.add("plant/+/kpis", "plus");
+        assertEquals("hash", reversed.route("plant/line1/kpis"));
+    }
+
+    @Test
+    void plusMatchesExactlyOneLevel() {
+        var router = new TopicRouter<String>();
+        router.add("plant/+/kpis", "plus");
+        router.add("+", "single");
+        assertEquals("plus", router.route("plant//kpis"));
+        assertNull(router.route("plant/kpis"));
+        assertNull(router.route("plant/line1/cell2/kpis"));
+        assertEquals("single", router.route("plant"));
+        assertNull(router.route("plant/line1"));
+    }
+
+    @Test
+    void hashMatchesParentLevel() {
+        var router = new TopicRouter<String>();
+        router.add("plant/line1/#", "line1");
+        assertEquals("line1", router.route("plant/line1"));
+        assertEquals("line1", router.route("plant/line1/kpis"));
+        assertEquals("line1", router.route("plant/line1/cell2/kpis"));
+        assertNull(router.route("plant"));
+        assertNull(router.route("plant/line10"));
+    }
+
+    @Test
+    void wildcardsInFirstLevelDoNotMatchSystemTopics() {
+        var router = new TopicRouter<String>();
+        router.add("#", "all");
+        router.add("+/broker", "plus");
+        router.add("$SYS/#", "system");
+        assertEquals("all", router.route("kpis/1"));
+        assertEquals("system", router.route("$SYS/broker"));
+
+        var wildcardsOnly = new TopicRouter<String>();
+        wildcardsOnly.add("#", "all");
+        wildcardsOnly.add("+/broker", "plus");
+        assertNull(wildcardsOnly.route("$SYS/broker"));
+    }
+
+    @Test
+    void rejectsInvalidFilters() {
+        var router = new TopicRouter<String>();
+        assertThrows(IllegalArgumentException.class, () -> router.add("", "empty"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("plant/#/kpis", "hash"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("plant/line+/kpis", "plus"));
+        assertThrows(IllegalArgumentException.class, () -> router.add("plant#", "hash"));
+    }
+
+    @Test
+    void parsesRoutes() {
+        var route = TopicRoute.parse(" legacy/+/kpis = table:legacy.kpis ");
+        assertEquals("legacy/+/kpis", route.filter());
+        assertEquals(RouteAction.TABLE, route.action());
+        assertEquals("legacy.kpis", route.table());
+        assertEquals(RouteAction.IGNORE, TopicRoute.parse("$SYS/#=IGNORE").action());
+        assertThrows(IllegalArgumentException.class, () -> TopicRoute.parse("kpis/#"));
+        assertThrows(IllegalArgumentException.class, () -> TopicRoute.parse("kpis/#=DROP"));
+        assertThrows(IllegalArgumentException.class, () -> TopicRoute.parse("kpis/#=TABLE:kpis; DROP TABLE kpis"));
+        assertThrows(IllegalArgumentException.class, () -> TopicRoute.parse("kpis/#=INGEST:kpis"));
+    }
+}